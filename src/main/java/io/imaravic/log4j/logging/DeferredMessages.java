@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.logging.log4j.message.FormattedMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.MessageFormatMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.StringFormattedMessage;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * DeferredMessages decides which messages can be formatted later, on another thread,
+ * with the same result as formatting them when they were logged.
+ *
+ * ParameterizedMessage turns its parameters into strings when it is created, so only
+ * the substitution into the pattern is left. The String.format and MessageFormat based
+ * messages keep their parameters, so they are only deferred when all of them are
+ * immutable. Every other message is formatted right away.
+ */
+final class DeferredMessages {
+  // Rough length of a formatted parameter, used until the message gets formatted
+  private static final int ESTIMATED_PARAMETER_LENGTH = 16;
+
+  private static final Set<Class<?>> IMMUTABLE_TYPES = ImmutableSet.<Class<?>>of(
+      String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+      Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class);
+
+  private DeferredMessages() {
+  }
+
+  static boolean canDefer(final Message message) {
+    final Class<?> messageClass = message.getClass();
+    if (messageClass == ParameterizedMessage.class) {
+      return true;
+    }
+    if (messageClass != StringFormattedMessage.class &&
+        messageClass != MessageFormatMessage.class &&
+        messageClass != FormattedMessage.class) {
+      return false;
+    }
+    final Object[] parameters = message.getParameters();
+    if (parameters != null) {
+      for (final Object parameter : parameters) {
+        if (parameter != null &&
+            !IMMUTABLE_TYPES.contains(parameter.getClass()) &&
+            !(parameter instanceof Enum)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a rough length of the formatted message, without formatting it.
+   */
+  static int estimateLength(final Message message) {
+    final String format = message.getFormat();
+    final Object[] parameters = message.getParameters();
+    return (format == null ? 0 : format.length()) +
+           (parameters == null ? 0 : parameters.length * ESTIMATED_PARAMETER_LENGTH);
+  }
+}
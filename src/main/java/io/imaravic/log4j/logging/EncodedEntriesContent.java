@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.json.Json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Body of a write request gathered straight from the encoded entries of a batch,
+ * without copying them into a single buffer first. The entries can be on the heap
+ * or in a {@link io.imaravic.log4j.logging.util.DirectBufferArena}.
+ */
+class EncodedEntriesContent extends AbstractHttpContent {
+  private static final int COPY_BUFFER_BYTES = 8 * 1024;
+
+  private final LogEntryJsonEncoder encoder;
+  private final LogEntryBatch batch;
+
+  EncodedEntriesContent(final LogEntryJsonEncoder encoder, final LogEntryBatch batch) {
+    super(Json.MEDIA_TYPE);
+    this.encoder = encoder;
+    this.batch = batch;
+  }
+
+  @Override
+  protected long computeLength() {
+    // Entry sizes include a separating comma, which the last entry does without
+    return encoder.getRequestStart().length + batch.getSizeInBytes() - 1 +
+           encoder.getRequestEnd().length;
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(encoder.getRequestStart());
+    ByteBuffer slab = null;
+    ByteBuffer slabView = null;
+    byte[] copyBuffer = null;
+    for (int i = 0; i < batch.size(); ++i) {
+      if (i > 0) {
+        out.write(',');
+      }
+      final ByteBuffer encodedEntry = batch.getEncodedEntry(i);
+      final int offset = batch.getEncodedOffset(i);
+      final int length = batch.getEncodedLength(i);
+      if (encodedEntry.hasArray()) {
+        out.write(encodedEntry.array(), encodedEntry.arrayOffset() + offset, length);
+        continue;
+      }
+      // Direct memory is copied out through a small buffer, reading from a view of
+      // the slab, since the logging thread keeps writing at the position of the slab
+      if (encodedEntry != slab) {
+        slab = encodedEntry;
+        slabView = encodedEntry.duplicate();
+      }
+      if (copyBuffer == null) {
+        copyBuffer = new byte[COPY_BUFFER_BYTES];
+      }
+      slabView.limit(offset + length).position(offset);
+      while (slabView.hasRemaining()) {
+        final int chunk = Math.min(copyBuffer.length, slabView.remaining());
+        slabView.get(copyBuffer, 0, chunk);
+        out.write(copyBuffer, 0, chunk);
+      }
+    }
+    out.write(encoder.getRequestEnd());
+    out.flush();
+  }
+}
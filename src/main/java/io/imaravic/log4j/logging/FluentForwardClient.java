@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.services.logging.model.LogEntry;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.imaravic.log4j.logging.util.MessagePackBuffer;
+import io.imaravic.log4j.logging.util.UnixDomainSockets;
+
+/**
+ * FluentForwardClient sends batches of entries to the forward input of Fluentd or Fluent Bit,
+ * as PackedForward messages tagged with the log name, over TCP or a Unix domain socket.
+ *
+ * Every sender thread takes a connection of its own, which is kept open from one batch to
+ * the next, and written to without blocking, within the timeout. With acks, a batch only
+ * counts as sent once the server acknowledged its chunk, so a batch lost with a broken
+ * connection fails instead of vanishing. A connection which failed is closed, and the next
+ * batch opens a new one. A batch which fails on an idle connection, which the server may
+ * have closed in the meantime, is sent once more on a new connection.
+ */
+class FluentForwardClient implements Closeable {
+  static final int DEFAULT_PORT = 24224;
+  // Same as the default timeouts of the HTTP requests
+  static final int DEFAULT_TIMEOUT_MILLIS = 20 * 1000;
+
+  private static final Logger LOGGER = StatusLogger.getLogger();
+  private static final String UNIX_SCHEME = "unix://";
+  private static final String MESSAGE_KEY = "message";
+  private static final String SEVERITY_KEY = "severity";
+  private static final String INSERT_ID_KEY = "logging.googleapis.com/insertId";
+  private static final String LABELS_KEY = "logging.googleapis.com/labels";
+  private static final int INITIAL_MESSAGE_BYTES = 64 * 1024;
+  private static final int MAX_ACK_BYTES = 256;
+
+  private final String address;
+  // Null for a Unix domain socket
+  private final String host;
+  private final int port;
+  private final String unixPath;
+  private final boolean acks;
+  private final long timeoutNanos;
+  // Guarded by the queue itself
+  private final ArrayDeque<Connection> idleConnections = new ArrayDeque<Connection>();
+  private boolean closed;
+
+  /**
+   * Creates a client of the server at the given address, either {@code host:port}, where the
+   * port defaults to 24224, or {@code unix:///path/to/socket}. No connection is opened yet.
+   */
+  FluentForwardClient(final String address, final boolean acks, final int timeoutMillis) {
+    this.address = address;
+    this.acks = acks;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+        timeoutMillis > 0 ? timeoutMillis : DEFAULT_TIMEOUT_MILLIS);
+    if (address.startsWith(UNIX_SCHEME)) {
+      this.host = null;
+      this.port = 0;
+      this.unixPath = address.substring(UNIX_SCHEME.length());
+      if (!UnixDomainSockets.isSupported()) {
+        throw new IllegalArgumentException("Forwarding to " + address + " takes Java 16 or newer");
+      }
+    } else {
+      // The brackets of an IPv6 address keep its colons apart from the one of the port
+      final int portSeparator = address.lastIndexOf(':');
+      if (portSeparator < 0 || portSeparator < address.lastIndexOf(']')) {
+        this.host = address;
+        this.port = DEFAULT_PORT;
+      } else {
+        this.host = address.substring(0, portSeparator);
+        this.port = Integer.parseInt(address.substring(portSeparator + 1));
+      }
+      this.unixPath = null;
+    }
+  }
+
+  /**
+   * Opens a connection for the first batch, so it doesn't wait for it.
+   * A failure is left for the first batch to run into.
+   */
+  void prewarm() {
+    try {
+      release(connect());
+    } catch (final IOException e) {
+      LOGGER.debug("Failed to connect to the forward input at {}", address, e);
+    }
+  }
+
+  /**
+   * Sends the entries of the batch, whose event times and formatted messages are all set,
+   * under the given tag, and returns the number of bytes they took.
+   */
+  long send(final String tag, final LogEntryBatch batch) throws IOException {
+    final String chunk = acks ? UUID.randomUUID().toString() : null;
+    final Connection idleConnection = takeIdleConnection();
+    if (idleConnection != null) {
+      try {
+        return sendOn(idleConnection, tag, batch, chunk);
+      } catch (final SocketTimeoutException e) {
+        // The batch may well have got through, so it isn't sent twice
+        throw e;
+      } catch (final IOException e) {
+        LOGGER.debug("Idle connection to {} failed, sending on a new one", address, e);
+      }
+    }
+    return sendOn(connect(), tag, batch, chunk);
+  }
+
+  private long sendOn(final Connection connection,
+                      final String tag,
+                      final LogEntryBatch batch,
+                      final String chunk) throws IOException {
+    boolean sent = false;
+    try {
+      final ByteBuffer message = connection.encode(tag, batch, chunk);
+      final long messageBytes = message.remaining();
+      final long deadlineNanos = System.nanoTime() + timeoutNanos;
+      connection.write(message, deadlineNanos);
+      if (chunk != null) {
+        connection.awaitAck(chunk, deadlineNanos);
+      }
+      sent = true;
+      return messageBytes;
+    } finally {
+      if (sent) {
+        release(connection);
+      } else {
+        connection.close();
+      }
+    }
+  }
+
+  private Connection takeIdleConnection() {
+    synchronized (idleConnections) {
+      return idleConnections.poll();
+    }
+  }
+
+  private void release(final Connection connection) {
+    synchronized (idleConnections) {
+      if (!closed) {
+        idleConnections.push(connection);
+        return;
+      }
+    }
+    connection.close();
+  }
+
+  private Connection connect() throws IOException {
+    final SocketAddress socketAddress;
+    if (unixPath != null) {
+      socketAddress = UnixDomainSockets.address(unixPath);
+    } else {
+      // Resolved on every connect, so a server which moved is found again
+      final InetSocketAddress inetAddress = new InetSocketAddress(host, port);
+      if (inetAddress.isUnresolved()) {
+        throw new UnknownHostException(host);
+      }
+      socketAddress = inetAddress;
+    }
+    final SocketChannel channel = unixPath != null ? UnixDomainSockets.open() : SocketChannel.open();
+    Selector selector = null;
+    try {
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      final Connection connection = new Connection(channel, selector);
+      final long deadlineNanos = System.nanoTime() + timeoutNanos;
+      if (!channel.connect(socketAddress)) {
+        do {
+          connection.await(SelectionKey.OP_CONNECT, deadlineNanos);
+        } while (!channel.finishConnect());
+      }
+      return connection;
+    } catch (final IOException e) {
+      closeQuietly(selector);
+      closeQuietly(channel);
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (idleConnections) {
+      closed = true;
+      for (final Connection connection : idleConnections) {
+        connection.close();
+      }
+      idleConnections.clear();
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (final IOException e) {
+      // Nothing left to do with it
+    }
+  }
+
+  /**
+   * A non-blocking connection, together with the buffer its messages are encoded into,
+   * used by a single thread at a time.
+   */
+  private final class Connection {
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final MessagePackBuffer messageBuffer = new MessagePackBuffer(INITIAL_MESSAGE_BYTES);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(MAX_ACK_BYTES);
+
+    Connection(final SocketChannel channel, final Selector selector) throws IOException {
+      this.channel = channel;
+      this.selector = selector;
+      this.key = channel.register(selector, 0);
+    }
+
+    /**
+     * Encodes the batch as a PackedForward message, {@code [tag, entries, options]},
+     * whose entries are the concatenated {@code [time, record]} pairs of the batch.
+     */
+    ByteBuffer encode(final String tag, final LogEntryBatch batch, final String chunk) {
+      messageBuffer.clear();
+      messageBuffer.packArrayHeader(3).packString(tag);
+      final int entriesStart = messageBuffer.startBinary();
+      for (int i = 0; i < batch.size(); ++i) {
+        final LogEntry entry = batch.getEntries().get(i);
+        final Map<String, String> labels = entry.getMetadata().getLabels();
+        messageBuffer.packArrayHeader(2)
+            .packEventTime(batch.getEventTimeMillis(i))
+            .packMapHeader(labels == null ? 3 : 4)
+            .packString(MESSAGE_KEY).packString(entry.getTextPayload())
+            .packString(SEVERITY_KEY).packString(entry.getMetadata().getSeverity())
+            .packString(INSERT_ID_KEY).packString(entry.getInsertId());
+        if (labels != null) {
+          messageBuffer.packString(LABELS_KEY).packMapHeader(labels.size());
+          for (final Map.Entry<String, String> label : labels.entrySet()) {
+            messageBuffer.packString(label.getKey()).packString(label.getValue());
+          }
+        }
+      }
+      messageBuffer.endBinary(entriesStart);
+      messageBuffer.packMapHeader(chunk == null ? 1 : 2)
+          .packString("size").packLong(batch.size());
+      if (chunk != null) {
+        messageBuffer.packString("chunk").packString(chunk);
+      }
+      return messageBuffer.flip();
+    }
+
+    void write(final ByteBuffer message, final long deadlineNanos) throws IOException {
+      while (message.hasRemaining()) {
+        if (channel.write(message) == 0) {
+          await(SelectionKey.OP_WRITE, deadlineNanos);
+        }
+      }
+    }
+
+    /**
+     * Reads the response to the message of the given chunk, {@code {"ack": chunk}}.
+     */
+    void awaitAck(final String chunk, final long deadlineNanos) throws IOException {
+      ackBuffer.clear();
+      while (true) {
+        final int read = channel.read(ackBuffer);
+        if (read < 0) {
+          throw new EOFException("Connection to " + address + " closed before the ack");
+        }
+        if (read == 0) {
+          await(SelectionKey.OP_READ, deadlineNanos);
+          continue;
+        }
+        final ByteBuffer received = ackBuffer.duplicate();
+        received.flip();
+        final Map<String, String> response;
+        try {
+          response = MessagePackBuffer.readStringMap(received);
+        } catch (final IllegalArgumentException e) {
+          throw new IOException("Malformed ack from " + address, e);
+        }
+        if (response != null) {
+          if (!chunk.equals(response.get("ack"))) {
+            throw new IOException("Unexpected ack from " + address + ": " + response);
+          }
+          return;
+        }
+        if (!ackBuffer.hasRemaining()) {
+          throw new IOException("Ack from " + address + " is longer than " + MAX_ACK_BYTES +
+                                " bytes");
+        }
+      }
+    }
+
+    void await(final int operation, final long deadlineNanos) throws IOException {
+      key.interestOps(operation);
+      try {
+        while (true) {
+          final long remainingMillis =
+              TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+          if (remainingMillis <= 0) {
+            throw new SocketTimeoutException("Timed out on the connection to " + address);
+          }
+          if (selector.select(remainingMillis) > 0) {
+            selector.selectedKeys().clear();
+            return;
+          }
+        }
+      } finally {
+        key.interestOps(0);
+      }
+    }
+
+    void close() {
+      closeQuietly(selector);
+      closeQuietly(channel);
+    }
+  }
+}
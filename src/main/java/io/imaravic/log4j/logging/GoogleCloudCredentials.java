@@ -23,6 +23,7 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
@@ -66,6 +67,31 @@ public class GoogleCloudCredentials {
     return serviceAccountId;
   }
 
+  /**
+   * Credentials are equal when they authenticate the same way, as the same account,
+   * so a credential built for one of them serves the other as well.
+   */
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || obj.getClass() != getClass()) {
+      return false;
+    }
+    final GoogleCloudCredentials other = (GoogleCloudCredentials) obj;
+    return useComputeCredentials == other.useComputeCredentials &&
+           Objects.equal(serviceAccountId, other.serviceAccountId) &&
+           Objects.equal(serviceAccountPrivateKeyP12File, other.serviceAccountPrivateKeyP12File);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(useComputeCredentials,
+                            serviceAccountId,
+                            serviceAccountPrivateKeyP12File);
+  }
+
   @VisibleForTesting
   String getServiceAccountPrivateKeyP12FileName() {
     return serviceAccountPrivateKeyP12File.getName();
@@ -16,6 +16,9 @@
 
 package io.imaravic.log4j.logging;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
@@ -29,6 +32,7 @@ import org.apache.logging.log4j.core.config.plugins.validation.constraints.Requi
 import org.apache.logging.log4j.core.layout.PatternLayout;
 
 import java.io.Serializable;
+import java.util.Locale;
 
 import static io.imaravic.log4j.logging.GoogleCloudLoggingManager.getManager;
 
@@ -52,6 +56,25 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
     googleCloudLoggingManager.write(event);
   }
 
+  /**
+   * Releases the manager, which the appender of a new configuration may have taken over.
+   */
+  @Override
+  public void stop() {
+    super.stop();
+    googleCloudLoggingManager.release();
+  }
+
+  /**
+   * Returns a future which completes once every entry appended before the call
+   * got delivered or failed for good.
+   *
+   * @see GoogleCloudLoggingManager#flush()
+   */
+  public ListenableFuture<Void> flush() {
+    return googleCloudLoggingManager.flush();
+  }
+
   @PluginBuilderFactory
   public static Builder newBuilder() {
     return new Builder();
@@ -92,9 +115,159 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
     @PluginBuilderAttribute
     private String logName = "cloud.logging.log4j2.appender";
 
+    @PluginBuilderAttribute
+    private boolean registerMBean = true;
+
+    @PluginBuilderAttribute
+    private String metricsBridge;
+
+    @PluginBuilderAttribute
+    private int latencyReportIntervalSeconds;
+
+    @PluginBuilderAttribute
+    private long maxBatchBytes = 5 * 1024 * 1024;
+
+    @PluginBuilderAttribute
+    private int minBatchSize = 10;
+
+    @PluginBuilderAttribute
+    private int maxBatchSize = 1000;
+
+    @PluginBuilderAttribute
+    private int batchTargetLatencyMillis = 1000;
+
+    @PluginBuilderAttribute
+    private String logNamePattern;
+
+    @PluginBuilderAttribute
+    private int logNameCacheSize = 1024;
+
+    @PluginBuilderAttribute
+    private String loggingRootUrl;
+
+    @PluginBuilderAttribute
+    private int requestTimeoutMillis;
+
+    @PluginBuilderAttribute
+    private String senderMode = SenderMode.CALLER.name();
+
+    @PluginBuilderAttribute
+    private int senderThreads = 4;
+
+    @PluginBuilderAttribute
+    private int maxInFlightBatches = 64;
+
+    @PluginBuilderAttribute
+    private int shutdownTimeoutMillis = 10000;
+
+    @PluginBuilderAttribute
+    private boolean garbageFree;
+
+    @PluginBuilderAttribute
+    private long offHeapArenaBytes;
+
+    @PluginBuilderAttribute
+    private String priorityLevel;
+
+    @PluginBuilderAttribute
+    private int bufferStripes = Runtime.getRuntime().availableProcessors();
+
+    @PluginBuilderAttribute
+    private String loggingApi = LoggingApi.V1BETA3.name();
+
+    @PluginBuilderAttribute
+    private boolean http2;
+
+    @PluginBuilderAttribute
+    private int maxBisectionRequests = 32;
+
+    @PluginBuilderAttribute
+    private int maxMessageBytes;
+
+    @PluginBuilderAttribute
+    private boolean splitOversizedMessages;
+
+    @PluginBuilderAttribute
+    private int maxEntryAgeMillis;
+
+    @PluginBuilderAttribute
+    private boolean summarizeExpiredEntries;
+
+    @PluginBuilderAttribute
+    private int newestFirstBacklogBatches;
+
+    @PluginBuilderAttribute
+    private double hedgeLatencyPercentile;
+
+    @PluginBuilderAttribute
+    private double maxHedgedRequestsRatio = 0.05;
+
+    @PluginBuilderAttribute
+    private String sink = LogSink.API.name();
+
+    @PluginBuilderAttribute
+    private String sinkFile;
+
+    @PluginBuilderAttribute
+    private String forwardAddress = "localhost:" + FluentForwardClient.DEFAULT_PORT;
+
+    @PluginBuilderAttribute
+    private boolean forwardAcks = true;
+
+    @PluginBuilderAttribute
+    private String sharedRingFile;
+
+    @PluginBuilderAttribute
+    private int sharedRingBytes = 64 * 1024 * 1024;
+
+    @PluginBuilderAttribute
+    private int topLoggers;
+
+    @PluginBuilderAttribute
+    private boolean adaptiveConcurrency;
+
     @Override
     public GoogleCloudLoggingAppender build() {
       try {
+        final GoogleCloudLoggingSettings settings = GoogleCloudLoggingSettings.newBuilder()
+            .withRegisterMBean(registerMBean)
+            .withMetricsBridgeClassName(metricsBridge)
+            .withLatencyReportIntervalSeconds(latencyReportIntervalSeconds)
+            .withMaxBatchBytes(maxBatchBytes)
+            .withMinBatchSize(minBatchSize)
+            .withMaxBatchSize(maxBatchSize)
+            .withBatchTargetLatencyMillis(batchTargetLatencyMillis)
+            .withLogNamePattern(logNamePattern)
+            .withLogNameCacheSize(logNameCacheSize)
+            .withLoggingRootUrl(loggingRootUrl)
+            .withRequestTimeoutMillis(requestTimeoutMillis)
+            .withSenderMode(SenderMode.valueOf(senderMode.toUpperCase(Locale.ENGLISH)))
+            .withSenderThreads(senderThreads)
+            .withMaxInFlightBatches(maxInFlightBatches)
+            .withShutdownTimeoutMillis(shutdownTimeoutMillis)
+            .withGarbageFree(garbageFree)
+            .withOffHeapArenaBytes(offHeapArenaBytes)
+            .withPriorityLevel(Level.toLevel(priorityLevel, null))
+            .withBufferStripes(bufferStripes)
+            .withLoggingApi(LoggingApi.valueOf(loggingApi.toUpperCase(Locale.ENGLISH)))
+            .withHttp2(http2)
+            .withMaxBisectionRequests(maxBisectionRequests)
+            .withMaxMessageBytes(maxMessageBytes)
+            .withSplitOversizedMessages(splitOversizedMessages)
+            .withMaxEntryAgeMillis(maxEntryAgeMillis)
+            .withSummarizeExpiredEntries(summarizeExpiredEntries)
+            .withNewestFirstBacklogBatches(newestFirstBacklogBatches)
+            .withHedgeLatencyPercentile(hedgeLatencyPercentile)
+            .withMaxHedgedRequestsRatio(maxHedgedRequestsRatio)
+            .withSink(LogSink.valueOf(sink.toUpperCase(Locale.ENGLISH)))
+            .withSinkFile(sinkFile)
+            .withForwardAddress(forwardAddress)
+            .withForwardAcks(forwardAcks)
+            .withSharedRingFile(sharedRingFile)
+            .withSharedRingBytes(sharedRingBytes)
+            .withTopLoggers(topLoggers)
+            .withAdaptiveConcurrency(adaptiveConcurrency)
+            .build();
         return new GoogleCloudLoggingAppender(name,
                                               filter,
                                               layout,
@@ -105,7 +278,8 @@ public class GoogleCloudLoggingAppender extends AbstractAppender {
                                                          zone,
                                                          logName,
                                                          virtualMachineId,
-                                                         maxRetryTimeMillis));
+                                                         maxRetryTimeMillis,
+                                                         settings));
       } catch (final Throwable e) {
         LOGGER.error("Error creating GoogleCloudLoggingAppender [{}]", name, e);
         return null;
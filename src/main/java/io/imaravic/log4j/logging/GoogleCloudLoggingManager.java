@@ -16,34 +16,102 @@
 
 package io.imaravic.log4j.logging;
 
+import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.UriTemplate;
+import com.google.api.client.json.Json;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.BackOff;
 import com.google.api.client.util.DateTime;
-import com.google.api.client.util.Lists;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
 import com.google.api.services.logging.Logging;
 import com.google.api.services.logging.LoggingScopes;
 import com.google.api.services.logging.model.LogEntry;
 import com.google.api.services.logging.model.LogEntryMetadata;
 import com.google.api.services.logging.model.WriteLogEntriesRequest;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractManager;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.util.Loader;
 import org.apache.logging.log4j.core.util.UuidUtil;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URLEncoder;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import io.imaravic.log4j.logging.util.AdaptiveBatchSizer;
+import io.imaravic.log4j.logging.util.AdaptiveConcurrencyLimit;
+import io.imaravic.log4j.logging.util.BacklogQueue;
+import io.imaravic.log4j.logging.util.BufferPool;
+import io.imaravic.log4j.logging.util.DirectBufferArena;
 import io.imaravic.log4j.logging.util.GoogleCloudMetadata;
+import io.imaravic.log4j.logging.util.Http2Transport;
 import io.imaravic.log4j.logging.util.RetryHttpInitializerWrapper;
+import io.imaravic.log4j.logging.util.Utf8;
+import io.imaravic.log4j.logging.util.VirtualThreads;
 
 public class GoogleCloudLoggingManager extends AbstractManager {
   private static final String APPLICATION_NAME = "GoogleCloudLogging-Log4j2Appender";
@@ -52,14 +120,117 @@ public class GoogleCloudLoggingManager extends AbstractManager {
   private static final String APPENGINE_SERVICE_NAME = "appengine.googleapis.com";
   private static final String DATAFLOW_SERVICE_NAME = "dataflow.googleapis.com";
 
-  private List<LogEntry> logEntriesBuffer = Lists.newArrayList();
-  private final String googleCloudProjectId;
-  private final String googleCloudZone;
-  private final String googleCloudLogName;
-  private final String serviceName;
+  private static final String COMPUTE_RESOURCE_TYPE = "gce_instance";
+  private static final String APPENGINE_RESOURCE_TYPE = "gae_app";
+  private static final String DATAFLOW_RESOURCE_TYPE = "dataflow_step";
+
+  private static final String EXPIRED_ENTRIES_LABEL =
+      OversizedMessages.LABEL_PREFIX + "expired_entries";
+
+  private static final int HTTP_BAD_REQUEST = 400;
+  private static final int HTTP_REQUEST_TOO_LARGE = 413;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private static final String ENTRIES_WRITE_URI_TEMPLATE =
+      "projects/{projectsId}/logs/{logsId}/entries:write";
+  private static final String MBEAN_DOMAIN = "io.imaravic.log4j.logging";
+
+  // Rough size of the JSON field names and punctuation of a single entry,
+  // together with the insertId, timestamp and severity values
+  private static final int ENTRY_JSON_OVERHEAD_BYTES = 256;
+  private static final int MIN_ENCODED_ENTRY_BYTES = 512;
+  private static final int MAX_POOLED_ENCODED_ENTRY_BYTES = 64 * 1024;
+  private static final int MAX_POOLED_ENCODED_BYTES = 4 * 1024 * 1024;
+  private static final int ARENA_SLAB_BYTES = 1024 * 1024;
+  // The sequence numbers of a stripe start with its index, leaving 2^48 to every stripe
+  private static final int STRIPE_SEQUENCE_SHIFT = 48;
+  private static final int BOOTSTRAP_INITIAL_BACKOFF_MILLIS = 500;
+  private static final int BOOTSTRAP_MAX_BACKOFF_MILLIS = 60 * 1000;
+  private static final int RING_POLL_MILLIS = 100;
+  private static final int RING_FLUSH_INTERVAL_MILLIS = 1000;
+  private static final int MAX_RING_DRAIN_BYTES = 1024 * 1024;
+  private static final String LATENCY_LOGGER_NAME =
+      GoogleCloudLoggingManager.class.getName() + ".Latency";
+
+  // Logging threads stick to one stripe each, so their entries stay in order
+  private final BufferStripe[] stripes;
+  private final ThreadLocal<BufferStripe> threadStripe;
   private final GoogleCloudCredentials googleCloudCredentials;
-  private final Logging loggingClient;
-  private final ImmutableMap<String, String> commonLabels;
+  private final LoggingApi loggingApi;
+  private final LogSink sink;
+  // Set up by the bootstrap, which may need the metadata server and the network,
+  // and only read once it is done
+  private String googleCloudProjectId;
+  private String googleCloudZone;
+  private LogNameResolver logNameResolver;
+  private String serviceName;
+  private Logging loggingClient;
+  private ImmutableMap<String, String> commonLabels;
+  // The v2 counterpart of the service name and common labels
+  private LoggingV2.MonitoredResource monitoredResource;
+  private int entryMetadataBytes;
+  // Null unless the entries are written as lines of JSON for a logging agent
+  private JsonLinesWriter jsonLinesWriter;
+  // Null unless the entries are forwarded to a Fluentd or Fluent Bit aggregator
+  private FluentForwardClient forwardClient;
+  // Null unless the entries go through the ring shared by the JVMs of the host
+  private SharedRing sharedRing;
+  private ScheduledExecutorService ringDrainer;
+  private RingDrain ringDrain;
+  // Reused by the manager which takes over on a reconfiguration
+  private final HttpTransport transport;
+  private final GoogleCloudMetadata googleCloudMetadata;
+  private HttpTransport loggingTransport;
+  private Credential credential;
+  // As the manager got created with, before any live update
+  private final GoogleCloudLoggingSettings settings;
+  // Updated live on a reconfiguration
+  private volatile long maxBatchBytes;
+  private volatile int maxBisectionRequests;
+  // 0 when messages of any length are written as they are
+  private volatile int maxMessageBytes;
+  private volatile boolean splitOversizedMessages;
+  private volatile long shutdownTimeoutMillis;
+  // 0 when entries are sent however old they are
+  private volatile long maxEntryAgeMillis;
+  private volatile boolean summarizeExpiredEntries;
+  private final AdaptiveBatchSizer batchSizer;
+  // Shared with the manager which takes over on a reconfiguration
+  private final GoogleCloudLoggingMetrics metrics;
+  // Null when batches are sent by the logging threads themselves
+  private final ExecutorService sender;
+  private final InFlightPermits inFlightBatches;
+  private final Set<SettableFuture<Void>> inFlightSends =
+      Collections.newSetFromMap(new ConcurrentHashMap<SettableFuture<Void>, Boolean>());
+  // Null when every entry is batched
+  private final Level priorityLevel;
+  private final ExecutorService prioritySender;
+  // Null unless slow requests get hedged
+  private final RequestHedger hedger;
+  // Null unless the requests in flight follow the capacity of the API
+  private final AdaptiveConcurrencyLimit concurrencyLimit;
+  // Only set in the garbage free mode
+  private LogEntryJsonEncoder encoder;
+  private final ArrayDeque<LogEntryBatch> batchPool;
+  private final int maxPooledBatches;
+  private final AtomicInteger nextReleaseStripe = new AtomicInteger();
+  // Null when the manager got set up by its constructor
+  private final ScheduledExecutorService bootstrapper;
+  // Publishes the fields set up by the bootstrap, once the events which waited for it are written
+  private volatile boolean bootstrapped;
+  private final SettableFuture<Void> bootstrapDone = SettableFuture.create();
+  // Events appended before the bootstrap is done, guarded by the queue itself
+  private final ArrayDeque<LogEvent> pendingEvents = new ArrayDeque<LogEvent>();
+  private final int maxPendingEvents;
+  private boolean bootstrapAbandoned;
+  private ObjectName mbeanName;
+  private GoogleCloudLoggingMetricsBridge metricsBridge;
+  private ScheduledExecutorService latencyReporter;
+  // Guarded by the class, set by getManager
+  private ManagerConfig config;
+  private boolean replaced;
+  private GoogleCloudLoggingManager successor;
+  private int retainedReferences;
 
   @VisibleForTesting
   GoogleCloudLoggingManager(final String name,
@@ -68,19 +239,169 @@ public class GoogleCloudLoggingManager extends AbstractManager {
                             final GoogleCloudCredentials googleCloudCredentials,
                             final String googleCloudProjectId,
                             final String googleCloudZone,
-                            String googleCloudLogName,
+                            final String googleCloudLogName,
                             final String virtualMachineId,
                             final int maxRetryTimeMillis)
       throws GeneralSecurityException, IOException {
+    this(name,
+         transport,
+         googleCloudMetadata,
+         googleCloudCredentials,
+         googleCloudProjectId,
+         googleCloudZone,
+         googleCloudLogName,
+         virtualMachineId,
+         maxRetryTimeMillis,
+         GoogleCloudLoggingSettings.newBuilder().build());
+  }
+
+  @VisibleForTesting
+  GoogleCloudLoggingManager(final String name,
+                            final HttpTransport transport,
+                            final GoogleCloudMetadata googleCloudMetadata,
+                            final GoogleCloudCredentials googleCloudCredentials,
+                            final String googleCloudProjectId,
+                            final String googleCloudZone,
+                            final String googleCloudLogName,
+                            final String virtualMachineId,
+                            final int maxRetryTimeMillis,
+                            final GoogleCloudLoggingSettings settings)
+      throws GeneralSecurityException, IOException {
+    this(name,
+         transport,
+         googleCloudMetadata,
+         new ManagerConfig(googleCloudCredentials,
+                           googleCloudProjectId,
+                           googleCloudZone,
+                           googleCloudLogName,
+                           virtualMachineId,
+                           maxRetryTimeMillis,
+                           settings),
+         null,
+         false,
+         settings.getSink());
+  }
+
+  /**
+   * Creates a manager which takes over from the predecessor, if any, reusing its metrics,
+   * and its HTTP transport and credential where the settings allow for it.
+   *
+   * The bootstrap, which looks the instance up on the metadata server and sets up the
+   * credential, either runs right away, or in the background, in which case it is retried
+   * until it succeeds, and the events appended in the meantime wait for it.
+   * The entries are written to the given sink, whatever the settings say, so the manager
+   * draining the shared ring writes them to the API.
+   */
+  private GoogleCloudLoggingManager(final String name,
+                                    final HttpTransport transport,
+                                    final GoogleCloudMetadata googleCloudMetadata,
+                                    final ManagerConfig config,
+                                    final GoogleCloudLoggingManager predecessor,
+                                    final boolean bootstrapInBackground,
+                                    final LogSink sink)
+      throws GeneralSecurityException, IOException {
     super(name);
+    final GoogleCloudLoggingSettings settings = config.settings;
+    this.metrics = predecessor == null ? new GoogleCloudLoggingMetrics() : predecessor.metrics;
+    this.transport = transport;
+    this.googleCloudMetadata = googleCloudMetadata;
+    this.settings = settings;
+    this.googleCloudCredentials = config.googleCloudCredentials;
+    this.loggingApi = settings.getLoggingApi();
+    this.sink = sink;
+    Preconditions.checkArgument(sink != LogSink.FILE || settings.getSinkFile() != null,
+                                "A file sink needs the sinkFile to write to");
+    Preconditions.checkArgument(sink != LogSink.SHARED_RING || settings.getSharedRingFile() != null,
+                                "A shared ring sink needs the sharedRingFile to map");
+    this.batchSizer = new AdaptiveBatchSizer(settings.getMinBatchSize(),
+                                             settings.getMaxBatchSize(),
+                                             TimeUnit.MILLISECONDS.toNanos(
+                                                 settings.getBatchTargetLatencyMillis()));
+    applyLimits(settings);
+    this.sender = createSender(settings);
+    this.inFlightBatches = new InFlightPermits(settings.getMaxInFlightBatches());
+    this.priorityLevel = settings.getPriorityLevel();
+    this.prioritySender = priorityLevel == null ? null : createPrioritySender(settings);
+    this.hedger = settings.getHedgeLatencyPercentile() > 0 ? createHedger(settings) : null;
+    this.concurrencyLimit = settings.isAdaptiveConcurrency()
+                            ? new AdaptiveConcurrencyLimit(Math.max(1, settings.getSenderThreads()),
+                                                           settings.getMaxInFlightBatches())
+                            : null;
+    // The metrics may carry the limit of a predecessor, whose concurrency adapted on its own
+    metrics.concurrencyLimit = concurrencyLimit == null ? 0 : concurrencyLimit.getLimit();
+    // As many as the batches in flight hold
+    this.maxPendingEvents = Math.max(1, settings.getMaxBatchSize() * settings.getMaxInFlightBatches());
+
+    // Lines of JSON are always encoded at enqueue time, forwarded entries are encoded on sending
+    if (sink == LogSink.STDOUT || sink == LogSink.FILE ||
+        (sink == LogSink.API && (settings.isGarbageFree() || settings.getOffHeapArenaBytes() > 0))) {
+      this.batchPool = new ArrayDeque<LogEntryBatch>();
+      this.maxPooledBatches = settings.getMaxInFlightBatches() + 1;
+    } else {
+      this.batchPool = null;
+      this.maxPooledBatches = 0;
+    }
+
+    this.stripes = new BufferStripe[Math.max(1, settings.getBufferStripes())];
+    for (int i = 0; i < stripes.length; ++i) {
+      // Every stripe has an arena of its own, as an arena takes a single writer.
+      // Entries which don't fit into it any more fall back to the heap buffers,
+      // pooled per stripe too, so the logging threads don't share a lock
+      stripes[i] = new BufferStripe(i,
+                                    settings.getOffHeapArenaBytes() > 0
+                                    ? new DirectBufferArena(
+                                        settings.getOffHeapArenaBytes() / stripes.length,
+                                        ARENA_SLAB_BYTES)
+                                    : null,
+                                    batchPool != null
+                                    ? new BufferPool(MIN_ENCODED_ENTRY_BYTES,
+                                                     MAX_POOLED_ENCODED_ENTRY_BYTES,
+                                                     MAX_POOLED_ENCODED_BYTES / stripes.length)
+                                    : null);
+    }
+    final AtomicInteger nextStripe = new AtomicInteger();
+    this.threadStripe = new ThreadLocal<BufferStripe>() {
+      @Override
+      protected BufferStripe initialValue() {
+        return stripes[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+      }
+    };
 
-    this.googleCloudProjectId = getGoogleCloudProjectId(googleCloudProjectId, googleCloudMetadata);
-    this.googleCloudZone = getGoogleCloudZone(googleCloudZone, googleCloudMetadata);
+    if (bootstrapInBackground) {
+      this.bootstrapper = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("GoogleCloudLoggingManager-" + name + "-bootstrap")
+              .build());
+      bootstrapper.execute(new Bootstrap(config, predecessor));
+    } else {
+      this.bootstrapper = null;
+      bootstrap(config, predecessor);
+      bootstrapped = true;
+      bootstrapDone.set(null);
+    }
+  }
+
+  /**
+   * Sets up everything which takes the metadata server or the network. Can be run again
+   * after a failure, which leaves whatever got set up so far to be set up again.
+   */
+  private void bootstrap(final ManagerConfig config, final GoogleCloudLoggingManager predecessor)
+      throws GeneralSecurityException, IOException {
+    final GoogleCloudLoggingSettings settings = config.settings;
+    if (sink != LogSink.API) {
+      bootstrapAgentSink(config);
+      return;
+    }
+    String logNamePrefix = "";
+    this.googleCloudProjectId = getGoogleCloudProjectId(config.googleCloudProjectId,
+                                                        googleCloudMetadata);
+    this.googleCloudZone = getGoogleCloudZone(config.googleCloudZone, googleCloudMetadata);
 
     if (!googleCloudCredentials.usingComputeCredentials()) {
       serviceName = COMPUTE_SERVICE_NAME;
       commonLabels = getComputeServiceCommonLabels(
-          getVirtualMachineId(virtualMachineId, googleCloudMetadata));
+          getVirtualMachineId(config.virtualMachineId, googleCloudMetadata));
     } else {
       final List<String> machineAttributes =
           getMachineAttributes(googleCloudMetadata);
@@ -91,7 +412,7 @@ public class GoogleCloudLoggingManager extends AbstractManager {
         serviceName = APPENGINE_SERVICE_NAME;
 
         // Add a prefix to Appengine logs to prevent namespace collisions
-        googleCloudLogName = APPENGINE_SERVICE_NAME + "/" + googleCloudLogName;
+        logNamePrefix = APPENGINE_SERVICE_NAME + "/";
 
         commonLabelsBuilder.putAll(getAppengineServiceCommonLabels(googleCloudMetadata));
       } else if (machineAttributes.contains("job_id")) {
@@ -105,100 +426,1721 @@ public class GoogleCloudLoggingManager extends AbstractManager {
       if (!serviceName.equals(DATAFLOW_SERVICE_NAME)) {
         commonLabelsBuilder
             .putAll(getComputeServiceCommonLabels(
-                getVirtualMachineId(virtualMachineId, googleCloudMetadata)));
+                getVirtualMachineId(config.virtualMachineId, googleCloudMetadata)));
       }
       commonLabels = commonLabelsBuilder.build();
     }
 
-    this.googleCloudLogName = URLEncoder.encode(googleCloudLogName, "UTF-8");
-    this.googleCloudCredentials = googleCloudCredentials;
-    this.loggingClient = createLoggingClient(transport,
-                                             googleCloudCredentials,
-                                             maxRetryTimeMillis);
+    this.monitoredResource = getMonitoredResource(serviceName,
+                                                  commonLabels,
+                                                  this.googleCloudProjectId,
+                                                  this.googleCloudZone);
+    this.logNameResolver = new LogNameResolver(logNamePrefix,
+                                               config.googleCloudLogName,
+                                               settings.getLogNamePattern(),
+                                               settings.getLogNameCacheSize());
+    this.entryMetadataBytes = ENTRY_JSON_OVERHEAD_BYTES +
+                              Utf8.encodedLength(this.googleCloudProjectId) +
+                              Utf8.encodedLength(this.googleCloudZone) +
+                              Utf8.encodedLength(serviceName) +
+                              (googleCloudCredentials.getServiceAccountId() == null ? 0 :
+                               Utf8.encodedLength(googleCloudCredentials.getServiceAccountId()));
+    // A predecessor which never got set up has nothing to reuse
+    final boolean reusable = predecessor != null && predecessor.bootstrapped;
+    if (reusable &&
+        predecessor.transport == transport &&
+        predecessor.settings.isHttp2() == settings.isHttp2() &&
+        predecessor.settings.getRequestTimeoutMillis() == settings.getRequestTimeoutMillis()) {
+      this.loggingTransport = predecessor.loggingTransport;
+    } else {
+      this.loggingTransport = createLoggingTransport(transport, settings);
+    }
+    // A credential keeps its access token, so reusing it saves fetching a new one
+    if (reusable &&
+        predecessor.loggingTransport == loggingTransport &&
+        predecessor.googleCloudCredentials.equals(googleCloudCredentials)) {
+      this.credential = predecessor.credential;
+    } else {
+      this.credential = googleCloudCredentials.getCredential(loggingTransport,
+                                                             JacksonFactory.getDefaultInstance(),
+                                                             LoggingScopes.all());
+    }
+    this.loggingClient = createLoggingClient(loggingTransport,
+                                             credential,
+                                             config.maxRetryTimeMillis,
+                                             metrics.meteredSleeper(Sleeper.DEFAULT),
+                                             settings);
+
+    if (batchPool != null) {
+      this.encoder = loggingApi == LoggingApi.V2
+                     ? LogEntryJsonEncoder.forV2(JacksonFactory.getDefaultInstance(),
+                                                 UUID.randomUUID() + "-",
+                                                 this.googleCloudProjectId,
+                                                 monitoredResource)
+                     : new LogEntryJsonEncoder(JacksonFactory.getDefaultInstance(),
+                                               UUID.randomUUID() + "-",
+                                               this.googleCloudProjectId,
+                                               serviceName,
+                                               this.googleCloudZone,
+                                               googleCloudCredentials.getServiceAccountId(),
+                                               commonLabels);
+    }
+  }
+
+  /**
+   * Sets up writing the entries as lines of JSON, forwarding them, or appending them to the
+   * shared ring, which takes neither the metadata server nor a credential, as the logging
+   * agent, or the manager draining the ring, picking them up looks after both.
+   */
+  private void bootstrapAgentSink(final ManagerConfig config) throws IOException {
+    final GoogleCloudLoggingSettings settings = config.settings;
+    this.logNameResolver = new LogNameResolver("",
+                                               config.googleCloudLogName,
+                                               settings.getLogNamePattern(),
+                                               settings.getLogNameCacheSize());
+    this.entryMetadataBytes = ENTRY_JSON_OVERHEAD_BYTES;
+    if (sink == LogSink.FORWARD) {
+      this.forwardClient = new FluentForwardClient(settings.getForwardAddress(),
+                                                   settings.isForwardAcks(),
+                                                   settings.getRequestTimeoutMillis());
+    } else if (sink == LogSink.SHARED_RING) {
+      this.sharedRing = SharedRing.open(settings.getSharedRingFile(), settings.getSharedRingBytes());
+      this.ringDrain = new RingDrain(config);
+      this.ringDrainer = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("GoogleCloudLoggingManager-" + getName() + "-shared-ring")
+              .build());
+      ringDrainer.scheduleWithFixedDelay(ringDrain, 0, RING_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      this.encoder = LogEntryJsonEncoder.forJsonLines(UUID.randomUUID() + "-");
+      this.jsonLinesWriter = sink == LogSink.STDOUT
+                             ? JsonLinesWriter.toStdout()
+                             : JsonLinesWriter.toFile(settings.getSinkFile());
+    }
+  }
+
+  /**
+   * Opens a connection to the API, which also fetches an access token for the credential
+   * unless it has one, so the first batch doesn't wait for either of them.
+   * A failure is left for the first batch to run into, and retry.
+   */
+  private void prewarm() {
+    if (forwardClient != null) {
+      forwardClient.prewarm();
+    }
+    if (loggingClient == null) {
+      return;
+    }
+    try {
+      final HttpRequest request = loggingClient.getRequestFactory()
+          .buildGetRequest(new GenericUrl(loggingClient.getRootUrl()));
+      request.getHeaders().setUserAgent(loggingClient.getApplicationName());
+      request.setThrowExceptionOnExecuteError(false);
+      // Whatever the answer, the connection is open by then
+      request.setUnsuccessfulResponseHandler(null);
+      request.setIOExceptionHandler(null);
+      // Reading the response out leaves the connection to the next request
+      request.execute().ignore();
+    } catch (final IOException e) {
+      LOGGER.debug("GoogleCloudLoggingManager [{}] failed to connect ahead of the first batch",
+                   getName(), e);
+    }
+  }
+
+  /**
+   * Writes the events which waited for the bootstrap, in the order they got appended,
+   * and lets the events appended from then on through. Only run by the bootstrap thread.
+   */
+  private void writePendingEvents() {
+    while (true) {
+      final List<LogEvent> events;
+      synchronized (pendingEvents) {
+        if (pendingEvents.isEmpty()) {
+          bootstrapped = true;
+          break;
+        }
+        events = Lists.newArrayList(pendingEvents);
+        pendingEvents.clear();
+      }
+      for (final LogEvent event : events) {
+        try {
+          append(event);
+        } catch (final AppenderLoggingException e) {
+          LOGGER.error(e.getMessage(), e.getCause());
+        }
+      }
+    }
+    try {
+      flushAll();
+    } catch (final AppenderLoggingException e) {
+      LOGGER.error(e.getMessage(), e.getCause());
+    }
+    bootstrapDone.set(null);
+  }
+
+  /**
+   * Keeps a copy of the event until the bootstrap is done, unless it got done meanwhile.
+   * Once as many events as the batches in flight hold are waiting, the event is dropped.
+   */
+  private boolean awaitBootstrap(final LogEvent event) {
+    synchronized (pendingEvents) {
+      if (bootstrapped) {
+        return false;
+      }
+      if (!bootstrapAbandoned && pendingEvents.size() < maxPendingEvents) {
+        pendingEvents.add(copyOf(event));
+        return true;
+      }
+    }
+    metrics.entriesEnqueued.increment();
+    metrics.entriesDropped.increment();
+    return true;
+  }
+
+  /**
+   * Copies the event, as the events of asynchronous loggers are reused once appended.
+   * The message is formatted right away, as its parameters may change in the meantime.
+   */
+  private static LogEvent copyOf(final LogEvent event) {
+    final Log4jLogEvent copy = Log4jLogEvent.createEvent(
+        event.getLoggerName(),
+        event.getMarker(),
+        event.getLoggerFqcn(),
+        event.getLevel(),
+        new SimpleMessage(event.getMessage().getFormattedMessage()),
+        event.getThrown(),
+        event.getThrownProxy(),
+        event.getContextMap(),
+        event.getContextStack(),
+        event.getThreadName(),
+        null,
+        event.getTimeMillis());
+    copy.setEndOfBatch(event.isEndOfBatch());
+    return copy;
+  }
+
+  /**
+   * Gives up on a bootstrap which didn't get done by the deadline, dropping the events
+   * which waited for it, and any appended from now on.
+   */
+  private void abandonBootstrap(final long deadlineNanos) {
+    if (awaitDone(bootstrapDone, deadlineNanos)) {
+      bootstrapper.shutdown();
+      return;
+    }
+    bootstrapper.shutdownNow();
+    final int dropped;
+    synchronized (pendingEvents) {
+      bootstrapAbandoned = true;
+      dropped = pendingEvents.size();
+      pendingEvents.clear();
+    }
+    metrics.entriesEnqueued.add(dropped);
+    metrics.entriesDropped.add(dropped);
+    bootstrapDone.setException(new AppenderLoggingException(
+        "GoogleCloudLoggingManager [" + getName() + "] stopped before it got set up, " +
+        "dropping " + dropped + " entries"));
+  }
+
+  /**
+   * Returns the transport of the API requests, which shares HTTP/2 connections
+   * among the requests in flight if asked to, and the JVM supports it.
+   */
+  private HttpTransport createLoggingTransport(final HttpTransport transport,
+                                               final GoogleCloudLoggingSettings settings) {
+    if (!settings.isHttp2()) {
+      return transport;
+    }
+    final Http2Transport http2Transport =
+        Http2Transport.newTransport(settings.getRequestTimeoutMillis());
+    if (http2Transport != null) {
+      return http2Transport;
+    }
+    LOGGER.warn("HTTP/2 is not supported by this JVM, " +
+                "GoogleCloudLoggingManager [{}] sends over HTTP/1.1 instead", getName());
+    return transport;
+  }
+
+  private ExecutorService createSender(final GoogleCloudLoggingSettings settings) {
+    final String threadNamePrefix = "GoogleCloudLoggingManager-" + getName() + "-sender-";
+    switch (settings.getSenderMode()) {
+      case CALLER:
+        return null;
+      case VIRTUAL:
+        final ExecutorService virtualThreadSender =
+            VirtualThreads.newThreadPerTaskExecutor(threadNamePrefix);
+        if (virtualThreadSender != null) {
+          return virtualThreadSender;
+        }
+        LOGGER.warn("Virtual threads are not supported by this JVM, " +
+                    "GoogleCloudLoggingManager [{}] sends from {} platform threads instead",
+                    getName(), settings.getSenderThreads());
+        // Fall through
+      default:
+        return new ThreadPoolExecutor(settings.getSenderThreads(), settings.getSenderThreads(),
+                                      0, TimeUnit.MILLISECONDS,
+                                      new BacklogQueue<Runnable>(settings.getNewestFirstBacklogBatches()),
+                                      new ThreadFactoryBuilder()
+                                          .setDaemon(true)
+                                          .setNameFormat(threadNamePrefix + "%d")
+                                          .build());
+    }
+  }
+
+  /**
+   * A single thread of its own, so priority entries don't queue up behind the batches.
+   * Once its queue is full, priority entries are sent by the logging threads.
+   */
+  private ExecutorService createPrioritySender(final GoogleCloudLoggingSettings settings) {
+    return new ThreadPoolExecutor(1, 1,
+                                  0, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingQueue<Runnable>(settings.getMaxInFlightBatches()),
+                                  new ThreadFactoryBuilder()
+                                      .setDaemon(true)
+                                      .setNameFormat("GoogleCloudLoggingManager-" + getName() +
+                                                     "-priority-sender")
+                                      .build());
+  }
+
+  /**
+   * Requests and their duplicates are sent from threads of their own, so whichever gets
+   * its response first can return to the sender, while the other one is still waiting.
+   */
+  private RequestHedger createHedger(final GoogleCloudLoggingSettings settings) {
+    return new RequestHedger(metrics,
+                             settings.getHedgeLatencyPercentile(),
+                             settings.getMaxHedgedRequestsRatio(),
+                             Executors.newCachedThreadPool(
+                                 new ThreadFactoryBuilder()
+                                     .setDaemon(true)
+                                     .setNameFormat("GoogleCloudLoggingManager-" + getName() +
+                                                    "-request-%d")
+                                     .build()),
+                             new HedgeCapacity());
+  }
+
+  /**
+   * Applies the settings which can change while the manager runs.
+   */
+  private void applyLimits(final GoogleCloudLoggingSettings settings) {
+    maxBatchBytes = settings.getMaxBatchBytes();
+    maxBisectionRequests = settings.getMaxBisectionRequests();
+    maxMessageBytes = settings.getMaxMessageBytes() <= 0 ? 0 :
+        Math.max(OversizedMessages.MIN_MAX_MESSAGE_BYTES, settings.getMaxMessageBytes());
+    splitOversizedMessages = settings.isSplitOversizedMessages() && maxMessageBytes > 0;
+    shutdownTimeoutMillis = settings.getShutdownTimeoutMillis();
+    maxEntryAgeMillis = Math.max(0, settings.getMaxEntryAgeMillis());
+    summarizeExpiredEntries = settings.isSummarizeExpiredEntries();
+    metrics.trackTopLoggers(settings.getTopLoggers());
+    batchSizer.setLimits(settings.getMinBatchSize(),
+                         settings.getMaxBatchSize(),
+                         TimeUnit.MILLISECONDS.toNanos(settings.getBatchTargetLatencyMillis()));
+  }
+
+  /**
+   * Takes over the tuning of the new settings without pausing the logging threads:
+   * the limits apply to the batches filled from now on, and the sender threads and
+   * batches in flight are resized in place.
+   */
+  @VisibleForTesting
+  void updateSettings(final GoogleCloudLoggingSettings settings) {
+    applyLimits(settings);
+    inFlightBatches.resize(settings.getMaxInFlightBatches());
+    if (concurrencyLimit != null) {
+      concurrencyLimit.setMaxLimit(settings.getMaxInFlightBatches());
+    }
+    if (sender instanceof ThreadPoolExecutor) {
+      final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) sender;
+      final int senderThreads = Math.max(1, settings.getSenderThreads());
+      // The core size must never get larger than the maximum one
+      if (senderThreads > threadPool.getMaximumPoolSize()) {
+        threadPool.setMaximumPoolSize(senderThreads);
+        threadPool.setCorePoolSize(senderThreads);
+      } else {
+        threadPool.setCorePoolSize(senderThreads);
+        threadPool.setMaximumPoolSize(senderThreads);
+      }
+      ((BacklogQueue<Runnable>) threadPool.getQueue())
+          .setNewestFirstThreshold(settings.getNewestFirstBacklogBatches());
+    }
+  }
+
+  public GoogleCloudLoggingMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  public void write(final LogEvent event) {
+    if (!bootstrapped && awaitBootstrap(event)) {
+      return;
+    }
+    append(event);
+  }
+
+  private void append(final LogEvent event) {
+    if (priorityLevel != null && event.getLevel().isMoreSpecificThan(priorityLevel)) {
+      writePriority(event);
+    } else {
+      writeBatched(event);
+    }
+    if (event.isEndOfBatch()) {
+      flushAll();
+    }
+  }
+
+  private void writeBatched(final LogEvent event) {
+    final long enqueueStartNanos = System.nanoTime();
+    final String logName = logNameResolver.resolve(event);
+    final String batchLogName = getBatchLogName(logName);
+    final BufferStripe stripe = stripes.length == 1 ? stripes[0] : threadStripe.get();
+
+    LogEntryBatch fullBatch = null;
+    SettableFuture<Void> taken = null;
+    synchronized (stripe) {
+      LogEntryBatch logEntriesBuffer = stripe.logEntriesBuffers.get(batchLogName);
+      if (logEntriesBuffer == null) {
+        logEntriesBuffer = newBatch(batchLogName);
+        stripe.logEntriesBuffers.put(batchLogName, logEntriesBuffer);
+      }
+      addEntry(logEntriesBuffer, logName, event, stripe.arena, stripe,
+               sender != null, enqueueStartNanos);
+
+      if (!event.isEndOfBatch() &&
+          (logEntriesBuffer.size() >= batchSizer.getBatchSize() ||
+           logEntriesBuffer.getSizeInBytes() >= maxBatchBytes)) {
+        taken = registerTake();
+        stripe.logEntriesBuffers.remove(batchLogName);
+        fullBatch = logEntriesBuffer;
+      }
+    }
+    // Sent after letting go of the stripe, so its other threads can keep logging
+    if (fullBatch != null) {
+      dispatchTaken(Collections.singletonList(fullBatch), taken);
+    }
+  }
+
+  /**
+   * Sends the entry on its own right away from the priority sender,
+   * without going through the stripes of the batched entries.
+   */
+  private void writePriority(final LogEvent event) {
+    final long enqueueStartNanos = System.nanoTime();
+    final String logName = logNameResolver.resolve(event);
+    final LogEntryBatch entriesToWrite = newBatch(getBatchLogName(logName));
+    final BufferStripe stripe = stripes.length == 1 ? stripes[0] : threadStripe.get();
+    // An arena takes a single writer, the thread holding the lock of its stripe
+    addEntry(entriesToWrite, logName, event, null, stripe, true, enqueueStartNanos);
+    metrics.priorityEntries.increment();
+    sendInBackground(entriesToWrite, prioritySender, null);
+  }
+
+  /**
+   * Adds an entry drained from the shared ring, whose log name and severity got resolved
+   * by the JVM which appended it, the same way a logged event is. Only the prefix of the
+   * log name is left to this manager, which looked up where it runs.
+   */
+  private void writeDrained(final String drainedLogName,
+                            final String severity,
+                            final long timeMillis,
+                            final String text,
+                            final Map<String, String> labels) {
+    final long enqueueStartNanos = System.nanoTime();
+    final String logName = logNameResolver.prefixed(drainedLogName);
+    final String batchLogName = getBatchLogName(logName);
+    final BufferStripe stripe = stripes.length == 1 ? stripes[0] : threadStripe.get();
+
+    LogEntryBatch fullBatch = null;
+    SettableFuture<Void> taken = null;
+    synchronized (stripe) {
+      LogEntryBatch logEntriesBuffer = stripe.logEntriesBuffers.get(batchLogName);
+      if (logEntriesBuffer == null) {
+        logEntriesBuffer = newBatch(batchLogName);
+        stripe.logEntriesBuffers.put(batchLogName, logEntriesBuffer);
+      }
+      addText(logEntriesBuffer, logName, severity, timeMillis, stripe.arena, stripe,
+              text, 0, text.length(), labels, enqueueStartNanos);
+
+      if (logEntriesBuffer.size() >= batchSizer.getBatchSize() ||
+          logEntriesBuffer.getSizeInBytes() >= maxBatchBytes) {
+        taken = registerTake();
+        stripe.logEntriesBuffers.remove(batchLogName);
+        fullBatch = logEntriesBuffer;
+      }
+    }
+    if (fullBatch != null) {
+      dispatchTaken(Collections.singletonList(fullBatch), taken);
+    }
+  }
+
+  /**
+   * Returns the name of the log whose batch an entry of the given log goes to.
+   * A v2 request can carry the entries of every log, and so can the lines written
+   * for a logging agent and the records of the shared ring, so they all share a batch.
+   * A forwarded batch is tagged with the name of its log.
+   */
+  private String getBatchLogName(final String logName) {
+    return (sink == LogSink.API && loggingApi == LoggingApi.V2) ||
+           sink == LogSink.STDOUT || sink == LogSink.FILE || sink == LogSink.SHARED_RING
+           ? null : logName;
   }
 
-  public synchronized void write(final LogEvent event) {
-    final String logMsg = event.getMessage().getFormattedMessage();
-    final String timestamp = new DateTime(event.getTimeMillis(), 0).toStringRfc3339();
+  /**
+   * Adds the event to the batch. When the batch is going to be sent from a background
+   * thread, messages which can be formatted later are left for that thread to format.
+   * Messages longer than {@code maxMessageBytes} are truncated, or split into chunks.
+   */
+  private void addEntry(final LogEntryBatch logEntriesBuffer,
+                        final String logName,
+                        final LogEvent event,
+                        final DirectBufferArena arena,
+                        final BufferStripe stripe,
+                        final boolean sentInBackground,
+                        final long enqueueStartNanos) {
+    final Message message = event.getMessage();
     final String severity = log4j2LevelToCloudLoggingLevel(event.getLevel());
+    final int startEntries = logEntriesBuffer.size();
+    final long startBytes = logEntriesBuffer.getSizeInBytes();
+    // Chunks have to be cut from the formatted text right away
+    final boolean deferFormatting = sentInBackground && encoder == null &&
+                                    !splitOversizedMessages && DeferredMessages.canDefer(message);
+
+    if (deferFormatting) {
+      final LogEntry entry = newLogEntry(logName, severity, event.getTimeMillis(), null, null);
+      logEntriesBuffer.addDeferred(entry,
+                                   message,
+                                   entryMetadataBytes + Utf8.encodedLength(logName) +
+                                   DeferredMessages.estimateLength(message),
+                                   event.getTimeMillis(),
+                                   enqueueStartNanos);
+      metrics.entriesEnqueued.increment();
+    } else {
+      final String logMsg = message.getFormattedMessage();
+      final int messageEnd = OversizedMessages.fittingEnd(logMsg, maxMessageBytes);
+      if (messageEnd == logMsg.length()) {
+        addText(logEntriesBuffer, logName, severity, event.getTimeMillis(), arena, stripe,
+                logMsg, 0, messageEnd, null, enqueueStartNanos);
+      } else if (splitOversizedMessages) {
+        final int[] chunkEnds = OversizedMessages.chunkEnds(logMsg, messageEnd, maxMessageBytes);
+        final String chunkId = UuidUtil.getTimeBasedUuid().toString();
+        int chunkStart = 0;
+        for (int i = 0; i < chunkEnds.length; ++i) {
+          addText(logEntriesBuffer, logName, severity, event.getTimeMillis(), arena, stripe,
+                  logMsg, chunkStart, chunkEnds[i],
+                  OversizedMessages.chunkLabels(chunkId, i + 1, chunkEnds.length),
+                  enqueueStartNanos);
+          chunkStart = chunkEnds[i];
+        }
+        metrics.messagesSplit.increment();
+      } else {
+        addText(logEntriesBuffer, logName, severity, event.getTimeMillis(), arena, stripe,
+                logMsg, 0, messageEnd, OversizedMessages.TRUNCATED_LABELS, enqueueStartNanos);
+        metrics.messagesTruncated.increment();
+      }
+    }
+    metrics.recordLogger(event.getLoggerName(),
+                         event.getLevel().name(),
+                         logEntriesBuffer.size() - startEntries,
+                         logEntriesBuffer.getSizeInBytes() - startBytes);
+    metrics.enqueueLatency.record(System.nanoTime() - enqueueStartNanos);
+  }
+
+  /**
+   * Adds an entry whose text is the part of the message between {@code messageStart}
+   * and {@code messageEnd}, encoded right away in the garbage-free mode.
+   */
+  private void addText(final LogEntryBatch logEntriesBuffer,
+                       final String logName,
+                       final String severity,
+                       final long timeMillis,
+                       final DirectBufferArena arena,
+                       final BufferStripe stripe,
+                       final String message,
+                       final int messageStart,
+                       final int messageEnd,
+                       final Map<String, String> labels,
+                       final long enqueueStartNanos) {
+    if (encoder != null) {
+      final int encodedLength =
+          encoder.encodedLength(logName, severity, message, messageStart, messageEnd, labels);
+      ByteBuffer encodedEntry = arena == null ? null : arena.allocate(encodedLength);
+      if (encodedEntry == null) {
+        encodedEntry = acquireBuffer(stripe, encodedLength);
+      }
+      final int offset = encodedEntry.position();
+      encoder.encode(encodedEntry,
+                     stripe.nextSequence.getAndIncrement(),
+                     logName,
+                     severity,
+                     timeMillis,
+                     message,
+                     messageStart,
+                     messageEnd,
+                     labels);
+      logEntriesBuffer.addEncoded(encodedEntry,
+                                  offset,
+                                  encodedEntry.position() - offset,
+                                  timeMillis,
+                                  enqueueStartNanos);
+    } else {
+      final String text = messageStart == 0 && messageEnd == message.length() ?
+                          message : message.substring(messageStart, messageEnd);
+      logEntriesBuffer.add(newLogEntry(logName, severity, timeMillis, text, labels),
+                           entryMetadataBytes + Utf8.encodedLength(logName) +
+                           Utf8.encodedLength(text) + OversizedMessages.labelsLength(labels),
+                           timeMillis,
+                           enqueueStartNanos);
+    }
+    metrics.entriesEnqueued.increment();
+  }
+
+  /**
+   * Takes a heap buffer from the pool of the stripe, or else from the pools of the other
+   * stripes, as the buffers of the sent batches go back to the stripes in turn, whichever
+   * stripe filled them. Only allocates one if none of them pools a buffer to fit.
+   */
+  private ByteBuffer acquireBuffer(final BufferStripe stripe, final int capacity) {
+    ByteBuffer buffer = stripe.bufferPool.poll(capacity);
+    for (int i = 0; buffer == null && i < stripes.length; ++i) {
+      if (stripes[i] != stripe) {
+        buffer = stripes[i].bufferPool.poll(capacity);
+      }
+    }
+    return buffer != null ? buffer : stripe.bufferPool.acquire(capacity);
+  }
+
+  private LogEntry newLogEntry(final String logName,
+                               final String severity,
+                               final long timeMillis,
+                               final String text,
+                               final Map<String, String> labels) {
+    final String timestamp = new DateTime(timeMillis, 0).toStringRfc3339();
     final String insertId = UuidUtil.getTimeBasedUuid().toString();
 
     final LogEntry entry = new LogEntry();
     final LogEntryMetadata entryMetadata = new LogEntryMetadata();
 
-    entry.setTextPayload(logMsg)
-        .setLog(googleCloudLogName)
+    return entry.setTextPayload(text)
+        .setLog(logName)
         .setInsertId(insertId)
         .setMetadata(entryMetadata.setProjectId(googleCloudProjectId)
                          .setServiceName(serviceName)
                          .setSeverity(severity)
                          .setTimestamp(timestamp)
                          .setUserId(googleCloudCredentials.getServiceAccountId())
-                         .setZone(googleCloudZone));
-    logEntriesBuffer.add(entry);
+                         .setZone(googleCloudZone)
+                         .setLabels(labels));
+  }
 
-    if (event.isEndOfBatch()) {
-      final List<LogEntry> entriesToWrite = logEntriesBuffer;
-      logEntriesBuffer = Lists.newArrayList();
+  /**
+   * Sends the buffered entries of every log, and throws the first failure
+   * only after every log got its chance.
+   */
+  private void flushAll() {
+    final SettableFuture<Void> taken = registerTake();
+    dispatchTaken(harvest(), taken);
+  }
+
+  /**
+   * Registers a send in flight before batches are taken out of the stripes, so that
+   * a concurrent {@link #flush} which finds the stripes empty still waits for them,
+   * be they sent by the logging thread or waiting for a permit of the sender.
+   */
+  private SettableFuture<Void> registerTake() {
+    final SettableFuture<Void> taken = SettableFuture.create();
+    inFlightSends.add(taken);
+    return taken;
+  }
 
-      final WriteLogEntriesRequest writeLogEntriesRequest =
-          new WriteLogEntriesRequest().setEntries(entriesToWrite).setCommonLabels(commonLabels);
+  /**
+   * Sends the batches taken out of the stripes, completing the send registered by
+   * {@link #registerTake} once they are all sent. Throws the first failure
+   * only after every batch got its chance.
+   */
+  private void dispatchTaken(final Collection<LogEntryBatch> batches,
+                             final SettableFuture<Void> taken) {
+    final List<ListenableFuture<Void>> sends = Lists.newArrayList();
+    AppenderLoggingException failure = null;
+    try {
+      for (final LogEntryBatch entriesToWrite : batches) {
+        try {
+          sends.add(dispatch(entriesToWrite));
+        } catch (final AppenderLoggingException e) {
+          sends.add(Futures.<Void>immediateFailedFuture(e));
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    } finally {
+      completeTake(taken, sends);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void completeTake(final SettableFuture<Void> taken,
+                            final List<ListenableFuture<Void>> sends) {
+    Futures.addCallback(allDone(sends), new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(final Void result) {
+        inFlightSends.remove(taken);
+        taken.set(null);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        inFlightSends.remove(taken);
+        taken.setException(t);
+      }
+    });
+  }
+
+  /**
+   * Takes the buffered entries out of every stripe, and merges the entries of the same log
+   * into a single batch, the entries of each stripe kept together and in order.
+   */
+  private Collection<LogEntryBatch> harvest() {
+    if (stripes.length == 1) {
+      return stripes[0].takeBuffers().values();
+    }
+    final Map<String, LogEntryBatch> merged = Maps.newLinkedHashMap();
+    for (final BufferStripe stripe : stripes) {
+      for (final LogEntryBatch batch : stripe.takeBuffers().values()) {
+        final LogEntryBatch mergedBatch = merged.get(batch.getLogName());
+        if (mergedBatch == null) {
+          merged.put(batch.getLogName(), batch);
+        } else {
+          mergedBatch.addAll(batch);
+          // The entries moved over, so only the batch itself goes back to the pool
+          batch.reset(null);
+          returnBatch(batch);
+        }
+      }
+    }
+    return merged.values();
+  }
+
+  /**
+   * Sends the batch right away on the calling thread, or hands it over to the sender.
+   * Returns the future of the send, which is done already without a sender.
+   */
+  private ListenableFuture<Void> dispatch(final LogEntryBatch entriesToWrite) {
+    if (sender == null) {
       try {
-        writeToGoogleCloudLogging(writeLogEntriesRequest);
+        sendBatch(entriesToWrite);
       } catch (final IOException e) {
-        throw new AppenderLoggingException("Sending message to projectId " +
-                                           "\"" + googleCloudProjectId + "\" " +
-                                           "and logName \"" + googleCloudLogName + "\" failed", e);
+        throw sendFailure(entriesToWrite, e);
+      }
+      return Futures.immediateFuture(null);
+    }
+    return sendInBackground(entriesToWrite, sender, inFlightBatches);
+  }
+
+  /**
+   * Hands the batch over to the executor, after taking one of the permits, if any.
+   * Once the queue of the executor is full, the batch is sent on the calling thread.
+   */
+  private ListenableFuture<Void> sendInBackground(final LogEntryBatch entriesToWrite,
+                                                  final ExecutorService executor,
+                                                  final Semaphore permits) {
+    final SettableFuture<Void> sent = SettableFuture.create();
+    // Nobody is left to rethrow to, failed entries are already counted as dropped
+    Futures.addCallback(sent, new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(final Void result) {
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        LOGGER.error(t.getMessage(), t.getCause());
+      }
+    });
+
+    // Holds the logging threads back once too many batches are waiting for the API,
+    // instead of buffering an unbounded number of them
+    if (permits != null) {
+      permits.acquireUninterruptibly();
+    }
+    inFlightSends.add(sent);
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            send(entriesToWrite, sent);
+          } finally {
+            if (permits != null) {
+              permits.release();
+            }
+          }
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      if (permits != null) {
+        permits.release();
+      }
+      if (!executor.isShutdown()) {
+        send(entriesToWrite, sent);
+        return sent;
+      }
+      inFlightSends.remove(sent);
+      metrics.entriesDropped.add(entriesToWrite.size());
+      throw new AppenderLoggingException("GoogleCloudLoggingManager [" + getName() +
+                                         "] is stopped", e);
+    }
+    return sent;
+  }
+
+  private void send(final LogEntryBatch entriesToWrite, final SettableFuture<Void> sent) {
+    try {
+      sendBatch(entriesToWrite);
+      sent.set(null);
+    } catch (final IOException e) {
+      sent.setException(sendFailure(entriesToWrite, e));
+    } catch (final RuntimeException e) {
+      sent.setException(new AppenderLoggingException(e.getMessage(), e));
+    } finally {
+      inFlightSends.remove(sent);
+    }
+  }
+
+  /**
+   * Sends every buffered entry, and returns a future which completes once every entry
+   * enqueued before the call got acknowledged or failed for good. If any of them failed,
+   * the future fails with the first failure, but still only once all of them are done.
+   *
+   * Other threads keep logging while the entries are on their way. Without a background
+   * sender, the buffered entries are sent on the calling thread before this returns.
+   */
+  public ListenableFuture<Void> flush() {
+    if (!bootstrapped) {
+      // Also waits for the events appended before the bootstrap
+      return Futures.transform(bootstrapDone, new AsyncFunction<Void, Void>() {
+        @Override
+        public ListenableFuture<Void> apply(final Void bootstrapped) {
+          return flush();
+        }
+      });
+    }
+    final SettableFuture<Void> taken = registerTake();
+    final Collection<LogEntryBatch> batches = harvest();
+    // Every batch taken out of the stripes by now, by this call or any other,
+    // is covered by a send registered before it was taken
+    final List<ListenableFuture<Void>> pending = Lists.<ListenableFuture<Void>>newArrayList(
+        inFlightSends);
+    try {
+      dispatchTaken(batches, taken);
+    } catch (final AppenderLoggingException e) {
+      // Reported through the future of the flush
+    }
+    return allDone(pending);
+  }
+
+  private static ListenableFuture<Void> allDone(final List<ListenableFuture<Void>> futures) {
+    final SettableFuture<Void> done = SettableFuture.create();
+    Futures.successfulAsList(futures).addListener(new Runnable() {
+      @Override
+      public void run() {
+        for (final ListenableFuture<Void> future : futures) {
+          try {
+            Uninterruptibles.getUninterruptibly(future);
+          } catch (final ExecutionException e) {
+            done.setException(e.getCause());
+            return;
+          }
+        }
+        done.set(null);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return done;
+  }
+
+  private AppenderLoggingException sendFailure(final LogEntryBatch entries,
+                                               final IOException cause) {
+    if (sink != LogSink.API) {
+      return new AppenderLoggingException("Writing entries to " + getSinkName() + " failed", cause);
+    }
+    if (entries.getLogName() == null) {
+      return new AppenderLoggingException("Sending message to projectId " +
+                                          "\"" + googleCloudProjectId + "\" failed",
+                                          cause);
+    }
+    return new AppenderLoggingException("Sending message to projectId " +
+                                        "\"" + googleCloudProjectId + "\" " +
+                                        "and logName \"" + entries.getLogName() + "\" failed",
+                                        cause);
+  }
+
+  private String getSinkName() {
+    switch (sink) {
+      case STDOUT:
+        return "stdout";
+      case FILE:
+        return settings.getSinkFile();
+      case FORWARD:
+        return settings.getForwardAddress();
+      case SHARED_RING:
+        return settings.getSharedRingFile();
+      default:
+        return sink.name();
+    }
+  }
+
+  /**
+   * Sends the batch in as many requests as needed to keep every request
+   * within the current target batch size and the payload byte limit.
+   */
+  private void sendBatch(final LogEntryBatch entriesToWrite) throws IOException {
+    IOException failure = null;
+    try {
+      expire(entriesToWrite);
+      metrics.messagesTruncated.add(entriesToWrite.formatDeferred(maxMessageBytes));
+      final BisectionBudget bisectionBudget = new BisectionBudget(maxBisectionRequests);
+      int from = 0;
+      while (from < entriesToWrite.size()) {
+        final int to = entriesToWrite.chunkEnd(from, batchSizer.getBatchSize(), maxBatchBytes);
+        try {
+          sendChunk(entriesToWrite.subBatch(from, to), bisectionBudget);
+        } catch (final IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+        from = to;
+      }
+    } finally {
+      recycle(entriesToWrite);
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Drops the entries of the batch older than {@code maxEntryAgeMillis}, so that after an
+   * outage the API isn't flooded with stale entries, and the fresh ones get through sooner.
+   * If asked to, a single entry counting the dropped ones takes their place.
+   */
+  private void expire(final LogEntryBatch batch) {
+    final long maxEntryAgeMillis = this.maxEntryAgeMillis;
+    if (maxEntryAgeMillis == 0) {
+      return;
+    }
+    final long nowMillis = System.currentTimeMillis();
+    final long minEventTimeMillis = nowMillis - maxEntryAgeMillis;
+    final BufferStripe releaseStripe = releaseStripe();
+    int expired = 0;
+    long oldestMillis = Long.MAX_VALUE;
+    long newestMillis = Long.MIN_VALUE;
+    for (int i = 0; i < batch.size(); ++i) {
+      final long eventTimeMillis = batch.getEventTimeMillis(i);
+      if (eventTimeMillis < minEventTimeMillis) {
+        ++expired;
+        oldestMillis = Math.min(oldestMillis, eventTimeMillis);
+        newestMillis = Math.max(newestMillis, eventTimeMillis);
+        if (batch.isEncoded()) {
+          releaseEncoded(batch.getEncodedEntry(i), releaseStripe.bufferPool);
+        }
+      }
+    }
+    if (expired == 0) {
+      return;
+    }
+    batch.removeOlderThan(minEventTimeMillis);
+    metrics.entriesExpired.add(expired);
+    metrics.entriesDropped.add(expired);
+
+    if (summarizeExpiredEntries) {
+      final String logName = batch.getLogName() != null
+                             ? batch.getLogName()
+                             : logNameResolver.getDefaultLogName();
+      final String text = expired + " entries older than " + maxEntryAgeMillis +
+                          " ms were dropped, logged from " +
+                          new DateTime(oldestMillis, 0).toStringRfc3339() + " to " +
+                          new DateTime(newestMillis, 0).toStringRfc3339();
+      addText(batch, logName, log4j2LevelToCloudLoggingLevel(Level.WARN), nowMillis,
+              null, releaseStripe, text, 0, text.length(),
+              ImmutableMap.of(EXPIRED_ENTRIES_LABEL, Integer.toString(expired)),
+              System.nanoTime());
+    }
+  }
+
+  private LogEntryBatch newBatch(final String logName) {
+    if (batchPool != null) {
+      final LogEntryBatch batch;
+      synchronized (batchPool) {
+        batch = batchPool.poll();
+      }
+      if (batch != null) {
+        batch.reset(logName);
+        return batch;
+      }
+    }
+    return new LogEntryBatch(logName);
+  }
+
+  /**
+   * Hands the encoded entries and the batch itself back to their pools,
+   * once the batch got acknowledged or failed for good.
+   */
+  private void recycle(final LogEntryBatch batch) {
+    if (batchPool == null) {
+      return;
+    }
+    final BufferPool bufferPool = releaseStripe().bufferPool;
+    for (int i = 0; i < batch.size(); ++i) {
+      releaseEncoded(batch.getEncodedEntry(i), bufferPool);
+    }
+    batch.reset(null);
+    returnBatch(batch);
+  }
+
+  /**
+   * Returns the stripe whose pool the heap buffers of a batch go back to. The batches are
+   * filled on the stripes of the logging threads, so the stripes take the buffers back in turn.
+   */
+  private BufferStripe releaseStripe() {
+    if (stripes.length == 1) {
+      return stripes[0];
+    }
+    return stripes[(nextReleaseStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  private void releaseEncoded(final ByteBuffer encodedEntry, final BufferPool bufferPool) {
+    if (encodedEntry.isDirect()) {
+      releaseToArena(encodedEntry);
+    } else {
+      bufferPool.release(encodedEntry);
+    }
+  }
+
+  private void returnBatch(final LogEntryBatch batch) {
+    if (batchPool == null) {
+      return;
+    }
+    synchronized (batchPool) {
+      if (batchPool.size() < maxPooledBatches) {
+        batchPool.push(batch);
+      }
+    }
+  }
+
+  private void releaseToArena(final ByteBuffer slab) {
+    for (final BufferStripe stripe : stripes) {
+      if (stripe.arena.owns(slab)) {
+        stripe.arena.release(slab);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sends the chunk in a single request. A chunk rejected because of its size or its entries
+   * is split in halves, which are sent on their own, for as long as the budget allows, so the
+   * valid entries get through, and the entries rejected on their own are quarantined.
+   */
+  private void sendChunk(final LogEntryBatch chunk, final BisectionBudget bisectionBudget)
+      throws IOException {
+    final long sendStartNanos = System.nanoTime();
+    try {
+      if (jsonLinesWriter != null) {
+        metrics.bytesSent.add(jsonLinesWriter.write(chunk));
+      } else if (forwardClient != null) {
+        metrics.bytesSent.add(forwardClient.send(chunk.getLogName(), chunk));
+      } else if (sharedRing != null) {
+        metrics.bytesSent.add(sharedRing.append(chunk));
+      } else if (chunk.isEncoded()) {
+        writeEncodedToGoogleCloudLogging(chunk);
+      } else if (loggingApi == LoggingApi.V2) {
+        writeToGoogleCloudLoggingV2(LoggingV2.newWriteRequest(googleCloudProjectId,
+                                                              monitoredResource,
+                                                              chunk.getEntries()));
+      } else {
+        writeToGoogleCloudLogging(new WriteLogEntriesRequest().setEntries(chunk.getEntries())
+                                      .setCommonLabels(commonLabels));
       }
+    } catch (final IOException e) {
+      final SortedMap<Integer, String> rejectedEntries = getRejectedEntries(e);
+      if (rejectedEntries != null) {
+        onPartialSuccess(chunk, rejectedEntries, sendStartNanos);
+        throw new IOException(rejectedEntries.size() + " of " + chunk.size() +
+                              " entries were rejected, the first one with: " +
+                              rejectedEntries.get(rejectedEntries.firstKey()), e);
+      }
+      metrics.requestFailures.increment();
+      if (isOverloadSignal(e)) {
+        batchSizer.onOverload();
+      }
+      if (isSplittable(e) && chunk.size() > 1 && bisectionBudget.take()) {
+        // Either the size estimate fell short, or some of the entries are bad,
+        // retry both halves on their own
+        final int half = chunk.size() / 2;
+        metrics.bisectionRequests.add(2);
+        IOException failure = null;
+        try {
+          sendChunk(chunk.subBatch(0, half), bisectionBudget);
+        } catch (final IOException firstHalfFailure) {
+          failure = firstHalfFailure;
+        }
+        try {
+          sendChunk(chunk.subBatch(half, chunk.size()), bisectionBudget);
+        } catch (final IOException secondHalfFailure) {
+          if (failure == null) {
+            failure = secondHalfFailure;
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        return;
+      }
+      if (isBadRequest(e) && chunk.size() == 1) {
+        metrics.entriesQuarantined.increment();
+        LOGGER.warn("GoogleCloudLoggingManager [{}] quarantined an entry rejected by the API: {}",
+                    getName(), e.getMessage());
+      }
+      metrics.entriesDropped.add(chunk.size());
+      throw e;
+    }
+    batchSizer.onSuccess(chunk.size(), System.nanoTime() - sendStartNanos);
+    metrics.batchesSent.increment();
+    metrics.entriesSent.add(chunk.size());
+    metrics.batchSize.record(chunk.size());
+    metrics.recordAcknowledged(chunk, sendStartNanos, System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the errors of the rejected entries of a v2 request which got the rest of its
+   * entries written, or null if the failure is not a partial success.
+   */
+  private SortedMap<Integer, String> getRejectedEntries(final IOException e) {
+    if (loggingApi != LoggingApi.V2 || !(e instanceof HttpResponseException)) {
+      return null;
     }
+    return LoggingV2.getRejectedEntries(loggingClient.getJsonFactory(), (HttpResponseException) e);
+  }
+
+  /**
+   * Accounts for the written entries of the chunk as acknowledged, and for the rejected
+   * ones as dropped. Neither of them is sent again.
+   */
+  private void onPartialSuccess(final LogEntryBatch chunk,
+                                final SortedMap<Integer, String> rejectedEntries,
+                                final long sendStartNanos) {
+    final int written = chunk.size() - rejectedEntries.size();
+    batchSizer.onSuccess(chunk.size(), System.nanoTime() - sendStartNanos);
+    metrics.batchesSent.increment();
+    metrics.entriesSent.add(written);
+    metrics.entriesDropped.add(rejectedEntries.size());
+    metrics.batchSize.record(chunk.size());
+    final long ackTimeMillis = System.currentTimeMillis();
+    int from = 0;
+    for (final int rejected : rejectedEntries.keySet()) {
+      if (rejected > from) {
+        metrics.recordAcknowledged(chunk.subBatch(from, rejected), sendStartNanos, ackTimeMillis);
+      }
+      from = rejected + 1;
+    }
+    if (from < chunk.size()) {
+      metrics.recordAcknowledged(chunk.subBatch(from, chunk.size()), sendStartNanos, ackTimeMillis);
+    }
+  }
+
+  /**
+   * Returns whether the failure can be down to some of the entries of the request,
+   * either their size, or their content, so that a part of them may get through.
+   */
+  private static boolean isSplittable(final IOException e) {
+    return isBadRequest(e) || isRequestTooLarge(e);
   }
 
+  private static boolean isRequestTooLarge(final IOException e) {
+    return e instanceof HttpResponseException &&
+           ((HttpResponseException) e).getStatusCode() == HTTP_REQUEST_TOO_LARGE;
+  }
+
+  private static boolean isBadRequest(final IOException e) {
+    return e instanceof HttpResponseException &&
+           ((HttpResponseException) e).getStatusCode() == HTTP_BAD_REQUEST;
+  }
+
+  private static boolean isOverloadSignal(final IOException e) {
+    return isConcurrencyOverloadSignal(e) || isRequestTooLarge(e);
+  }
+
+  /**
+   * Whether the server is overloaded by the number of requests, rather than by their size,
+   * which is all the adaptive concurrency limit cares about.
+   */
+  private static boolean isConcurrencyOverloadSignal(final IOException e) {
+    return e instanceof SocketTimeoutException ||
+           (e instanceof HttpResponseException &&
+            isOverloadStatus(((HttpResponseException) e).getStatusCode()));
+  }
+
+  private static boolean isOverloadStatus(final int statusCode) {
+    return statusCode == HTTP_TOO_MANY_REQUESTS ||
+           statusCode == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE;
+  }
+
+  /**
+   * Serializes the request up front, instead of letting the client stream it,
+   * so the serialization cost and the size of the request can be measured
+   * apart from the HTTP round trip.
+   * All the entries of the request belong to the same log.
+   */
   @VisibleForTesting
   void writeToGoogleCloudLogging(final WriteLogEntriesRequest writeLogEntriesRequest)
       throws IOException {
-    loggingClient.projects()
-        .logs()
-        .entries()
-        .write(googleCloudProjectId,
-               googleCloudLogName,
-               writeLogEntriesRequest)
-        .execute();
+    final long serializeStartNanos = System.nanoTime();
+    final byte[] content = loggingClient.getJsonFactory().toByteArray(writeLogEntriesRequest);
+    metrics.serializeLatency.record(System.nanoTime() - serializeStartNanos);
+
+    post(getEntriesWriteUrl(writeLogEntriesRequest.getEntries().get(0).getLog()),
+         new ByteArrayContent(Json.MEDIA_TYPE, content));
+  }
+
+  /**
+   * Same as {@link #writeToGoogleCloudLogging}, for the v2 API, whose requests
+   * can carry the entries of any number of logs.
+   */
+  @VisibleForTesting
+  void writeToGoogleCloudLoggingV2(final LoggingV2.WriteRequest writeRequest) throws IOException {
+    final long serializeStartNanos = System.nanoTime();
+    final byte[] content = loggingClient.getJsonFactory().toByteArray(writeRequest);
+    metrics.serializeLatency.record(System.nanoTime() - serializeStartNanos);
+
+    post(getEntriesWriteUrlV2(), new ByteArrayContent(Json.MEDIA_TYPE, content));
+  }
+
+  /**
+   * Sends entries encoded at enqueue time, gathering the request body straight from them.
+   */
+  @VisibleForTesting
+  void writeEncodedToGoogleCloudLogging(final LogEntryBatch chunk) throws IOException {
+    final String url = loggingApi == LoggingApi.V2
+                       ? getEntriesWriteUrlV2()
+                       : getEntriesWriteUrl(chunk.getLogName());
+    post(url, new EncodedEntriesContent(encoder, chunk));
+  }
+
+  /**
+   * Posts the content, once fewer requests than the adaptive limit are in flight, if any,
+   * which then learns from the round trip time of the request, or from the overload it hit.
+   * The time spent backing off between retries isn't part of the round trip time.
+   */
+  private void post(final String url, final HttpContent content) throws IOException {
+    final int inFlightAtStart = concurrencyLimit == null ? 0 : concurrencyLimit.acquire();
+    final AtomicLong backoffNanos = new AtomicLong();
+    final long httpStartNanos = System.nanoTime();
+    boolean overloaded = false;
+    try {
+      if (hedger == null) {
+        newPostRequest(url, content, backoffNanos).execute().ignore();
+      } else {
+        // A request which lost the race may still be reading its body once the batch is
+        // recycled, so entries encoded into pooled buffers are copied out first
+        final HttpContent body = content instanceof EncodedEntriesContent
+                                 ? new ByteArrayContent(Json.MEDIA_TYPE, toByteArray(content))
+                                 : content;
+        hedger.execute(new Callable<HttpResponse>() {
+          @Override
+          public HttpResponse call() throws IOException {
+            return newPostRequest(url, body, backoffNanos).execute();
+          }
+        }).ignore();
+      }
+    } catch (final IOException e) {
+      overloaded = isConcurrencyOverloadSignal(e);
+      throw e;
+    } finally {
+      final long httpLatencyNanos = System.nanoTime() - httpStartNanos;
+      metrics.httpLatency.record(httpLatencyNanos);
+      if (concurrencyLimit != null) {
+        concurrencyLimit.release(inFlightAtStart,
+                                 Math.max(0, httpLatencyNanos - backoffNanos.get()),
+                                 overloaded);
+        metrics.concurrencyLimit = concurrencyLimit.getLimit();
+      }
+    }
+    metrics.bytesSent.add(content.getLength());
+  }
+
+  private HttpRequest newPostRequest(final String url,
+                                     final HttpContent content,
+                                     final AtomicLong backoffNanos) throws IOException {
+    final HttpRequest request = loggingClient.getRequestFactory()
+        .buildPostRequest(new GenericUrl(url), content);
+    request.getHeaders().setUserAgent(loggingClient.getApplicationName());
+    // Compressed the same way the generated client compresses its requests
+    request.setEncoding(new GZipEncoding());
+    if (concurrencyLimit != null) {
+      meterRetries(request, backoffNanos);
+    }
+    return request;
+  }
+
+  /**
+   * Wraps the retry handlers of the request, which retry within {@code execute()}, so the
+   * adaptive limit hears of every throttled attempt, and the time they back off is counted.
+   */
+  private void meterRetries(final HttpRequest request, final AtomicLong backoffNanos) {
+    final HttpUnsuccessfulResponseHandler responseHandler =
+        request.getUnsuccessfulResponseHandler();
+    request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+      @Override
+      public boolean handleResponse(final HttpRequest request,
+                                    final HttpResponse response,
+                                    final boolean supportsRetry) throws IOException {
+        if (isOverloadStatus(response.getStatusCode())) {
+          concurrencyLimit.onOverload();
+        }
+        if (responseHandler == null) {
+          return false;
+        }
+        final long startNanos = System.nanoTime();
+        try {
+          return responseHandler.handleResponse(request, response, supportsRetry);
+        } finally {
+          backoffNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+      }
+    });
+    final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+    if (ioExceptionHandler != null) {
+      request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+        @Override
+        public boolean handleIOException(final HttpRequest request, final boolean supportsRetry)
+            throws IOException {
+          final long startNanos = System.nanoTime();
+          try {
+            return ioExceptionHandler.handleIOException(request, supportsRetry);
+          } finally {
+            backoffNanos.addAndGet(System.nanoTime() - startNanos);
+          }
+        }
+      });
+    }
+  }
+
+  private static byte[] toByteArray(final HttpContent content) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream((int) content.getLength());
+    content.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private String getEntriesWriteUrl(final String logName) {
+    return UriTemplate.expand(loggingClient.getBaseUrl(),
+                              ENTRIES_WRITE_URI_TEMPLATE,
+                              ImmutableMap.of("projectsId", googleCloudProjectId,
+                                              "logsId", logName),
+                              false);
+  }
+
+  private String getEntriesWriteUrlV2() {
+    return loggingClient.getRootUrl() + LoggingV2.ENTRIES_WRITE_PATH;
+  }
+
+  private void registerMetrics(final GoogleCloudLoggingSettings settings) {
+    if (settings.isRegisterMBean()) {
+      try {
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName =
+            new ObjectName(MBEAN_DOMAIN + ":type=GoogleCloudLoggingManager,name=" +
+                           ObjectName.quote(getName()));
+        if (mbeanServer.isRegistered(objectName)) {
+          mbeanServer.unregisterMBean(objectName);
+        }
+        mbeanServer.registerMBean(metrics, objectName);
+        mbeanName = objectName;
+      } catch (final JMException e) {
+        LOGGER.warn("Failed to register metrics MBean of GoogleCloudLoggingManager [{}]",
+                    getName(), e);
+      }
+    }
+
+    if (settings.getMetricsBridgeClassName() != null) {
+      try {
+        metricsBridge = Loader.newCheckedInstanceOf(settings.getMetricsBridgeClassName(),
+                                                    GoogleCloudLoggingMetricsBridge.class);
+        metricsBridge.register(getName(), metrics);
+      } catch (final Exception e) {
+        LOGGER.warn("Failed to register metrics of GoogleCloudLoggingManager [{}] with {}",
+                    getName(), settings.getMetricsBridgeClassName(), e);
+        metricsBridge = null;
+      }
+    }
+  }
+
+  private void startLatencyReporter(final GoogleCloudLoggingSettings settings) {
+    final int intervalSeconds = settings.getLatencyReportIntervalSeconds();
+    if (intervalSeconds > 0) {
+      latencyReporter = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("GoogleCloudLoggingManager-" + getName() + "-latency-reporter")
+              .build());
+      latencyReporter.scheduleAtFixedRate(
+          metrics.newLatencyReporter(getName(), LogManager.getLogger(LATENCY_LOGGER_NAME)),
+          intervalSeconds,
+          intervalSeconds,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Releases a reference to the manager. Once a manager got replaced on a reconfiguration,
+   * the release of its last reference sends the entries it still has with its own
+   * configuration, and makes the manager which took over wait for them, instead of
+   * waiting for them itself.
+   */
+  @Override
+  public void release() {
+    synchronized (GoogleCloudLoggingManager.class) {
+      if (!replaced) {
+        super.release();
+        return;
+      }
+      // Already flushed once the last reference got released
+      if (retainedReferences == 0 || --retainedReferences > 0) {
+        return;
+      }
+    }
+    flushAndRetire();
+  }
+
+  @Override
+  protected void releaseSub() {
+    if (replaced) {
+      // The references of the previous configuration are released later on
+      return;
+    }
+    if (bootstrapper != null) {
+      abandonBootstrap(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis));
+    }
+    final ListenableFuture<Void> flushed = flush();
+    if (sender == null) {
+      try {
+        Uninterruptibles.getUninterruptibly(flushed);
+      } catch (final ExecutionException e) {
+        LOGGER.error("Failed to send the remaining entries of GoogleCloudLoggingManager [{}]",
+                     getName(), e.getCause());
+      }
+    }
+    final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+    // Also waits for the entries of the managers this one replaced
+    if (!awaitTermination(sender, deadlineNanos) | !awaitTermination(prioritySender, deadlineNanos) |
+        !awaitDone(flushed, deadlineNanos)) {
+      LOGGER.warn("GoogleCloudLoggingManager [{}] stopped with {} entries still pending",
+                  getName(), metrics.getPendingEntries());
+    }
+    if (hedger != null) {
+      hedger.shutdown();
+    }
+    closeSink();
+    if (latencyReporter != null) {
+      latencyReporter.shutdownNow();
+      latencyReporter = null;
+    }
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (final JMException e) {
+        LOGGER.warn("Failed to unregister metrics MBean {}", mbeanName, e);
+      }
+      mbeanName = null;
+    }
+    if (metricsBridge != null) {
+      metricsBridge.unregister(getName());
+      metricsBridge = null;
+    }
+  }
+
+  /**
+   * Sends the entries this manager still has, and makes the successor wait for them on
+   * its flushes and its release. The sender threads of this manager stop once they are done.
+   */
+  private void flushAndRetire() {
+    final ListenableFuture<Void> flushed = flush();
+    successor.awaitPredecessor(flushed);
+    flushed.addListener(new Runnable() {
+      @Override
+      public void run() {
+        retire();
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Counts the flush of a replaced manager in with the sends in flight, so the flushes
+   * and the release of this manager wait for the entries the replaced one still sends.
+   */
+  private void awaitPredecessor(final ListenableFuture<Void> predecessorFlushed) {
+    final SettableFuture<Void> awaited = SettableFuture.create();
+    inFlightSends.add(awaited);
+    predecessorFlushed.addListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Uninterruptibles.getUninterruptibly(predecessorFlushed);
+          awaited.set(null);
+        } catch (final ExecutionException e) {
+          awaited.setException(e.getCause());
+        } finally {
+          inFlightSends.remove(awaited);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Stops the threads of a replaced manager. The metrics are shared with the successor,
+   * so they are only unregistered if the successor doesn't publish them the same way.
+   */
+  private void retire() {
+    if (bootstrapper != null) {
+      bootstrapper.shutdown();
+    }
+    if (sender != null) {
+      sender.shutdown();
+    }
+    if (prioritySender != null) {
+      prioritySender.shutdown();
+    }
+    if (hedger != null) {
+      hedger.shutdown();
+    }
+    closeSink();
+    if (latencyReporter != null) {
+      latencyReporter.shutdownNow();
+      latencyReporter = null;
+    }
+    if (mbeanName != null && successor.mbeanName == null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (final JMException e) {
+        LOGGER.warn("Failed to unregister metrics MBean {}", mbeanName, e);
+      }
+    }
+    mbeanName = null;
+    if (metricsBridge != null &&
+        (successor.metricsBridge == null ||
+         successor.metricsBridge.getClass() != metricsBridge.getClass())) {
+      metricsBridge.unregister(getName());
+    }
+    metricsBridge = null;
+  }
+
+  private void closeSink() {
+    if (sharedRing != null) {
+      closeSharedRing();
+    }
+    if (forwardClient != null) {
+      forwardClient.close();
+    }
+    if (jsonLinesWriter != null) {
+      try {
+        jsonLinesWriter.close();
+      } catch (final IOException e) {
+        LOGGER.warn("Failed to close the sink of GoogleCloudLoggingManager [{}]", getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Stops draining the shared ring, once the entries it still holds are handed over to the
+   * manager writing them to the API, and lets another JVM of the host take over from here.
+   */
+  private void closeSharedRing() {
+    if (ringDrainer != null) {
+      ringDrainer.shutdown();
+      awaitTermination(ringDrainer,
+                       System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis));
+    }
+    if (ringDrain != null) {
+      ringDrain.close();
+    }
+    try {
+      sharedRing.close();
+    } catch (final IOException e) {
+      LOGGER.warn("Failed to close the shared ring of GoogleCloudLoggingManager [{}]", getName(), e);
+    }
+  }
+
+  private static boolean awaitDone(final ListenableFuture<Void> future, final long deadlineNanos) {
+    try {
+      Uninterruptibles.getUninterruptibly(future,
+                                          deadlineNanos - System.nanoTime(),
+                                          TimeUnit.NANOSECONDS);
+      return true;
+    } catch (final ExecutionException e) {
+      return true;
+    } catch (final TimeoutException e) {
+      return false;
+    }
   }
 
+  /**
+   * Shuts the executor down, and returns whether it terminated by the deadline.
+   */
+  private static boolean awaitTermination(final ExecutorService executor, final long deadlineNanos) {
+    if (executor == null) {
+      return true;
+    }
+    executor.shutdown();
+    try {
+      return executor.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Returns the manager of the given name, which the appenders of every configuration share.
+   *
+   * On a reconfiguration, the manager of the previous configuration takes over changes of
+   * its tuning settings live. Any other change gets a new manager, which reuses the HTTP
+   * transport, the instance metadata and the credential of the previous one where possible.
+   * Once the appenders of the previous configuration release it, the previous manager sends
+   * its buffered and in-flight entries with the previous configuration, and the new one
+   * waits for them.
+   */
   public static GoogleCloudLoggingManager getManager(final String name,
                                                      final GoogleCloudCredentials googleCloudCredentials,
                                                      final String googleCloudProjectId,
                                                      final String googleCloudZone,
                                                      final String googleCloudLogName,
                                                      final String virtualMachineId,
-                                                     final int maxRetryTimeMillis) {
-    return AbstractManager.getManager(
-        name,
+                                                     final int maxRetryTimeMillis,
+                                                     final GoogleCloudLoggingSettings settings) {
+    return getManager(name,
+                      null,
+                      null,
+                      new ManagerConfig(googleCloudCredentials,
+                                        googleCloudProjectId,
+                                        googleCloudZone,
+                                        googleCloudLogName,
+                                        virtualMachineId,
+                                        maxRetryTimeMillis,
+                                        settings));
+  }
+
+  /**
+   * Returns the manager of the given name, creating it with the given transport and metadata,
+   * unless it takes over from another manager, or the default ones if they are null.
+   */
+  @VisibleForTesting
+  static GoogleCloudLoggingManager getManager(final String name,
+                                              final HttpTransport transport,
+                                              final GoogleCloudMetadata googleCloudMetadata,
+                                              final ManagerConfig config) {
+    synchronized (GoogleCloudLoggingManager.class) {
+      final GoogleCloudLoggingManager current = AbstractManager.getManager(
+          name, FACTORY, new FactoryData(config, transport, googleCloudMetadata, null));
+      if (current == null || current.config == config) {
+        return current;
+      }
+      if (current.config.isLiveUpdatableTo(config)) {
+        current.updateSettings(config.settings);
+        current.config = config;
+        return current;
+      }
+      return current.replace(config);
+    }
+  }
+
+  /**
+   * Hands the name of the manager over to a new manager of the given configuration, and keeps
+   * the references the appenders of the previous configuration hold. The reference just taken
+   * by getManager goes to the new manager.
+   *
+   * If the new manager can't be created, this one keeps running with the previous
+   * configuration, under its name and with the references of its appenders, and the failure
+   * is rethrown to the appender of the new configuration.
+   */
+  private GoogleCloudLoggingManager replace(final ManagerConfig config) {
+    final int references = getCount();
+    retainedReferences = references - 1;
+    replaced = true;
+    // Takes this manager out of the managers by name, without stopping it
+    for (int i = 0; i < references; ++i) {
+      super.release();
+    }
+    final GoogleCloudLoggingManager replacement;
+    try {
+      replacement = AbstractManager.getManager(
+          getName(), FACTORY, new FactoryData(config, transport, googleCloudMetadata, this));
+    } catch (final RuntimeException e) {
+      restore();
+      throw e;
+    }
+    successor = replacement;
+    if (retainedReferences == 0) {
+      flushAndRetire();
+    }
+    return replacement;
+  }
+
+  /**
+   * Puts this manager back under its name, with the references of the previous configuration.
+   */
+  private void restore() {
+    final int references = retainedReferences;
+    replaced = false;
+    retainedReferences = 0;
+    if (references == 0) {
+      // Nobody holds on to it anymore
+      releaseSub();
+      return;
+    }
+    final ManagerFactory<GoogleCloudLoggingManager, Object> self =
         new ManagerFactory<GoogleCloudLoggingManager, Object>() {
           @Override
-          public GoogleCloudLoggingManager createManager(String name,
-                                                         Object data) {
-            try {
-              final HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
-              final GoogleCloudMetadata googleCloudMetadata = new GoogleCloudMetadata(transport);
-              return new GoogleCloudLoggingManager(name,
-                                                   transport,
-                                                   googleCloudMetadata,
-                                                   googleCloudCredentials,
-                                                   googleCloudProjectId,
-                                                   googleCloudZone,
-                                                   googleCloudLogName,
-                                                   virtualMachineId,
-                                                   maxRetryTimeMillis);
-            } catch (final Throwable e) {
-              LOGGER.error("Failed to initialize GoogleCloudLoggingManager", e);
-            }
-            return null;
+          public GoogleCloudLoggingManager createManager(final String name, final Object data) {
+            return GoogleCloudLoggingManager.this;
           }
-        },
-        null);
+        };
+    for (int i = 0; i < references; ++i) {
+      AbstractManager.getManager(getName(), self, null);
+    }
   }
 
+  private static final ManagerFactory<GoogleCloudLoggingManager, FactoryData> FACTORY =
+      new ManagerFactory<GoogleCloudLoggingManager, FactoryData>() {
+        @Override
+        public GoogleCloudLoggingManager createManager(final String name,
+                                                       final FactoryData data) {
+          try {
+            final HttpTransport transport = data.transport != null
+                                            ? data.transport
+                                            : GoogleNetHttpTransport.newTrustedTransport();
+            final GoogleCloudMetadata googleCloudMetadata = data.googleCloudMetadata != null
+                                                            ? data.googleCloudMetadata
+                                                            : new GoogleCloudMetadata(transport);
+            final ManagerConfig config = data.config;
+            // Available right away, while the bootstrap is retried in the background
+            final GoogleCloudLoggingManager manager =
+                new GoogleCloudLoggingManager(name,
+                                              transport,
+                                              googleCloudMetadata,
+                                              config,
+                                              data.predecessor,
+                                              true,
+                                              config.settings.getSink());
+            manager.config = config;
+            manager.registerMetrics(config.settings);
+            manager.startLatencyReporter(config.settings);
+            return manager;
+          } catch (final Throwable e) {
+            LOGGER.error("Failed to initialize GoogleCloudLoggingManager", e);
+          }
+          return null;
+        }
+      };
+
   private static List<String> getMachineAttributes(final GoogleCloudMetadata googleCloudMetadata)
       throws IOException {
     return Arrays.asList(googleCloudMetadata.fetchFromPath("instance/attributes/").split("\n"));
@@ -226,6 +2168,33 @@ public class GoogleCloudLoggingManager extends AbstractManager {
                            COMPUTE_SERVICE_NAME + "/resource_id", virtualMachineId);
   }
 
+  /**
+   * Returns the monitored resource the v2 entries are written for,
+   * from the service name and the common labels of the v1beta3 entries.
+   */
+  private static LoggingV2.MonitoredResource
+  getMonitoredResource(final String serviceName,
+                       final Map<String, String> commonLabels,
+                       final String googleCloudProjectId,
+                       final String googleCloudZone) {
+    final ImmutableMap.Builder<String, String> labels = ImmutableMap.builder();
+    labels.put("project_id", googleCloudProjectId);
+    final String type;
+    if (serviceName.equals(APPENGINE_SERVICE_NAME)) {
+      type = APPENGINE_RESOURCE_TYPE;
+      labels.put("module_id", commonLabels.get(APPENGINE_SERVICE_NAME + "/module_id"));
+      labels.put("version_id", commonLabels.get(APPENGINE_SERVICE_NAME + "/version_id"));
+    } else if (serviceName.equals(DATAFLOW_SERVICE_NAME)) {
+      type = DATAFLOW_RESOURCE_TYPE;
+      labels.put("job_id", commonLabels.get(DATAFLOW_SERVICE_NAME + "/job_id"));
+    } else {
+      type = COMPUTE_RESOURCE_TYPE;
+      labels.put("instance_id", commonLabels.get(COMPUTE_SERVICE_NAME + "/resource_id"));
+      labels.put("zone", googleCloudZone);
+    }
+    return new LoggingV2.MonitoredResource().setType(type).setLabels(labels.build());
+  }
+
   private static String getVirtualMachineId(final String virtualMachineId,
                                             final GoogleCloudMetadata googleCloudMetadata)
       throws IOException {
@@ -259,19 +2228,23 @@ public class GoogleCloudLoggingManager extends AbstractManager {
   }
 
   private static Logging createLoggingClient(final HttpTransport transport,
-                                             final GoogleCloudCredentials credentials,
-                                             final int maxRetryTimeMillis)
-      throws GeneralSecurityException, IOException {
-    final JacksonFactory jacksonFactory = JacksonFactory.getDefaultInstance();
-    return new Logging.Builder(transport,
-                               jacksonFactory,
-                               new RetryHttpInitializerWrapper(
-                                   credentials.getCredential(transport,
-                                                             jacksonFactory,
-                                                             LoggingScopes.all()),
-                                   maxRetryTimeMillis))
-        .setApplicationName(APPLICATION_NAME)
-        .build();
+                                             final Credential credential,
+                                             final int maxRetryTimeMillis,
+                                             final Sleeper sleeper,
+                                             final GoogleCloudLoggingSettings settings) {
+    final Logging.Builder builder =
+        new Logging.Builder(transport,
+                            JacksonFactory.getDefaultInstance(),
+                            new RetryHttpInitializerWrapper(
+                                credential,
+                                sleeper,
+                                maxRetryTimeMillis,
+                                settings.getRequestTimeoutMillis()))
+            .setApplicationName(APPLICATION_NAME);
+    if (settings.getLoggingRootUrl() != null) {
+      builder.setRootUrl(settings.getLoggingRootUrl());
+    }
+    return builder.build();
   }
 
   private static String log4j2LevelToCloudLoggingLevel(final Level level) {
@@ -282,4 +2255,320 @@ public class GoogleCloudLoggingManager extends AbstractManager {
     }
     return level.toString();
   }
+
+  /**
+   * Runs the bootstrap, and retries it with an exponential backoff until it succeeds.
+   * Once it does, connects ahead of the first batch, and writes the events which waited.
+   */
+  private final class Bootstrap implements Runnable {
+    private final ManagerConfig config;
+    // Let go of once the bootstrap is done
+    private GoogleCloudLoggingManager predecessor;
+    private final BackOff backOff = new ExponentialBackOff.Builder()
+        .setInitialIntervalMillis(BOOTSTRAP_INITIAL_BACKOFF_MILLIS)
+        .setMaxIntervalMillis(BOOTSTRAP_MAX_BACKOFF_MILLIS)
+        .setMaxElapsedTimeMillis(Integer.MAX_VALUE)
+        .build();
+
+    Bootstrap(final ManagerConfig config, final GoogleCloudLoggingManager predecessor) {
+      this.config = config;
+      this.predecessor = predecessor;
+    }
+
+    @Override
+    public void run() {
+      try {
+        bootstrap(config, predecessor);
+      } catch (final Exception e) {
+        metrics.bootstrapFailures.increment();
+        final long backOffMillis = nextBackOffMillis();
+        LOGGER.warn("Failed to set up GoogleCloudLoggingManager [{}], retrying in {} ms",
+                    getName(), backOffMillis, e);
+        try {
+          bootstrapper.schedule(this, backOffMillis, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException stopped) {
+          // Abandoned on shutdown
+        }
+        return;
+      }
+      predecessor = null;
+      prewarm();
+      writePendingEvents();
+    }
+
+    private long nextBackOffMillis() {
+      try {
+        final long backOffMillis = backOff.nextBackOffMillis();
+        return backOffMillis == BackOff.STOP ? BOOTSTRAP_MAX_BACKOFF_MILLIS : backOffMillis;
+      } catch (final IOException e) {
+        return BOOTSTRAP_MAX_BACKOFF_MILLIS;
+      }
+    }
+  }
+
+  /**
+   * Drains the shared ring into a manager of its own writing to the API, once this JVM got
+   * elected to. The ring is drained for as long as it has entries, and the batches they
+   * didn't fill up are sent once it runs dry, or at least once a second.
+   */
+  private final class RingDrain implements Runnable, SharedRing.EntryHandler {
+    private final ManagerConfig config;
+    // Set up once elected, confined to the drainer thread until it stops
+    private GoogleCloudLoggingManager apiManager;
+    private long flushedMillis;
+
+    RingDrain(final ManagerConfig config) {
+      this.config = config;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (apiManager == null) {
+          if (!sharedRing.elect()) {
+            return;
+          }
+          LOGGER.info("GoogleCloudLoggingManager [{}] drains the shared ring {}",
+                      getName(), config.settings.getSharedRingFile());
+          apiManager = new GoogleCloudLoggingManager(getName() + "-shared-ring",
+                                                     transport,
+                                                     googleCloudMetadata,
+                                                     config,
+                                                     null,
+                                                     true,
+                                                     LogSink.API);
+          apiManager.registerMetrics(config.settings);
+        }
+        // Until the API manager is set up, the entries wait in the ring
+        if (apiManager.bootstrapped) {
+          drain();
+        }
+      } catch (final Exception e) {
+        LOGGER.warn("Failed to drain the shared ring of GoogleCloudLoggingManager [{}]",
+                    getName(), e);
+      }
+    }
+
+    private void drain() throws IOException {
+      int drained = 0;
+      int entries;
+      do {
+        entries = drainOnce();
+        drained += entries;
+      } while (entries > 0 &&
+               System.currentTimeMillis() - flushedMillis < RING_FLUSH_INTERVAL_MILLIS);
+      final long nowMillis = System.currentTimeMillis();
+      if (drained == 0 || nowMillis - flushedMillis >= RING_FLUSH_INTERVAL_MILLIS) {
+        flushedMillis = nowMillis;
+        apiManager.flushAll();
+      }
+    }
+
+    private int drainOnce() throws IOException {
+      try {
+        return sharedRing.drain(MAX_RING_DRAIN_BYTES, this);
+      } catch (final SharedRing.EntriesLostException e) {
+        metrics.sharedRingEntriesLost.add(e.getLostEntries());
+        throw e;
+      }
+    }
+
+    @Override
+    public void onEntry(final String logName,
+                        final String severity,
+                        final long timeMillis,
+                        final String text,
+                        final Map<String, String> labels) {
+      apiManager.writeDrained(logName, severity, timeMillis, text, labels);
+    }
+
+    /**
+     * Hands the entries left in the ring over to the API manager, and stops it.
+     */
+    void close() {
+      if (apiManager == null) {
+        return;
+      }
+      try {
+        if (apiManager.bootstrapped) {
+          while (drainOnce() > 0) {
+            // Until the ring is empty
+          }
+        }
+      } catch (final IOException e) {
+        LOGGER.warn("Failed to drain the shared ring of GoogleCloudLoggingManager [{}]",
+                    getName(), e);
+      }
+      apiManager.release();
+      apiManager = null;
+    }
+  }
+
+  /**
+   * Extra requests a batch may still take to isolate its rejected entries.
+   * Only used by the thread sending the batch.
+   */
+  private static class BisectionBudget {
+    private int remainingRequests;
+
+    BisectionBudget(final int maxRequests) {
+      this.remainingRequests = maxRequests;
+    }
+
+    /**
+     * Takes the two requests of the halves of a chunk, if the budget allows.
+     */
+    boolean take() {
+      if (remainingRequests < 2) {
+        return false;
+      }
+      remainingRequests -= 2;
+      return true;
+    }
+  }
+
+  /**
+   * Everything a manager is created from, as given by the appender.
+   */
+  static final class ManagerConfig {
+    private final GoogleCloudCredentials googleCloudCredentials;
+    private final String googleCloudProjectId;
+    private final String googleCloudZone;
+    private final String googleCloudLogName;
+    private final String virtualMachineId;
+    private final int maxRetryTimeMillis;
+    private final GoogleCloudLoggingSettings settings;
+
+    ManagerConfig(final GoogleCloudCredentials googleCloudCredentials,
+                  final String googleCloudProjectId,
+                  final String googleCloudZone,
+                  final String googleCloudLogName,
+                  final String virtualMachineId,
+                  final int maxRetryTimeMillis,
+                  final GoogleCloudLoggingSettings settings) {
+      this.googleCloudCredentials = googleCloudCredentials;
+      this.googleCloudProjectId = googleCloudProjectId;
+      this.googleCloudZone = googleCloudZone;
+      this.googleCloudLogName = googleCloudLogName;
+      this.virtualMachineId = virtualMachineId;
+      this.maxRetryTimeMillis = maxRetryTimeMillis;
+      this.settings = settings;
+    }
+
+    /**
+     * Returns whether a manager of this configuration can take over the other one live.
+     */
+    boolean isLiveUpdatableTo(final ManagerConfig other) {
+      return googleCloudCredentials.equals(other.googleCloudCredentials) &&
+             Objects.equal(googleCloudProjectId, other.googleCloudProjectId) &&
+             Objects.equal(googleCloudZone, other.googleCloudZone) &&
+             Objects.equal(googleCloudLogName, other.googleCloudLogName) &&
+             Objects.equal(virtualMachineId, other.virtualMachineId) &&
+             maxRetryTimeMillis == other.maxRetryTimeMillis &&
+             settings.isLiveUpdatableTo(other.settings);
+    }
+  }
+
+  private static final class FactoryData {
+    private final ManagerConfig config;
+    // Null for the default ones
+    private final HttpTransport transport;
+    private final GoogleCloudMetadata googleCloudMetadata;
+    // Null unless the manager takes over from another one
+    private final GoogleCloudLoggingManager predecessor;
+
+    FactoryData(final ManagerConfig config,
+                final HttpTransport transport,
+                final GoogleCloudMetadata googleCloudMetadata,
+                final GoogleCloudLoggingManager predecessor) {
+      this.config = config;
+      this.transport = transport;
+      this.googleCloudMetadata = googleCloudMetadata;
+      this.predecessor = predecessor;
+    }
+  }
+
+  /**
+   * Permits of the batches in flight, whose number can change while they are taken.
+   */
+  private static final class InFlightPermits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    private int permits;
+
+    InFlightPermits(final int permits) {
+      super(permits);
+      this.permits = permits;
+    }
+
+    synchronized void resize(final int newPermits) {
+      if (newPermits > permits) {
+        release(newPermits - permits);
+      } else if (newPermits < permits) {
+        // Goes negative while more than the new number of batches are in flight
+        reducePermits(permits - newPermits);
+      }
+      permits = newPermits;
+    }
+  }
+
+  /**
+   * Counts the duplicates of hedged requests against the adaptive concurrency limit, and
+   * against the batches in flight of the sender, so they are only sent while there's room.
+   */
+  private final class HedgeCapacity implements RequestHedger.Capacity {
+    @Override
+    public boolean tryAcquire() {
+      if (sender != null && !inFlightBatches.tryAcquire()) {
+        return false;
+      }
+      if (concurrencyLimit != null && !concurrencyLimit.tryAcquire()) {
+        if (sender != null) {
+          inFlightBatches.release();
+        }
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void release() {
+      if (concurrencyLimit != null) {
+        concurrencyLimit.releaseUnmeasured();
+      }
+      if (sender != null) {
+        inFlightBatches.release();
+      }
+    }
+  }
+
+  /**
+   * Buffers of a share of the logging threads, guarded by the stripe itself.
+   */
+  private static class BufferStripe {
+    // Null unless entries are encoded off-heap
+    private final DirectBufferArena arena;
+    // Null unless entries are encoded
+    private final BufferPool bufferPool;
+    // Sequence numbers of the insert ids of the entries encoded on this stripe, so the
+    // logging threads of different stripes don't contend for them. Atomic, as priority
+    // entries and the summaries of expired entries take them outside the lock of the stripe
+    private final AtomicLong nextSequence;
+    // Per log buffers, in the order the logs first got an entry
+    private Map<String, LogEntryBatch> logEntriesBuffers = Maps.newLinkedHashMap();
+
+    BufferStripe(final int index, final DirectBufferArena arena, final BufferPool bufferPool) {
+      this.arena = arena;
+      this.bufferPool = bufferPool;
+      this.nextSequence = new AtomicLong((long) index << STRIPE_SEQUENCE_SHIFT);
+    }
+
+    synchronized Map<String, LogEntryBatch> takeBuffers() {
+      final Map<String, LogEntryBatch> buffers = logEntriesBuffers;
+      if (!buffers.isEmpty()) {
+        logEntriesBuffers = Maps.newLinkedHashMap();
+      }
+      return buffers;
+    }
+  }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.util.Sleeper;
+
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.imaravic.log4j.logging.util.HeavyHitter;
+import io.imaravic.log4j.logging.util.HeavyHitters;
+import io.imaravic.log4j.logging.util.Histogram;
+import io.imaravic.log4j.logging.util.HistogramSnapshot;
+import io.imaravic.log4j.logging.util.StripedCounter;
+
+public class GoogleCloudLoggingMetrics implements GoogleCloudLoggingMetricsMXBean {
+  private static final long MAX_TRACKED_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(10);
+  private static final long MAX_TRACKED_BATCH_SIZE = 1 << 20;
+
+  final StripedCounter entriesEnqueued = new StripedCounter();
+  final StripedCounter entriesSent = new StripedCounter();
+  final StripedCounter entriesDropped = new StripedCounter();
+  final StripedCounter priorityEntries = new StripedCounter();
+  final StripedCounter entriesQuarantined = new StripedCounter();
+  final StripedCounter entriesExpired = new StripedCounter();
+  final StripedCounter bisectionRequests = new StripedCounter();
+  final StripedCounter messagesTruncated = new StripedCounter();
+  final StripedCounter messagesSplit = new StripedCounter();
+  final StripedCounter batchesSent = new StripedCounter();
+  final StripedCounter bytesSent = new StripedCounter();
+  final StripedCounter requestFailures = new StripedCounter();
+  final StripedCounter retries = new StripedCounter();
+  final StripedCounter requestsHedged = new StripedCounter();
+  final StripedCounter hedgesWon = new StripedCounter();
+  final StripedCounter bootstrapFailures = new StripedCounter();
+  final StripedCounter sharedRingEntriesLost = new StripedCounter();
+
+  final Histogram batchSize = new Histogram(MAX_TRACKED_BATCH_SIZE);
+  final Histogram enqueueLatency = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+  final Histogram serializeLatency = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+  final Histogram httpLatency = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+  final Histogram retryBackoff = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+  final Histogram queueWaitLatency = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+  final Histogram eventToAckLatency = new Histogram(MAX_TRACKED_LATENCY_NANOS);
+
+  // Only set while the requests in flight follow the capacity of the API
+  volatile int concurrencyLimit;
+
+  // Replaced when the number of loggers to track changes, null when they aren't tracked
+  private volatile HeavyHitters topLoggers;
+
+  /**
+   * Tracks the given number of loggers and levels taking the most bytes, starting over
+   * unless they were tracked already, or stops tracking them if the number is 0.
+   */
+  void trackTopLoggers(final int count) {
+    final HeavyHitters current = topLoggers;
+    if (count <= 0) {
+      topLoggers = null;
+    } else if (current == null || current.getCapacity() != count) {
+      topLoggers = new HeavyHitters(count);
+    }
+  }
+
+  /**
+   * Records the entries and bytes an event of the given logger and level took in its batch.
+   */
+  void recordLogger(final String loggerName, final String level, final int entries,
+                    final long bytes) {
+    final HeavyHitters current = topLoggers;
+    if (current != null) {
+      current.record(loggerName == null ? "" : loggerName, level, entries, bytes);
+    }
+  }
+
+  /**
+   * Records the delivery of a successfully acknowledged batch:
+   * how long every entry waited to be sent, and how long it took
+   * from the creation of its event until the acknowledgement.
+   */
+  void recordAcknowledged(final LogEntryBatch batch,
+                          final long sendStartNanos,
+                          final long ackTimeMillis) {
+    for (int i = 0; i < batch.size(); ++i) {
+      queueWaitLatency.record(sendStartNanos - batch.getEnqueueTimeNanos(i));
+      eventToAckLatency.record(
+          TimeUnit.MILLISECONDS.toNanos(ackTimeMillis - batch.getEventTimeMillis(i)));
+    }
+  }
+
+  /**
+   * Returns a task which logs the latency percentiles of the interval
+   * since it was last run.
+   */
+  Runnable newLatencyReporter(final String managerName, final Logger logger) {
+    return new Runnable() {
+      private final long[] eventToAckBaseline = eventToAckLatency.newBaseline();
+      private final long[] queueWaitBaseline = queueWaitLatency.newBaseline();
+      private final long[] serializeBaseline = serializeLatency.newBaseline();
+      private final long[] httpBaseline = httpLatency.newBaseline();
+
+      @Override
+      public void run() {
+        final HistogramSnapshot eventToAck = eventToAckLatency.intervalSnapshot(eventToAckBaseline);
+        final HistogramSnapshot queueWait = queueWaitLatency.intervalSnapshot(queueWaitBaseline);
+        final HistogramSnapshot serialize = serializeLatency.intervalSnapshot(serializeBaseline);
+        final HistogramSnapshot http = httpLatency.intervalSnapshot(httpBaseline);
+        if (eventToAck.getCount() > 0 || http.getCount() > 0) {
+          logger.info("GoogleCloudLoggingManager [{}] latency (ns) event-to-ack [{}], " +
+                      "queue wait [{}], serialize [{}], http [{}]",
+                      managerName, eventToAck, queueWait, serialize, http);
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps the sleeper used for backing off between retries,
+   * so every retry and the time spent backing off gets recorded.
+   */
+  Sleeper meteredSleeper(final Sleeper sleeper) {
+    return new Sleeper() {
+      @Override
+      public void sleep(final long millis) throws InterruptedException {
+        retries.increment();
+        retryBackoff.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        sleeper.sleep(millis);
+      }
+    };
+  }
+
+  @Override
+  public long getEntriesEnqueued() {
+    return entriesEnqueued.sum();
+  }
+
+  @Override
+  public long getEntriesSent() {
+    return entriesSent.sum();
+  }
+
+  @Override
+  public long getEntriesDropped() {
+    return entriesDropped.sum();
+  }
+
+  @Override
+  public long getPendingEntries() {
+    // Read the outflow first, so a concurrent enqueue can't make this negative
+    final long entriesOut = entriesSent.sum() + entriesDropped.sum();
+    return Math.max(0, entriesEnqueued.sum() - entriesOut);
+  }
+
+  @Override
+  public long getPriorityEntries() {
+    return priorityEntries.sum();
+  }
+
+  @Override
+  public long getSharedRingEntriesLost() {
+    return sharedRingEntriesLost.sum();
+  }
+
+  @Override
+  public long getEntriesQuarantined() {
+    return entriesQuarantined.sum();
+  }
+
+  @Override
+  public long getEntriesExpired() {
+    return entriesExpired.sum();
+  }
+
+  @Override
+  public long getBisectionRequests() {
+    return bisectionRequests.sum();
+  }
+
+  @Override
+  public long getMessagesTruncated() {
+    return messagesTruncated.sum();
+  }
+
+  @Override
+  public long getMessagesSplit() {
+    return messagesSplit.sum();
+  }
+
+  @Override
+  public long getRequestsHedged() {
+    return requestsHedged.sum();
+  }
+
+  @Override
+  public long getHedgesWon() {
+    return hedgesWon.sum();
+  }
+
+  @Override
+  public long getBootstrapFailures() {
+    return bootstrapFailures.sum();
+  }
+
+  @Override
+  public long getBatchesSent() {
+    return batchesSent.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getRequestFailures() {
+    return requestFailures.sum();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public int getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  @Override
+  public List<HeavyHitter> getTopLoggers() {
+    final HeavyHitters current = topLoggers;
+    return current == null ? Collections.<HeavyHitter>emptyList() : current.top();
+  }
+
+  @Override
+  public HistogramSnapshot getBatchSize() {
+    return batchSize.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getEnqueueLatencyNanos() {
+    return enqueueLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getSerializeLatencyNanos() {
+    return serializeLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getHttpLatencyNanos() {
+    return httpLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getRetryBackoffNanos() {
+    return retryBackoff.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getQueueWaitLatencyNanos() {
+    return queueWaitLatency.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getEventToAckLatencyNanos() {
+    return eventToAckLatency.snapshot();
+  }
+}
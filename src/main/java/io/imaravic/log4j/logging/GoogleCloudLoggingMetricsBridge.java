@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+/**
+ * Bridge to an external metrics registry (Dropwizard, Micrometer, ...).
+ * Implementations need a public no-arg constructor, and are set
+ * on the appender with the {@code metricsBridge} attribute.
+ * The bridge is expected to poll the given metrics, not to copy them.
+ */
+public interface GoogleCloudLoggingMetricsBridge {
+  void register(String managerName, GoogleCloudLoggingMetricsMXBean metrics);
+
+  void unregister(String managerName);
+}
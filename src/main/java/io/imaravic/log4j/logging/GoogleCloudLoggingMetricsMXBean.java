@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import java.util.List;
+
+import io.imaravic.log4j.logging.util.HeavyHitter;
+import io.imaravic.log4j.logging.util.HistogramSnapshot;
+
+/**
+ * Management interface of a {@link GoogleCloudLoggingManager}.
+ * All latencies are in nanoseconds.
+ */
+public interface GoogleCloudLoggingMetricsMXBean {
+  long getEntriesEnqueued();
+
+  long getEntriesSent();
+
+  long getEntriesDropped();
+
+  long getPendingEntries();
+
+  /**
+   * Entries at or above the priority level, which were sent on their own right away.
+   */
+  long getPriorityEntries();
+
+  /**
+   * Entries this JVM drained from the shared ring, but failed to hand over to its sender.
+   * The ring delivers at most once, so they are not drained again.
+   */
+  long getSharedRingEntriesLost();
+
+  /**
+   * Entries rejected by the API on their own, once their batch got split to isolate them.
+   * They are counted as dropped as well.
+   */
+  long getEntriesQuarantined();
+
+  /**
+   * Entries dropped because they were older than {@code maxEntryAgeMillis} by the time
+   * their batch got sent. They are counted as dropped as well.
+   */
+  long getEntriesExpired();
+
+  /**
+   * Extra requests sent for the halves of rejected batches.
+   */
+  long getBisectionRequests();
+
+  /**
+   * Messages cut short to the most bytes of text an entry carries.
+   */
+  long getMessagesTruncated();
+
+  /**
+   * Messages split into several entries, because they were too long for one.
+   */
+  long getMessagesSplit();
+
+  /**
+   * Requests sent once more because they were still waiting for their response
+   * after the hedging percentile of the request latency.
+   */
+  long getRequestsHedged();
+
+  /**
+   * Hedged requests whose duplicate got its response first.
+   */
+  long getHedgesWon();
+
+  /**
+   * Failed attempts to set the manager up, each of them retried after a backoff.
+   */
+  long getBootstrapFailures();
+
+  long getBatchesSent();
+
+  /**
+   * Bytes of the request bodies, or of the records written to an agent sink,
+   * before the API requests are compressed.
+   */
+  long getBytesSent();
+
+  long getRequestFailures();
+
+  long getRetries();
+
+  /**
+   * Requests the API is currently allowed to have in flight, as adapted to its round trip
+   * times and throttling, or 0 unless the concurrency is adaptive.
+   */
+  int getConcurrencyLimit();
+
+  /**
+   * Loggers and levels whose entries took the most bytes, the largest first,
+   * as tracked in fixed memory, so they are approximate.
+   * Empty unless {@code topLoggers} is set.
+   */
+  List<HeavyHitter> getTopLoggers();
+
+  HistogramSnapshot getBatchSize();
+
+  HistogramSnapshot getEnqueueLatencyNanos();
+
+  HistogramSnapshot getSerializeLatencyNanos();
+
+  HistogramSnapshot getHttpLatencyNanos();
+
+  HistogramSnapshot getRetryBackoffNanos();
+
+  HistogramSnapshot getQueueWaitLatencyNanos();
+
+  /**
+   * Time from the creation of a log event until the batch carrying it was acknowledged.
+   */
+  HistogramSnapshot getEventToAckLatencyNanos();
+}
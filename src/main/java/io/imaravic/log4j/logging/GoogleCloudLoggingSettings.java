@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.common.base.Objects;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Tuning knobs of a {@link GoogleCloudLoggingManager}.
+ */
+public class GoogleCloudLoggingSettings {
+  private final boolean registerMBean;
+  private final String metricsBridgeClassName;
+  private final int latencyReportIntervalSeconds;
+  private final long maxBatchBytes;
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private final int batchTargetLatencyMillis;
+  private final String logNamePattern;
+  private final int logNameCacheSize;
+  private final String loggingRootUrl;
+  private final int requestTimeoutMillis;
+  private final SenderMode senderMode;
+  private final int senderThreads;
+  private final int maxInFlightBatches;
+  private final int shutdownTimeoutMillis;
+  private final boolean garbageFree;
+  private final long offHeapArenaBytes;
+  private final Level priorityLevel;
+  private final int bufferStripes;
+  private final LoggingApi loggingApi;
+  private final boolean http2;
+  private final int maxBisectionRequests;
+  private final int maxMessageBytes;
+  private final boolean splitOversizedMessages;
+  private final int maxEntryAgeMillis;
+  private final boolean summarizeExpiredEntries;
+  private final int newestFirstBacklogBatches;
+  private final double hedgeLatencyPercentile;
+  private final double maxHedgedRequestsRatio;
+  private final LogSink sink;
+  private final String sinkFile;
+  private final String forwardAddress;
+  private final boolean forwardAcks;
+  private final String sharedRingFile;
+  private final int sharedRingBytes;
+  private final int topLoggers;
+  private final boolean adaptiveConcurrency;
+
+  protected GoogleCloudLoggingSettings(final Builder builder) {
+    this.registerMBean = builder.registerMBean;
+    this.metricsBridgeClassName = builder.metricsBridgeClassName;
+    this.latencyReportIntervalSeconds = builder.latencyReportIntervalSeconds;
+    this.maxBatchBytes = builder.maxBatchBytes;
+    this.minBatchSize = builder.minBatchSize;
+    this.maxBatchSize = builder.maxBatchSize;
+    this.batchTargetLatencyMillis = builder.batchTargetLatencyMillis;
+    this.logNamePattern = builder.logNamePattern;
+    this.logNameCacheSize = builder.logNameCacheSize;
+    this.loggingRootUrl = builder.loggingRootUrl;
+    this.requestTimeoutMillis = builder.requestTimeoutMillis;
+    this.senderMode = builder.senderMode;
+    this.senderThreads = builder.senderThreads;
+    this.maxInFlightBatches = builder.maxInFlightBatches;
+    this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+    this.garbageFree = builder.garbageFree;
+    this.offHeapArenaBytes = builder.offHeapArenaBytes;
+    this.priorityLevel = builder.priorityLevel;
+    this.bufferStripes = builder.bufferStripes;
+    this.loggingApi = builder.loggingApi;
+    this.http2 = builder.http2;
+    this.maxBisectionRequests = builder.maxBisectionRequests;
+    this.maxMessageBytes = builder.maxMessageBytes;
+    this.splitOversizedMessages = builder.splitOversizedMessages;
+    this.maxEntryAgeMillis = builder.maxEntryAgeMillis;
+    this.summarizeExpiredEntries = builder.summarizeExpiredEntries;
+    this.newestFirstBacklogBatches = builder.newestFirstBacklogBatches;
+    this.hedgeLatencyPercentile = builder.hedgeLatencyPercentile;
+    this.maxHedgedRequestsRatio = builder.maxHedgedRequestsRatio;
+    this.sink = builder.sink;
+    this.sinkFile = builder.sinkFile;
+    this.forwardAddress = builder.forwardAddress;
+    this.forwardAcks = builder.forwardAcks;
+    this.sharedRingFile = builder.sharedRingFile;
+    this.sharedRingBytes = builder.sharedRingBytes;
+    this.topLoggers = builder.topLoggers;
+    this.adaptiveConcurrency = builder.adaptiveConcurrency;
+  }
+
+  public boolean isRegisterMBean() {
+    return registerMBean;
+  }
+
+  public String getMetricsBridgeClassName() {
+    return metricsBridgeClassName;
+  }
+
+  public int getLatencyReportIntervalSeconds() {
+    return latencyReportIntervalSeconds;
+  }
+
+  public long getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public int getMinBatchSize() {
+    return minBatchSize;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public int getBatchTargetLatencyMillis() {
+    return batchTargetLatencyMillis;
+  }
+
+  public String getLogNamePattern() {
+    return logNamePattern;
+  }
+
+  public int getLogNameCacheSize() {
+    return logNameCacheSize;
+  }
+
+  /**
+   * Returns the root URL of the Cloud Logging API, or null for the public endpoint.
+   * Useful for private endpoints, proxies and local stand-ins of the API.
+   */
+  public String getLoggingRootUrl() {
+    return loggingRootUrl;
+  }
+
+  /**
+   * Returns the connect and read timeout of a single API request,
+   * or 0 for the HTTP client defaults.
+   */
+  public int getRequestTimeoutMillis() {
+    return requestTimeoutMillis;
+  }
+
+  public SenderMode getSenderMode() {
+    return senderMode;
+  }
+
+  public int getSenderThreads() {
+    return senderThreads;
+  }
+
+  public int getMaxInFlightBatches() {
+    return maxInFlightBatches;
+  }
+
+  public int getShutdownTimeoutMillis() {
+    return shutdownTimeoutMillis;
+  }
+
+  public boolean isGarbageFree() {
+    return garbageFree;
+  }
+
+  /**
+   * Returns the most direct memory pending entries can be encoded into,
+   * or 0 to keep them on the heap.
+   */
+  public long getOffHeapArenaBytes() {
+    return offHeapArenaBytes;
+  }
+
+  /**
+   * Returns the level from which on entries skip batching and are sent right away
+   * on their own lane, or null to batch every entry.
+   */
+  public Level getPriorityLevel() {
+    return priorityLevel;
+  }
+
+  /**
+   * Returns the number of independently locked buffers logging threads spread over,
+   * so that they don't all wait for the same lock. One per processor by default.
+   */
+  public int getBufferStripes() {
+    return bufferStripes;
+  }
+
+  /**
+   * Returns the version of the Cloud Logging API the entries are written with.
+   */
+  public LoggingApi getLoggingApi() {
+    return loggingApi;
+  }
+
+  /**
+   * Returns whether the requests in flight should share HTTP/2 connections,
+   * which takes Java 11+.
+   */
+  public boolean isHttp2() {
+    return http2;
+  }
+
+  /**
+   * Returns the most extra requests a batch can take to isolate the entries
+   * which got it rejected, by splitting it in halves.
+   */
+  public int getMaxBisectionRequests() {
+    return maxBisectionRequests;
+  }
+
+  /**
+   * Returns the most UTF-8 bytes of text an entry carries, or 0 for no limit.
+   * Longer messages are truncated, or split into several entries.
+   */
+  public int getMaxMessageBytes() {
+    return maxMessageBytes;
+  }
+
+  /**
+   * Returns whether messages longer than the limit are split into sequenced chunk entries
+   * instead of being truncated.
+   */
+  public boolean isSplitOversizedMessages() {
+    return splitOversizedMessages;
+  }
+
+  /**
+   * Returns the most time an entry may take from its event until it is sent,
+   * or 0 for no limit. Older entries are dropped, or summed up in a single entry.
+   */
+  public int getMaxEntryAgeMillis() {
+    return maxEntryAgeMillis;
+  }
+
+  /**
+   * Returns whether the entries of a batch which got too old are replaced
+   * with a single entry counting them.
+   */
+  public boolean isSummarizeExpiredEntries() {
+    return summarizeExpiredEntries;
+  }
+
+  /**
+   * Returns the number of batches waiting for a sender thread above which the newest
+   * of them are sent first, or 0 to always send the oldest first.
+   */
+  public int getNewestFirstBacklogBatches() {
+    return newestFirstBacklogBatches;
+  }
+
+  /**
+   * Returns the percentile of the request latency after which a request still waiting for
+   * its response is sent once more, or 0 to never send duplicates.
+   */
+  public double getHedgeLatencyPercentile() {
+    return hedgeLatencyPercentile;
+  }
+
+  /**
+   * Returns the most requests which get a duplicate, as a fraction of all of them.
+   */
+  public double getMaxHedgedRequestsRatio() {
+    return maxHedgedRequestsRatio;
+  }
+
+  /**
+   * Returns where the entries are written to.
+   */
+  public LogSink getSink() {
+    return sink;
+  }
+
+  /**
+   * Returns the file the entries are appended to, when they are written to a file.
+   */
+  public String getSinkFile() {
+    return sinkFile;
+  }
+
+  /**
+   * Returns the address of the forward input the entries are sent to, when they are forwarded,
+   * either {@code host:port} or {@code unix:///path/to/socket}.
+   */
+  public String getForwardAddress() {
+    return forwardAddress;
+  }
+
+  /**
+   * Returns whether a forwarded batch only counts as sent once the server acknowledged it.
+   */
+  public boolean isForwardAcks() {
+    return forwardAcks;
+  }
+
+  /**
+   * Returns the file of the ring the JVMs of the host share, when the entries go through one.
+   */
+  public String getSharedRingFile() {
+    return sharedRingFile;
+  }
+
+  /**
+   * Returns the capacity of the shared ring, unless another JVM created it already.
+   */
+  public int getSharedRingBytes() {
+    return sharedRingBytes;
+  }
+
+  /**
+   * Returns the number of loggers and levels taking the most bytes which are tracked,
+   * or 0 to not track them.
+   */
+  public int getTopLoggers() {
+    return topLoggers;
+  }
+
+  /**
+   * Returns whether the number of requests in flight follows the capacity of the API,
+   * up to {@link #getMaxInFlightBatches()}, instead of only being bounded by it.
+   */
+  public boolean isAdaptiveConcurrency() {
+    return adaptiveConcurrency;
+  }
+
+  /**
+   * Returns whether a manager running with these settings can take over the other ones live.
+   * That holds if the settings differ at most in the batch sizes and limits, the number of
+   * sender threads, the batches in flight, the shutdown timeout, the message byte limit,
+   * the entry age limit and the order in which the backlog is sent, and the number of
+   * loggers tracked by the bytes they take.
+   */
+  boolean isLiveUpdatableTo(final GoogleCloudLoggingSettings other) {
+    return registerMBean == other.registerMBean &&
+           Objects.equal(metricsBridgeClassName, other.metricsBridgeClassName) &&
+           latencyReportIntervalSeconds == other.latencyReportIntervalSeconds &&
+           Objects.equal(logNamePattern, other.logNamePattern) &&
+           logNameCacheSize == other.logNameCacheSize &&
+           Objects.equal(loggingRootUrl, other.loggingRootUrl) &&
+           requestTimeoutMillis == other.requestTimeoutMillis &&
+           senderMode == other.senderMode &&
+           garbageFree == other.garbageFree &&
+           offHeapArenaBytes == other.offHeapArenaBytes &&
+           Objects.equal(priorityLevel, other.priorityLevel) &&
+           bufferStripes == other.bufferStripes &&
+           loggingApi == other.loggingApi &&
+           http2 == other.http2 &&
+           Double.compare(hedgeLatencyPercentile, other.hedgeLatencyPercentile) == 0 &&
+           Double.compare(maxHedgedRequestsRatio, other.maxHedgedRequestsRatio) == 0 &&
+           sink == other.sink &&
+           Objects.equal(sinkFile, other.sinkFile) &&
+           Objects.equal(forwardAddress, other.forwardAddress) &&
+           forwardAcks == other.forwardAcks &&
+           Objects.equal(sharedRingFile, other.sharedRingFile) &&
+           sharedRingBytes == other.sharedRingBytes &&
+           adaptiveConcurrency == other.adaptiveConcurrency;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder
+      implements org.apache.logging.log4j.core.util.Builder<GoogleCloudLoggingSettings> {
+    private boolean registerMBean = true;
+    private String metricsBridgeClassName;
+    private int latencyReportIntervalSeconds;
+    private long maxBatchBytes = 5 * 1024 * 1024;
+    private int minBatchSize = 10;
+    private int maxBatchSize = 1000;
+    private int batchTargetLatencyMillis = 1000;
+    private String logNamePattern;
+    private int logNameCacheSize = 1024;
+    private String loggingRootUrl;
+    private int requestTimeoutMillis;
+    private SenderMode senderMode = SenderMode.CALLER;
+    private int senderThreads = 4;
+    private int maxInFlightBatches = 64;
+    private int shutdownTimeoutMillis = 10000;
+    private boolean garbageFree;
+    private long offHeapArenaBytes;
+    private Level priorityLevel;
+    private int bufferStripes = Runtime.getRuntime().availableProcessors();
+    private LoggingApi loggingApi = LoggingApi.V1BETA3;
+    private boolean http2;
+    private int maxBisectionRequests = 32;
+    private int maxMessageBytes;
+    private boolean splitOversizedMessages;
+    private int maxEntryAgeMillis;
+    private boolean summarizeExpiredEntries;
+    private int newestFirstBacklogBatches;
+    private double hedgeLatencyPercentile;
+    private double maxHedgedRequestsRatio = 0.05;
+    private LogSink sink = LogSink.API;
+    private String sinkFile;
+    private String forwardAddress = "localhost:" + FluentForwardClient.DEFAULT_PORT;
+    private boolean forwardAcks = true;
+    private String sharedRingFile;
+    private int sharedRingBytes = 64 * 1024 * 1024;
+    private int topLoggers;
+    private boolean adaptiveConcurrency;
+
+    public Builder withRegisterMBean(final boolean registerMBean) {
+      this.registerMBean = registerMBean;
+      return this;
+    }
+
+    public Builder withMetricsBridgeClassName(final String metricsBridgeClassName) {
+      this.metricsBridgeClassName = metricsBridgeClassName;
+      return this;
+    }
+
+    public Builder withLatencyReportIntervalSeconds(final int latencyReportIntervalSeconds) {
+      this.latencyReportIntervalSeconds = latencyReportIntervalSeconds;
+      return this;
+    }
+
+    public Builder withMaxBatchBytes(final long maxBatchBytes) {
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    public Builder withMinBatchSize(final int minBatchSize) {
+      this.minBatchSize = minBatchSize;
+      return this;
+    }
+
+    public Builder withMaxBatchSize(final int maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    public Builder withBatchTargetLatencyMillis(final int batchTargetLatencyMillis) {
+      this.batchTargetLatencyMillis = batchTargetLatencyMillis;
+      return this;
+    }
+
+    public Builder withLogNamePattern(final String logNamePattern) {
+      this.logNamePattern = logNamePattern;
+      return this;
+    }
+
+    public Builder withLogNameCacheSize(final int logNameCacheSize) {
+      this.logNameCacheSize = logNameCacheSize;
+      return this;
+    }
+
+    public Builder withLoggingRootUrl(final String loggingRootUrl) {
+      this.loggingRootUrl = loggingRootUrl;
+      return this;
+    }
+
+    public Builder withRequestTimeoutMillis(final int requestTimeoutMillis) {
+      this.requestTimeoutMillis = requestTimeoutMillis;
+      return this;
+    }
+
+    public Builder withSenderMode(final SenderMode senderMode) {
+      this.senderMode = senderMode;
+      return this;
+    }
+
+    public Builder withSenderThreads(final int senderThreads) {
+      this.senderThreads = senderThreads;
+      return this;
+    }
+
+    public Builder withMaxInFlightBatches(final int maxInFlightBatches) {
+      this.maxInFlightBatches = maxInFlightBatches;
+      return this;
+    }
+
+    public Builder withShutdownTimeoutMillis(final int shutdownTimeoutMillis) {
+      this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+      return this;
+    }
+
+    public Builder withGarbageFree(final boolean garbageFree) {
+      this.garbageFree = garbageFree;
+      return this;
+    }
+
+    public Builder withOffHeapArenaBytes(final long offHeapArenaBytes) {
+      this.offHeapArenaBytes = offHeapArenaBytes;
+      return this;
+    }
+
+    public Builder withPriorityLevel(final Level priorityLevel) {
+      this.priorityLevel = priorityLevel;
+      return this;
+    }
+
+    public Builder withBufferStripes(final int bufferStripes) {
+      this.bufferStripes = bufferStripes;
+      return this;
+    }
+
+    public Builder withLoggingApi(final LoggingApi loggingApi) {
+      this.loggingApi = loggingApi;
+      return this;
+    }
+
+    public Builder withHttp2(final boolean http2) {
+      this.http2 = http2;
+      return this;
+    }
+
+    public Builder withMaxBisectionRequests(final int maxBisectionRequests) {
+      this.maxBisectionRequests = maxBisectionRequests;
+      return this;
+    }
+
+    public Builder withMaxMessageBytes(final int maxMessageBytes) {
+      this.maxMessageBytes = maxMessageBytes;
+      return this;
+    }
+
+    public Builder withSplitOversizedMessages(final boolean splitOversizedMessages) {
+      this.splitOversizedMessages = splitOversizedMessages;
+      return this;
+    }
+
+    public Builder withMaxEntryAgeMillis(final int maxEntryAgeMillis) {
+      this.maxEntryAgeMillis = maxEntryAgeMillis;
+      return this;
+    }
+
+    public Builder withSummarizeExpiredEntries(final boolean summarizeExpiredEntries) {
+      this.summarizeExpiredEntries = summarizeExpiredEntries;
+      return this;
+    }
+
+    public Builder withNewestFirstBacklogBatches(final int newestFirstBacklogBatches) {
+      this.newestFirstBacklogBatches = newestFirstBacklogBatches;
+      return this;
+    }
+
+    public Builder withHedgeLatencyPercentile(final double hedgeLatencyPercentile) {
+      this.hedgeLatencyPercentile = hedgeLatencyPercentile;
+      return this;
+    }
+
+    public Builder withMaxHedgedRequestsRatio(final double maxHedgedRequestsRatio) {
+      this.maxHedgedRequestsRatio = maxHedgedRequestsRatio;
+      return this;
+    }
+
+    public Builder withSink(final LogSink sink) {
+      this.sink = sink;
+      return this;
+    }
+
+    public Builder withSinkFile(final String sinkFile) {
+      this.sinkFile = sinkFile;
+      return this;
+    }
+
+    public Builder withForwardAddress(final String forwardAddress) {
+      this.forwardAddress = forwardAddress;
+      return this;
+    }
+
+    public Builder withForwardAcks(final boolean forwardAcks) {
+      this.forwardAcks = forwardAcks;
+      return this;
+    }
+
+    public Builder withSharedRingFile(final String sharedRingFile) {
+      this.sharedRingFile = sharedRingFile;
+      return this;
+    }
+
+    public Builder withSharedRingBytes(final int sharedRingBytes) {
+      this.sharedRingBytes = sharedRingBytes;
+      return this;
+    }
+
+    public Builder withTopLoggers(final int topLoggers) {
+      this.topLoggers = topLoggers;
+      return this;
+    }
+
+    public Builder withAdaptiveConcurrency(final boolean adaptiveConcurrency) {
+      this.adaptiveConcurrency = adaptiveConcurrency;
+      return this;
+    }
+
+    @Override
+    public GoogleCloudLoggingSettings build() {
+      return new GoogleCloudLoggingSettings(this);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * JsonLinesWriter writes the entries of a batch, encoded as lines of JSON, to the standard
+ * output or to the end of a file, for a logging agent to pick them up.
+ *
+ * The entries are gathered into a direct buffer, which is written out whenever it fills up,
+ * and at the end of every batch, so a batch takes a few writes rather than one per entry.
+ * Nothing is forced to the disk, which leaves the writes as cheap as those of a file appender.
+ */
+class JsonLinesWriter implements Closeable {
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final FileChannel channel;
+  private final boolean closeChannel;
+  // Guarded by the writer, which keeps the lines of concurrent batches from interleaving
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+  JsonLinesWriter(final FileChannel channel, final boolean closeChannel) {
+    this.channel = channel;
+    this.closeChannel = closeChannel;
+  }
+
+  static JsonLinesWriter toStdout() {
+    // The standard output outlives the writer, so it is left open
+    return new JsonLinesWriter(new FileOutputStream(FileDescriptor.out).getChannel(), false);
+  }
+
+  static JsonLinesWriter toFile(final String fileName) throws IOException {
+    // Appended to, so the writer of a manager taking over carries on where this one stopped
+    return new JsonLinesWriter(new FileOutputStream(fileName, true).getChannel(), true);
+  }
+
+  /**
+   * Writes the encoded entries of the batch, and returns the number of bytes they took.
+   */
+  synchronized long write(final LogEntryBatch batch) throws IOException {
+    long written = 0;
+    ByteBuffer slab = null;
+    ByteBuffer slabView = null;
+    try {
+      for (int i = 0; i < batch.size(); ++i) {
+        final ByteBuffer encodedEntry = batch.getEncodedEntry(i);
+        final int offset = batch.getEncodedOffset(i);
+        final int length = batch.getEncodedLength(i);
+        if (length > buffer.remaining()) {
+          drain();
+        }
+        if (encodedEntry.hasArray() && length <= buffer.remaining()) {
+          buffer.put(encodedEntry.array(), encodedEntry.arrayOffset() + offset, length);
+        } else {
+          // Read from a view, since the logging thread keeps writing at the position of a slab
+          if (encodedEntry != slab) {
+            slab = encodedEntry;
+            slabView = encodedEntry.duplicate();
+          }
+          slabView.limit(offset + length).position(offset);
+          if (length <= buffer.remaining()) {
+            buffer.put(slabView);
+          } else {
+            // Longer than the whole buffer
+            writeFully(slabView);
+          }
+        }
+        written += length;
+      }
+      drain();
+    } finally {
+      // A failed write leaves nothing behind for the next batch
+      buffer.clear();
+    }
+    return written;
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(final ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closeChannel) {
+      channel.close();
+    }
+  }
+}
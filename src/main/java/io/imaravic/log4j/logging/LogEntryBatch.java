@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.util.Lists;
+import com.google.api.services.logging.model.LogEntry;
+
+import org.apache.logging.log4j.message.Message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import io.imaravic.log4j.logging.util.Utf8;
+
+/**
+ * Log entries of a single log waiting to be sent, together with the times needed
+ * to measure how long every entry took to get delivered. Batches sent with the v2 API
+ * can hold the entries of any log, and have no log name.
+ *
+ * A batch holds either {@link LogEntry} objects, or entries already encoded
+ * to their JSON bytes by a {@link LogEntryJsonEncoder}.
+ */
+class LogEntryBatch {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private String logName;
+  private final List<LogEntry> entries = Lists.newArrayList();
+  private ByteBuffer[] encodedEntries;
+  private int[] encodedOffsets;
+  private Message[] deferredMessages;
+  private int deferredCount;
+  private int size;
+  private long[] eventTimesMillis = new long[INITIAL_CAPACITY];
+  private long[] enqueueTimesNanos = new long[INITIAL_CAPACITY];
+  private int[] entrySizes = new int[INITIAL_CAPACITY];
+  private long sizeInBytes;
+
+  LogEntryBatch(final String logName) {
+    this.logName = logName;
+  }
+
+  /**
+   * Empties the batch, keeping its capacity, so it can be reused for the given log.
+   */
+  void reset(final String logName) {
+    this.logName = logName;
+    entries.clear();
+    if (deferredMessages != null) {
+      Arrays.fill(deferredMessages, 0, Math.min(size, deferredMessages.length), null);
+    }
+    deferredCount = 0;
+    if (encodedEntries != null) {
+      Arrays.fill(encodedEntries, 0, size, null);
+    }
+    size = 0;
+    sizeInBytes = 0;
+  }
+
+  /**
+   * Returns the URL encoded name of the log all the entries belong to,
+   * or null if they can belong to different logs.
+   */
+  String getLogName() {
+    return logName;
+  }
+
+  void add(final LogEntry entry,
+           final int entrySize,
+           final long eventTimeMillis,
+           final long enqueueTimeNanos) {
+    entries.add(entry);
+    append(entrySize, eventTimeMillis, enqueueTimeNanos);
+  }
+
+  /**
+   * Adds an entry whose text payload is left to be set from the message,
+   * once {@link #formatDeferred} is called. The size is an estimate until then.
+   */
+  void addDeferred(final LogEntry entry,
+                   final Message message,
+                   final int estimatedEntrySize,
+                   final long eventTimeMillis,
+                   final long enqueueTimeNanos) {
+    if (deferredMessages == null) {
+      deferredMessages = new Message[eventTimesMillis.length];
+    }
+    if (size >= deferredMessages.length) {
+      deferredMessages = Arrays.copyOf(deferredMessages, Math.max(size + 1, size * 2));
+    }
+    deferredMessages[size] = message;
+    ++deferredCount;
+    add(entry, estimatedEntrySize, eventTimeMillis, enqueueTimeNanos);
+  }
+
+  /**
+   * Formats the messages of the deferred entries, and replaces the estimated length of
+   * their messages, within the sizes of the entries, with the UTF-8 length of the text.
+   * Messages longer than {@code maxMessageBytes}, unless it is 0, are truncated.
+   *
+   * @return the number of truncated messages
+   */
+  int formatDeferred(final int maxMessageBytes) {
+    int truncated = 0;
+    // Stops after the last deferred entry, the entries after it may be past the end of the array
+    for (int i = 0; i < size && deferredCount > 0; ++i) {
+      final Message message = deferredMessages[i];
+      if (message != null) {
+        String text = format(message);
+        int labelsLength = 0;
+        final int textEnd = OversizedMessages.fittingEnd(text, maxMessageBytes);
+        if (textEnd < text.length()) {
+          text = text.substring(0, textEnd);
+          entries.get(i).getMetadata().setLabels(OversizedMessages.TRUNCATED_LABELS);
+          labelsLength = OversizedMessages.labelsLength(OversizedMessages.TRUNCATED_LABELS);
+          ++truncated;
+        }
+        entries.get(i).setTextPayload(text);
+        final int entrySize = entrySizes[i] - DeferredMessages.estimateLength(message) +
+                              Utf8.encodedLength(text) + labelsLength;
+        sizeInBytes += entrySize - entrySizes[i];
+        entrySizes[i] = entrySize;
+        deferredMessages[i] = null;
+        --deferredCount;
+      }
+    }
+    return truncated;
+  }
+
+  private static String format(final Message message) {
+    try {
+      return message.getFormattedMessage();
+    } catch (final RuntimeException e) {
+      // A single broken message must not fail the rest of the batch
+      return message.getFormat();
+    }
+  }
+
+  /**
+   * Adds an entry encoded to its JSON bytes, which are the {@code length} bytes of the
+   * buffer starting at {@code offset}. The size of the entry is the number of those bytes,
+   * together with the separating comma.
+   */
+  void addEncoded(final ByteBuffer buffer,
+                  final int offset,
+                  final int length,
+                  final long eventTimeMillis,
+                  final long enqueueTimeNanos) {
+    if (encodedEntries == null) {
+      encodedEntries = new ByteBuffer[eventTimesMillis.length];
+      encodedOffsets = new int[eventTimesMillis.length];
+    }
+    if (size == encodedEntries.length) {
+      encodedEntries = Arrays.copyOf(encodedEntries, size * 2);
+      encodedOffsets = Arrays.copyOf(encodedOffsets, size * 2);
+    }
+    encodedEntries[size] = buffer;
+    encodedOffsets[size] = offset;
+    append(length + 1, eventTimeMillis, enqueueTimeNanos);
+  }
+
+  private void append(final int entrySize,
+                      final long eventTimeMillis,
+                      final long enqueueTimeNanos) {
+    final int index = size;
+    if (index == eventTimesMillis.length) {
+      eventTimesMillis = Arrays.copyOf(eventTimesMillis, index * 2);
+      enqueueTimesNanos = Arrays.copyOf(enqueueTimesNanos, index * 2);
+      entrySizes = Arrays.copyOf(entrySizes, index * 2);
+    }
+    entrySizes[index] = entrySize;
+    eventTimesMillis[index] = eventTimeMillis;
+    enqueueTimesNanos[index] = enqueueTimeNanos;
+    sizeInBytes += entrySize;
+    ++size;
+  }
+
+  /**
+   * Appends the entries of another batch of the same log, which is left holding
+   * them as well, so it has to be reset before it is used again.
+   */
+  void addAll(final LogEntryBatch other) {
+    for (int i = 0; i < other.size; ++i) {
+      if (other.isEncoded()) {
+        addEncoded(other.encodedEntries[i],
+                   other.encodedOffsets[i],
+                   other.entrySizes[i] - 1,
+                   other.eventTimesMillis[i],
+                   other.enqueueTimesNanos[i]);
+      } else if (other.deferredCount > 0 &&
+                 i < other.deferredMessages.length &&
+                 other.deferredMessages[i] != null) {
+        addDeferred(other.entries.get(i),
+                    other.deferredMessages[i],
+                    other.entrySizes[i],
+                    other.eventTimesMillis[i],
+                    other.enqueueTimesNanos[i]);
+      } else {
+        add(other.entries.get(i),
+            other.entrySizes[i],
+            other.eventTimesMillis[i],
+            other.enqueueTimesNanos[i]);
+      }
+    }
+  }
+
+  /**
+   * Removes the entries of the events older than the given time,
+   * keeping the rest of them in order.
+   *
+   * @return the number of removed entries
+   */
+  int removeOlderThan(final long minEventTimeMillis) {
+    int kept = 0;
+    for (int i = 0; i < size; ++i) {
+      final boolean deferred = deferredCount > 0 &&
+                               i < deferredMessages.length &&
+                               deferredMessages[i] != null;
+      if (eventTimesMillis[i] < minEventTimeMillis) {
+        sizeInBytes -= entrySizes[i];
+        if (deferred) {
+          --deferredCount;
+        }
+        continue;
+      }
+      if (kept < i) {
+        if (!entries.isEmpty()) {
+          entries.set(kept, entries.get(i));
+        }
+        if (encodedEntries != null) {
+          encodedEntries[kept] = encodedEntries[i];
+          encodedOffsets[kept] = encodedOffsets[i];
+        }
+        if (deferredMessages != null && kept < deferredMessages.length) {
+          deferredMessages[kept] = deferred ? deferredMessages[i] : null;
+        }
+        eventTimesMillis[kept] = eventTimesMillis[i];
+        enqueueTimesNanos[kept] = enqueueTimesNanos[i];
+        entrySizes[kept] = entrySizes[i];
+      }
+      ++kept;
+    }
+    final int removed = size - kept;
+    if (!entries.isEmpty()) {
+      entries.subList(kept, size).clear();
+    }
+    if (encodedEntries != null) {
+      Arrays.fill(encodedEntries, kept, size, null);
+    }
+    if (deferredMessages != null && kept < deferredMessages.length) {
+      Arrays.fill(deferredMessages, kept, Math.min(size, deferredMessages.length), null);
+    }
+    size = kept;
+    return removed;
+  }
+
+  /**
+   * Returns the end (exclusive) of the longest run of entries starting at {@code from}
+   * which has at most {@code maxEntries} entries and at most {@code maxBytes} bytes.
+   * The run always holds at least one entry, even if that entry alone is too big.
+   */
+  int chunkEnd(final int from, final int maxEntries, final long maxBytes) {
+    final int limit = Math.min(size, from + Math.max(1, maxEntries));
+    long chunkBytes = entrySizes[from];
+    int to = from + 1;
+    while (to < limit && chunkBytes + entrySizes[to] <= maxBytes) {
+      chunkBytes += entrySizes[to];
+      ++to;
+    }
+    return to;
+  }
+
+  LogEntryBatch subBatch(final int from, final int to) {
+    if (from == 0 && to == size) {
+      return this;
+    }
+    final LogEntryBatch subBatch = new LogEntryBatch(logName);
+    for (int i = from; i < to; ++i) {
+      if (isEncoded()) {
+        subBatch.addEncoded(encodedEntries[i],
+                            encodedOffsets[i],
+                            entrySizes[i] - 1,
+                            eventTimesMillis[i],
+                            enqueueTimesNanos[i]);
+      } else {
+        subBatch.add(entries.get(i), entrySizes[i], eventTimesMillis[i], enqueueTimesNanos[i]);
+      }
+    }
+    return subBatch;
+  }
+
+  List<LogEntry> getEntries() {
+    return entries;
+  }
+
+  boolean isEncoded() {
+    return encodedEntries != null && entries.isEmpty();
+  }
+
+  /**
+   * Returns the buffer holding the JSON bytes of the entry at the given index.
+   */
+  ByteBuffer getEncodedEntry(final int index) {
+    return encodedEntries[index];
+  }
+
+  int getEncodedOffset(final int index) {
+    return encodedOffsets[index];
+  }
+
+  int getEncodedLength(final int index) {
+    return entrySizes[index] - 1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the estimated size of the batch, once serialized.
+   */
+  long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  long getEventTimeMillis(final int index) {
+    return eventTimesMillis[index];
+  }
+
+  long getEnqueueTimeNanos(final int index) {
+    return enqueueTimesNanos[index];
+  }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * LogEntryJsonEncoder writes log entries straight to the JSON bytes the
+ * entries:write API takes, without creating any objects on the way,
+ * for the v1beta3 API by default, for the v2 API, or as lines for a logging agent.
+ *
+ * The parts of an entry which are the same for every entry of a manager are
+ * encoded once up front. The insertId of an entry is the random prefix of the
+ * encoder followed by the hexadecimal sequence number of the entry.
+ */
+class LogEntryJsonEncoder {
+  // Longest escape of a single char is a six byte unicode escape
+  private static final int MAX_BYTES_PER_CHAR = 6;
+  private static final int TIMESTAMP_LENGTH = "2015-04-06T18:38:24.000Z".length();
+  private static final int MAX_SEQUENCE_LENGTH = 16;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+  private final byte[] insertIdStart;
+  private final byte[] logStart;
+  private final byte[] severityStart;
+  private final byte[] timestampStart;
+  private final byte[] labelsStart;
+  private final byte[] textPayloadStart;
+  private final byte[] entryEnd;
+  private final byte[] requestStart;
+  private final byte[] requestEnd;
+  private final int fixedLength;
+
+  LogEntryJsonEncoder(final JsonFactory jsonFactory,
+                      final String insertIdPrefix,
+                      final String projectId,
+                      final String serviceName,
+                      final String zone,
+                      final String userId,
+                      final Map<String, String> commonLabels) throws IOException {
+    this(ascii("{\"insertId\":\"" + insertIdPrefix),
+         ascii("\",\"log\":\""),
+         utf8("\",\"metadata\":{" +
+              "\"projectId\":" + jsonFactory.toString(projectId) +
+              ",\"serviceName\":" + jsonFactory.toString(serviceName) +
+              ",\"zone\":" + jsonFactory.toString(zone) +
+              (userId == null ? "" :
+               ",\"userId\":" + jsonFactory.toString(userId)) +
+              ",\"severity\":\""),
+         ascii("\",\"timestamp\":\""),
+         ascii(",\"labels\":{"),
+         ascii("},\"textPayload\":\""),
+         ascii("\"}"),
+         utf8("{\"commonLabels\":" + jsonFactory.toString(commonLabels) +
+              ",\"entries\":["),
+         ascii("]}"));
+  }
+
+  private LogEntryJsonEncoder(final byte[] insertIdStart,
+                              final byte[] logStart,
+                              final byte[] severityStart,
+                              final byte[] timestampStart,
+                              final byte[] labelsStart,
+                              final byte[] textPayloadStart,
+                              final byte[] entryEnd,
+                              final byte[] requestStart,
+                              final byte[] requestEnd) {
+    this.insertIdStart = insertIdStart;
+    this.logStart = logStart;
+    this.severityStart = severityStart;
+    this.timestampStart = timestampStart;
+    this.labelsStart = labelsStart;
+    this.textPayloadStart = textPayloadStart;
+    this.entryEnd = entryEnd;
+    this.requestStart = requestStart;
+    this.requestEnd = requestEnd;
+    this.fixedLength = insertIdStart.length + MAX_SEQUENCE_LENGTH + logStart.length +
+                       severityStart.length + timestampStart.length + TIMESTAMP_LENGTH +
+                       1 + textPayloadStart.length + entryEnd.length;
+  }
+
+  /**
+   * Returns an encoder of v2 entries:write requests, whose entries carry the full name
+   * of their log, and share the monitored resource of the request.
+   */
+  static LogEntryJsonEncoder forV2(final JsonFactory jsonFactory,
+                                   final String insertIdPrefix,
+                                   final String projectId,
+                                   final LoggingV2.MonitoredResource resource)
+      throws IOException {
+    final String quotedLogNamePrefix =
+        jsonFactory.toString(LoggingV2.getLogName(projectId, ""));
+    return new LogEntryJsonEncoder(
+        ascii("{\"insertId\":\"" + insertIdPrefix),
+        utf8("\",\"logName\":" +
+             quotedLogNamePrefix.substring(0, quotedLogNamePrefix.length() - 1)),
+        ascii("\",\"severity\":\""),
+        ascii("\",\"timestamp\":\""),
+        ascii(",\"labels\":{"),
+        ascii(",\"textPayload\":\""),
+        ascii("\"}"),
+        utf8("{\"resource\":" + jsonFactory.toString(resource) +
+             ",\"partialSuccess\":true,\"entries\":["),
+        ascii("]}"));
+  }
+
+  /**
+   * Returns an encoder of entries as lines of JSON in the format the logging agents take,
+   * whose special fields carry the insertId, severity, timestamp and labels of an entry.
+   * The log name is an ordinary field, and every line ends with a newline.
+   */
+  static LogEntryJsonEncoder forJsonLines(final String insertIdPrefix) {
+    return new LogEntryJsonEncoder(
+        ascii("{\"logging.googleapis.com/insertId\":\"" + insertIdPrefix),
+        ascii("\",\"logName\":\""),
+        ascii("\",\"severity\":\""),
+        ascii("\",\"time\":\""),
+        ascii(",\"logging.googleapis.com/labels\":{"),
+        ascii(",\"message\":\""),
+        ascii("\"}\n"),
+        new byte[0],
+        new byte[0]);
+  }
+
+  /**
+   * Returns the most bytes the entry with the given log name, severity and message can take.
+   */
+  int maxEncodedLength(final String logName, final String severity, final CharSequence message) {
+    return maxEncodedLength(logName, severity, message.length(), null);
+  }
+
+  /**
+   * Returns the most bytes the entry with the given log name, severity, message length
+   * and labels can take.
+   */
+  int maxEncodedLength(final String logName,
+                       final String severity,
+                       final int messageLength,
+                       final Map<String, String> labels) {
+    int length = fixedLength +
+                 MAX_BYTES_PER_CHAR * (logName.length() + severity.length() + messageLength);
+    if (labels != null) {
+      length += labelsStart.length + 1;
+      for (final Map.Entry<String, String> label : labels.entrySet()) {
+        length += ",\"\":\"\"".length() +
+                  MAX_BYTES_PER_CHAR * (label.getKey().length() + label.getValue().length());
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns the bytes the entry with the given log name, severity, part of the message
+   * and labels takes, but for the digits of its sequence number, which are counted in full.
+   * Unlike {@link #maxEncodedLength} it goes over the chars, so a buffer of this size
+   * is no larger than it has to be.
+   */
+  int encodedLength(final String logName,
+                    final String severity,
+                    final CharSequence message,
+                    final int messageStart,
+                    final int messageEnd,
+                    final Map<String, String> labels) {
+    int length = fixedLength +
+                 escapedLength(logName, 0, logName.length()) +
+                 escapedLength(severity, 0, severity.length()) +
+                 escapedLength(message, messageStart, messageEnd);
+    if (labels != null) {
+      // The closing brace, and the commas between the labels
+      length += labelsStart.length + 1 + Math.max(0, labels.size() - 1);
+      for (final Map.Entry<String, String> label : labels.entrySet()) {
+        length += "\"\":\"\"".length() +
+                  escapedLength(label.getKey(), 0, label.getKey().length()) +
+                  escapedLength(label.getValue(), 0, label.getValue().length());
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encodes the entry into the buffer, which has to have at least
+   * {@link #maxEncodedLength} bytes remaining.
+   */
+  void encode(final ByteBuffer out,
+              final long sequence,
+              final String logName,
+              final String severity,
+              final long timeMillis,
+              final CharSequence message) {
+    encode(out, sequence, logName, severity, timeMillis, message, 0, message.length(), null);
+  }
+
+  /**
+   * Encodes the entry, with the part of the message between {@code messageStart} and
+   * {@code messageEnd} as its text, and with the given labels, if any.
+   */
+  void encode(final ByteBuffer out,
+              final long sequence,
+              final String logName,
+              final String severity,
+              final long timeMillis,
+              final CharSequence message,
+              final int messageStart,
+              final int messageEnd,
+              final Map<String, String> labels) {
+    out.put(insertIdStart);
+    putHex(out, sequence);
+    out.put(logStart);
+    putEscaped(out, logName, 0, logName.length());
+    out.put(severityStart);
+    putEscaped(out, severity, 0, severity.length());
+    out.put(timestampStart);
+    putTimestamp(out, timeMillis);
+    out.put((byte) '"');
+    if (labels != null) {
+      putLabels(out, labels);
+    }
+    out.put(textPayloadStart);
+    putEscaped(out, message, messageStart, messageEnd);
+    out.put(entryEnd);
+  }
+
+  /**
+   * Returns the start of a write request, up to the opening bracket of its entries.
+   */
+  byte[] getRequestStart() {
+    return requestStart;
+  }
+
+  byte[] getRequestEnd() {
+    return requestEnd;
+  }
+
+  private static void putHex(final ByteBuffer out, final long value) {
+    int shift = 60;
+    while (shift > 0 && (value >>> shift) == 0) {
+      shift -= 4;
+    }
+    for (; shift >= 0; shift -= 4) {
+      out.put(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+    }
+  }
+
+  private void putLabels(final ByteBuffer out, final Map<String, String> labels) {
+    out.put(labelsStart);
+    boolean first = true;
+    for (final Map.Entry<String, String> label : labels.entrySet()) {
+      if (!first) {
+        out.put((byte) ',');
+      }
+      first = false;
+      out.put((byte) '"');
+      putEscaped(out, label.getKey(), 0, label.getKey().length());
+      out.put((byte) '"');
+      out.put((byte) ':');
+      out.put((byte) '"');
+      putEscaped(out, label.getValue(), 0, label.getValue().length());
+      out.put((byte) '"');
+    }
+    out.put((byte) '}');
+  }
+
+  /**
+   * Writes the chars of the text from {@code start} to {@code end} as the UTF-8 bytes
+   * of a JSON string, without the quotes.
+   */
+  private static void putEscaped(final ByteBuffer out,
+                                 final CharSequence text,
+                                 final int start,
+                                 final int end) {
+    for (int i = start; i < end; ++i) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        if (c == '"' || c == '\\') {
+          out.put((byte) '\\');
+          out.put((byte) c);
+        } else if (c < 0x20) {
+          putControlChar(out, c);
+        } else {
+          out.put((byte) c);
+        }
+      } else if (c < 0x800) {
+        out.put((byte) (0xc0 | (c >> 6)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < end &&
+                 Character.isLowSurrogate(text.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        out.put((byte) (0xf0 | (codePoint >> 18)));
+        out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        out.put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Same replacement the String encoder uses for an unpaired surrogate
+        out.put((byte) '?');
+      } else {
+        out.put((byte) (0xe0 | (c >> 12)));
+        out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  /**
+   * Returns the bytes {@link #putEscaped} writes for the same chars.
+   */
+  private static int escapedLength(final CharSequence text, final int start, final int end) {
+    int length = end - start;
+    for (int i = start; i < end; ++i) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        if (c == '"' || c == '\\') {
+          ++length;
+        } else if (c < 0x20) {
+          length += isShortEscape(c) ? 1 : 5;
+        }
+      } else if (c < 0x800) {
+        ++length;
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < end &&
+                 Character.isLowSurrogate(text.charAt(i + 1))) {
+        // Four bytes for the two chars
+        length += 2;
+        ++i;
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        length += 2;
+      }
+    }
+    return length;
+  }
+
+  private static boolean isShortEscape(final char c) {
+    return c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f';
+  }
+
+  private static void putControlChar(final ByteBuffer out, final char c) {
+    out.put((byte) '\\');
+    switch (c) {
+      case '\n':
+        out.put((byte) 'n');
+        break;
+      case '\r':
+        out.put((byte) 'r');
+        break;
+      case '\t':
+        out.put((byte) 't');
+        break;
+      case '\b':
+        out.put((byte) 'b');
+        break;
+      case '\f':
+        out.put((byte) 'f');
+        break;
+      default:
+        out.put((byte) 'u');
+        out.put((byte) '0');
+        out.put((byte) '0');
+        out.put(HEX_DIGITS[c >> 4]);
+        out.put(HEX_DIGITS[c & 0xf]);
+    }
+  }
+
+  /**
+   * Writes the time as an RFC 3339 UTC timestamp with milliseconds,
+   * the same way {@code new DateTime(timeMillis, 0).toStringRfc3339()} does.
+   */
+  private static void putTimestamp(final ByteBuffer out, final long timeMillis) {
+    final long days = floorDiv(timeMillis, MILLIS_PER_DAY);
+    final int millisOfDay = (int) (timeMillis - days * MILLIS_PER_DAY);
+
+    // Civil date of the day since epoch, from Howard Hinnant's date algorithms
+    final long shiftedDays = days + 719468;
+    final long era = floorDiv(shiftedDays, 146097);
+    final int dayOfEra = (int) (shiftedDays - era * 146097);
+    final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    final int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    final int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    final int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    putDigits(out, (int) year, 4);
+    out.put((byte) '-');
+    putDigits(out, month, 2);
+    out.put((byte) '-');
+    putDigits(out, day, 2);
+    out.put((byte) 'T');
+    putDigits(out, millisOfDay / 3600000, 2);
+    out.put((byte) ':');
+    putDigits(out, millisOfDay / 60000 % 60, 2);
+    out.put((byte) ':');
+    putDigits(out, millisOfDay / 1000 % 60, 2);
+    out.put((byte) '.');
+    putDigits(out, millisOfDay % 1000, 3);
+    out.put((byte) 'Z');
+  }
+
+  private static void putDigits(final ByteBuffer out, final int value, final int digits) {
+    int divisor = 1;
+    for (int i = 1; i < digits; ++i) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      out.put((byte) ('0' + value / divisor % 10));
+    }
+  }
+
+  private static long floorDiv(final long x, final long y) {
+    final long quotient = x / y;
+    return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+  }
+
+  private static byte[] ascii(final String text) {
+    return text.getBytes(Charsets.US_ASCII);
+  }
+
+  private static byte[] utf8(final String text) {
+    return text.getBytes(Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.util.Lists;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LogNameResolver derives the URL encoded Google Cloud log name of an event.
+ *
+ * The pattern is literal text mixed with the following conversions, named after
+ * their PatternLayout counterparts: {@code %logger} (or {@code %c}) for the logger name,
+ * {@code %level} (or {@code %p}) for the level, {@code %X{key}} (or {@code %mdc{key}})
+ * for a ThreadContext value, and {@code %%} for a literal percent sign.
+ * Events for which the pattern resolves to an empty name go to the default log name.
+ * Encoded names are cached without a lock, as every logging thread resolves them. Once the
+ * cache holds {@code cacheSize} names, it is cleared and starts over with the names in use.
+ */
+class LogNameResolver {
+  private static final String ENCODING = "UTF-8";
+
+  private final String prefix;
+  private final String encodedPrefix;
+  private final String defaultLogName;
+  private final List<Segment> segments;
+  private final int cacheSize;
+  private final ConcurrentMap<String, String> encodedLogNames =
+      new ConcurrentHashMap<String, String>();
+  // Approximately the number of cached names, as concurrent misses may be counted twice
+  private final AtomicInteger cachedLogNames = new AtomicInteger();
+
+  LogNameResolver(final String prefix,
+                  final String defaultLogName,
+                  final String pattern,
+                  final int cacheSize) throws UnsupportedEncodingException {
+    this.prefix = prefix;
+    this.encodedPrefix = URLEncoder.encode(prefix, ENCODING);
+    this.defaultLogName = URLEncoder.encode(prefix + defaultLogName, ENCODING);
+    this.segments = pattern == null ? null : parse(pattern);
+    this.cacheSize = cacheSize;
+  }
+
+  String getDefaultLogName() {
+    return defaultLogName;
+  }
+
+  /**
+   * Adds the prefix to the name of a log resolved by a resolver without one,
+   * such as the names of the entries drained from the shared ring.
+   */
+  String prefixed(final String encodedLogName) {
+    return encodedPrefix.isEmpty() ? encodedLogName : encodedPrefix + encodedLogName;
+  }
+
+  String resolve(final LogEvent event) {
+    if (segments == null) {
+      return defaultLogName;
+    }
+
+    final String logName;
+    if (segments.size() == 1) {
+      logName = segments.get(0).resolve(event);
+    } else {
+      final StringBuilder logNameBuilder = new StringBuilder();
+      for (final Segment segment : segments) {
+        final String value = segment.resolve(event);
+        if (value != null) {
+          logNameBuilder.append(value);
+        }
+      }
+      logName = logNameBuilder.toString();
+    }
+
+    if (logName == null || logName.isEmpty()) {
+      return defaultLogName;
+    }
+    return encode(logName);
+  }
+
+  private String encode(final String logName) {
+    final String cached = encodedLogNames.get(logName);
+    if (cached != null) {
+      return cached;
+    }
+    final String encodedLogName;
+    try {
+      encodedLogName = URLEncoder.encode(prefix + logName, ENCODING);
+    } catch (final UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    if (cachedLogNames.incrementAndGet() > cacheSize) {
+      encodedLogNames.clear();
+      cachedLogNames.set(1);
+    }
+    encodedLogNames.put(logName, encodedLogName);
+    return encodedLogName;
+  }
+
+  private static List<Segment> parse(final String pattern) {
+    final List<Segment> segments = Lists.newArrayList();
+    final StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < pattern.length()) {
+      final char c = pattern.charAt(i);
+      if (c != '%') {
+        literal.append(c);
+        ++i;
+        continue;
+      }
+      if (pattern.startsWith("%%", i)) {
+        literal.append('%');
+        i += 2;
+        continue;
+      }
+
+      int nameEnd = i + 1;
+      while (nameEnd < pattern.length() && Character.isLetter(pattern.charAt(nameEnd))) {
+        ++nameEnd;
+      }
+      final String conversion = pattern.substring(i + 1, nameEnd);
+      String option = null;
+      int next = nameEnd;
+      if (nameEnd < pattern.length() && pattern.charAt(nameEnd) == '{') {
+        final int optionEnd = pattern.indexOf('}', nameEnd);
+        if (optionEnd < 0) {
+          throw new IllegalArgumentException("Unterminated option in log name pattern " + pattern);
+        }
+        option = pattern.substring(nameEnd + 1, optionEnd);
+        next = optionEnd + 1;
+      }
+
+      if (literal.length() > 0) {
+        segments.add(new LiteralSegment(literal.toString()));
+        literal.setLength(0);
+      }
+      segments.add(conversionSegment(conversion, option, pattern));
+      i = next;
+    }
+    if (literal.length() > 0) {
+      segments.add(new LiteralSegment(literal.toString()));
+    }
+    return segments;
+  }
+
+  private static Segment conversionSegment(final String conversion,
+                                           final String option,
+                                           final String pattern) {
+    if (conversion.equals("logger") || conversion.equals("c")) {
+      return new Segment() {
+        @Override
+        public String resolve(final LogEvent event) {
+          return event.getLoggerName();
+        }
+      };
+    } else if (conversion.equals("level") || conversion.equals("p")) {
+      return new Segment() {
+        @Override
+        public String resolve(final LogEvent event) {
+          return event.getLevel().toString();
+        }
+      };
+    } else if ((conversion.equals("X") || conversion.equals("mdc")) && option != null) {
+      return new Segment() {
+        @Override
+        public String resolve(final LogEvent event) {
+          final Map<String, String> contextMap = event.getContextMap();
+          return contextMap == null ? null : contextMap.get(option);
+        }
+      };
+    }
+    throw new IllegalArgumentException("Unsupported conversion %" + conversion +
+                                       " in log name pattern " + pattern);
+  }
+
+  private interface Segment {
+    String resolve(LogEvent event);
+  }
+
+  private static class LiteralSegment implements Segment {
+    private final String literal;
+
+    LiteralSegment(final String literal) {
+      this.literal = literal;
+    }
+
+    @Override
+    public String resolve(final LogEvent event) {
+      return literal;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+/**
+ * Where the entries are written to.
+ */
+public enum LogSink {
+  /**
+   * The entries:write method of the Cloud Logging API.
+   */
+  API,
+
+  /**
+   * Lines of JSON on the standard output, picked up by the logging agent of the platform,
+   * such as the one of Kubernetes Engine.
+   */
+  STDOUT,
+
+  /**
+   * Lines of JSON appended to the {@code sinkFile}, tailed by a logging agent.
+   */
+  FILE,
+
+  /**
+   * Batches of entries sent to the {@code forwardAddress} of a Fluentd or Fluent Bit
+   * aggregator, over the Fluent forward protocol.
+   */
+  FORWARD,
+
+  /**
+   * Batches of entries appended to a ring in the memory-mapped {@code sharedRingFile},
+   * shared by the JVMs of the host, one of which drains it and writes the entries of all
+   * of them to the API.
+   */
+  SHARED_RING
+}
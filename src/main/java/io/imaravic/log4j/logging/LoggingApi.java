@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+/**
+ * Version of the Cloud Logging API the entries are written with.
+ */
+public enum LoggingApi {
+  /**
+   * The v1beta3 entries:write method of a single log, with one request per log.
+   */
+  V1BETA3,
+
+  /**
+   * The v2 entries:write method, whose requests carry the entries of any number of logs,
+   * and write the valid entries even when some other entries of the request are rejected.
+   */
+  V2
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.client.util.Lists;
+import com.google.api.services.logging.model.LogEntry;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * LoggingV2 holds the requests and responses of the v2 entries:write method.
+ *
+ * The client library of the appender only knows the v1beta3 API, so the v2 requests are
+ * built from the v1beta3 entries, and sent as plain JSON over the same HTTP client.
+ * The entries of a request can belong to any log, and all of them share the monitored
+ * resource set on the request.
+ */
+final class LoggingV2 {
+  static final String ENTRIES_WRITE_PATH = "v2/entries:write";
+
+  private LoggingV2() {
+  }
+
+  /**
+   * Returns the full v2 name of the log with the given URL encoded name.
+   */
+  static String getLogName(final String projectId, final String encodedLogName) {
+    return "projects/" + projectId + "/logs/" + encodedLogName;
+  }
+
+  /**
+   * Returns a request writing the given v1beta3 entries, with partial success, so the
+   * valid entries get written even if some other entries of the request are rejected.
+   */
+  static WriteRequest newWriteRequest(final String projectId,
+                                      final MonitoredResource resource,
+                                      final List<LogEntry> entries) {
+    final List<LogEntryV2> v2Entries = Lists.newArrayListWithCapacity(entries.size());
+    for (final LogEntry entry : entries) {
+      v2Entries.add(new LogEntryV2()
+                        .setInsertId(entry.getInsertId())
+                        .setLogName(getLogName(projectId, entry.getLog()))
+                        .setSeverity(entry.getMetadata().getSeverity())
+                        .setTimestamp(entry.getMetadata().getTimestamp())
+                        .setLabels(entry.getMetadata().getLabels())
+                        .setTextPayload(entry.getTextPayload()));
+    }
+    return new WriteRequest()
+        .setResource(resource)
+        .setPartialSuccess(true)
+        .setEntries(v2Entries);
+  }
+
+  /**
+   * Returns the errors of the rejected entries, by their index in the request, when the
+   * failure is a partial success, or null when none of the entries got written.
+   */
+  static SortedMap<Integer, String> getRejectedEntries(final JsonFactory jsonFactory,
+                                                       final HttpResponseException e) {
+    final String content = e.getContent();
+    if (content == null || !content.startsWith("{")) {
+      return null;
+    }
+    final ErrorResponse response;
+    try {
+      response = jsonFactory.fromString(content, ErrorResponse.class);
+    } catch (final IOException parseFailure) {
+      return null;
+    } catch (final IllegalArgumentException parseFailure) {
+      // Not the JSON of an error
+      return null;
+    }
+    if (response.error == null || response.error.details == null) {
+      return null;
+    }
+    SortedMap<Integer, String> rejectedEntries = null;
+    for (final PartialErrors details : response.error.details) {
+      if (details.logEntryErrors == null) {
+        continue;
+      }
+      for (final Map.Entry<String, Status> logEntryError : details.logEntryErrors.entrySet()) {
+        if (rejectedEntries == null) {
+          rejectedEntries = new TreeMap<Integer, String>();
+        }
+        final Status status = logEntryError.getValue();
+        rejectedEntries.put(Integer.valueOf(logEntryError.getKey()),
+                            status == null ? null : status.message);
+      }
+    }
+    return rejectedEntries;
+  }
+
+  public static class MonitoredResource extends GenericJson {
+    @Key
+    private String type;
+
+    @Key
+    private Map<String, String> labels;
+
+    public String getType() {
+      return type;
+    }
+
+    public MonitoredResource setType(final String type) {
+      this.type = type;
+      return this;
+    }
+
+    public Map<String, String> getLabels() {
+      return labels;
+    }
+
+    public MonitoredResource setLabels(final Map<String, String> labels) {
+      this.labels = labels;
+      return this;
+    }
+  }
+
+  public static class LogEntryV2 extends GenericJson {
+    @Key
+    private String insertId;
+
+    @Key
+    private String logName;
+
+    @Key
+    private String severity;
+
+    @Key
+    private String timestamp;
+
+    @Key
+    private Map<String, String> labels;
+
+    @Key
+    private String textPayload;
+
+    public String getInsertId() {
+      return insertId;
+    }
+
+    public LogEntryV2 setInsertId(final String insertId) {
+      this.insertId = insertId;
+      return this;
+    }
+
+    public String getLogName() {
+      return logName;
+    }
+
+    public LogEntryV2 setLogName(final String logName) {
+      this.logName = logName;
+      return this;
+    }
+
+    public String getSeverity() {
+      return severity;
+    }
+
+    public LogEntryV2 setSeverity(final String severity) {
+      this.severity = severity;
+      return this;
+    }
+
+    public String getTimestamp() {
+      return timestamp;
+    }
+
+    public LogEntryV2 setTimestamp(final String timestamp) {
+      this.timestamp = timestamp;
+      return this;
+    }
+
+    public Map<String, String> getLabels() {
+      return labels;
+    }
+
+    public LogEntryV2 setLabels(final Map<String, String> labels) {
+      this.labels = labels;
+      return this;
+    }
+
+    public String getTextPayload() {
+      return textPayload;
+    }
+
+    public LogEntryV2 setTextPayload(final String textPayload) {
+      this.textPayload = textPayload;
+      return this;
+    }
+  }
+
+  public static class WriteRequest extends GenericJson {
+    @Key
+    private MonitoredResource resource;
+
+    @Key
+    private Boolean partialSuccess;
+
+    @Key
+    private List<LogEntryV2> entries;
+
+    public MonitoredResource getResource() {
+      return resource;
+    }
+
+    public WriteRequest setResource(final MonitoredResource resource) {
+      this.resource = resource;
+      return this;
+    }
+
+    public Boolean getPartialSuccess() {
+      return partialSuccess;
+    }
+
+    public WriteRequest setPartialSuccess(final Boolean partialSuccess) {
+      this.partialSuccess = partialSuccess;
+      return this;
+    }
+
+    public List<LogEntryV2> getEntries() {
+      return entries;
+    }
+
+    public WriteRequest setEntries(final List<LogEntryV2> entries) {
+      this.entries = entries;
+      return this;
+    }
+  }
+
+  public static class ErrorResponse extends GenericJson {
+    @Key
+    private ErrorStatus error;
+  }
+
+  public static class ErrorStatus extends GenericJson {
+    @Key
+    private List<PartialErrors> details;
+  }
+
+  /**
+   * The WriteLogEntriesPartialErrors details of an error. Other details leave it empty.
+   */
+  public static class PartialErrors extends GenericJson {
+    @Key
+    private Map<String, Status> logEntryErrors;
+  }
+
+  public static class Status extends GenericJson {
+    @Key
+    private String message;
+  }
+}
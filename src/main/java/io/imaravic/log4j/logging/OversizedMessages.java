@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.imaravic.log4j.logging.util.Utf8;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * OversizedMessages keeps messages within the UTF-8 byte limit of an entry, either by
+ * truncating them, or by splitting them into chunks which are written as entries of their own.
+ *
+ * Chunks are cut at char boundaries, never within a surrogate pair, so every chunk is valid
+ * text on its own. The entries of a message carry labels with the id shared by its chunks,
+ * and the number of the chunk out of their count, for example {@code 2/5}.
+ */
+final class OversizedMessages {
+  static final String LABEL_PREFIX = "io.imaravic.log4j.logging/";
+  static final String TRUNCATED_LABEL = LABEL_PREFIX + "truncated";
+  static final String CHUNK_ID_LABEL = LABEL_PREFIX + "chunk_id";
+  static final String CHUNK_LABEL = LABEL_PREFIX + "chunk";
+
+  static final Map<String, String> TRUNCATED_LABELS = ImmutableMap.of(TRUNCATED_LABEL, "true");
+
+  // The longest char, a surrogate pair, takes 4 bytes, so every chunk holds at least one
+  static final int MIN_MAX_MESSAGE_BYTES = 4;
+
+  private OversizedMessages() {
+  }
+
+  /**
+   * Returns the end of the part of the message which fits into {@code maxBytes},
+   * which is the length of the message if all of it fits, or if there's no limit.
+   */
+  static int fittingEnd(final CharSequence message, final int maxBytes) {
+    // No char takes more than 3 bytes per UTF-16 unit, so short messages fit without a scan
+    if (maxBytes <= 0 || (long) message.length() * 3 <= maxBytes) {
+      return message.length();
+    }
+    return Utf8.prefixEnd(message, 0, maxBytes);
+  }
+
+  /**
+   * Returns the ends of the chunks of at most {@code maxBytes} bytes the message splits into,
+   * starting with the end of the first chunk, {@code firstEnd}.
+   */
+  static int[] chunkEnds(final CharSequence message, final int firstEnd, final int maxBytes) {
+    int[] ends = new int[8];
+    int count = 0;
+    int end = firstEnd;
+    while (true) {
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      ends[count++] = end;
+      if (end == message.length()) {
+        return Arrays.copyOf(ends, count);
+      }
+      end = Utf8.prefixEnd(message, end, maxBytes);
+    }
+  }
+
+  static Map<String, String> chunkLabels(final String chunkId, final int chunk, final int count) {
+    return ImmutableMap.of(CHUNK_ID_LABEL, chunkId, CHUNK_LABEL, chunk + "/" + count);
+  }
+
+  /**
+   * Returns the most bytes the labels take within an entry.
+   */
+  static int labelsLength(final Map<String, String> labels) {
+    if (labels == null) {
+      return 0;
+    }
+    int length = ",\"labels\":{}".length();
+    for (final Map.Entry<String, String> label : labels.entrySet()) {
+      length += ",\"\":\"\"".length() +
+                Utf8.encodedLength(label.getKey()) + Utf8.encodedLength(label.getValue());
+    }
+    return length;
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RequestHedger sends a duplicate of a request which is still waiting for its response
+ * once the given percentile of the request latency has passed, and takes whichever
+ * response comes first. Duplicate entries are dropped by the API thanks to their insertId.
+ *
+ * At most {@code maxHedgeRatio} of the requests get hedged, so a slow API doesn't get
+ * twice the traffic. Until enough requests were measured, none of them are hedged.
+ * A duplicate takes room among the requests in flight like any other request, and
+ * none is sent while there is no room for it.
+ */
+class RequestHedger {
+  private static final Logger LOGGER = StatusLogger.getLogger();
+  private static final long MIN_MEASURED_REQUESTS = 20;
+  private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final GoogleCloudLoggingMetrics metrics;
+  private final double latencyPercentile;
+  private final double maxHedgeRatio;
+  private final ExecutorService executor;
+  private final Capacity capacity;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  // 0 until enough requests were measured, then recomputed once per refresh interval
+  private volatile long hedgeDelayNanos;
+  private volatile long delayRefreshedNanos;
+
+  RequestHedger(final GoogleCloudLoggingMetrics metrics,
+                final double latencyPercentile,
+                final double maxHedgeRatio,
+                final ExecutorService executor,
+                final Capacity capacity) {
+    this.metrics = metrics;
+    this.latencyPercentile = latencyPercentile;
+    this.maxHedgeRatio = maxHedgeRatio;
+    this.executor = executor;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Runs the request, and a duplicate of it if it takes too long. Both run on the
+   * executor, while the calling thread waits for the first response, or for both
+   * failures. The response of a duplicate which lost the race is read out and dropped.
+   */
+  HttpResponse execute(final Callable<HttpResponse> request) throws IOException {
+    requests.incrementAndGet();
+    final long delayNanos = getHedgeDelayNanos();
+    final Attempts attempts = new Attempts(request);
+    if (delayNanos == 0 || !attempts.launch(executor)) {
+      return call(request);
+    }
+    if (!attempts.await(delayNanos) && capacity.tryAcquire()) {
+      if (takeHedge() && attempts.launch(executor)) {
+        metrics.requestsHedged.increment();
+      } else {
+        capacity.release();
+      }
+    }
+    return attempts.get();
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  private long getHedgeDelayNanos() {
+    final long nowNanos = System.nanoTime();
+    if ((hedgeDelayNanos == 0 || nowNanos - delayRefreshedNanos >= DELAY_REFRESH_NANOS) &&
+        metrics.httpLatency.getCount() >= MIN_MEASURED_REQUESTS) {
+      hedgeDelayNanos = Math.max(1, metrics.httpLatency.getValueAtPercentile(latencyPercentile));
+      delayRefreshedNanos = nowNanos;
+    }
+    return hedgeDelayNanos;
+  }
+
+  private boolean takeHedge() {
+    while (true) {
+      final long taken = hedges.get();
+      if (taken + 1 > maxHedgeRatio * requests.get()) {
+        return false;
+      }
+      if (hedges.compareAndSet(taken, taken + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private static HttpResponse call(final Callable<HttpResponse> request) throws IOException {
+    try {
+      return request.call();
+    } catch (final IOException e) {
+      throw e;
+    } catch (final Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * The copies of a request in flight, the first response of which wins.
+   */
+  private final class Attempts {
+    private final Callable<HttpResponse> request;
+    private final SettableFuture<HttpResponse> response = SettableFuture.create();
+    // Guarded by this
+    private int launched;
+    private int running;
+    private IOException failure;
+
+    Attempts(final Callable<HttpResponse> request) {
+      this.request = request;
+    }
+
+    /**
+     * Starts another copy of the request, unless a copy is already done.
+     */
+    boolean launch(final ExecutorService executor) {
+      final boolean hedge;
+      synchronized (this) {
+        if (response.isDone()) {
+          return false;
+        }
+        hedge = launched > 0;
+        ++launched;
+        ++running;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            attempt(hedge);
+          }
+        });
+        return true;
+      } catch (final RejectedExecutionException e) {
+        synchronized (this) {
+          --launched;
+          --running;
+        }
+        return false;
+      }
+    }
+
+    private void attempt(final boolean hedge) {
+      final HttpResponse httpResponse;
+      try {
+        httpResponse = call(request);
+      } catch (final IOException e) {
+        failed(e);
+        return;
+      } finally {
+        if (hedge) {
+          capacity.release();
+        }
+      }
+      if (response.set(httpResponse)) {
+        if (hedge) {
+          metrics.hedgesWon.increment();
+        }
+      } else {
+        discard(httpResponse);
+      }
+    }
+
+    private synchronized void failed(final IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+      if (--running == 0) {
+        response.setException(failure);
+      }
+    }
+
+    /**
+     * Returns whether a copy got done within the given time.
+     */
+    boolean await(final long timeoutNanos) {
+      try {
+        Uninterruptibles.getUninterruptibly(response, timeoutNanos, TimeUnit.NANOSECONDS);
+        return true;
+      } catch (final ExecutionException e) {
+        return true;
+      } catch (final TimeoutException e) {
+        return false;
+      }
+    }
+
+    HttpResponse get() throws IOException {
+      try {
+        return Uninterruptibles.getUninterruptibly(response);
+      } catch (final ExecutionException e) {
+        throw (IOException) e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Room for a duplicate among the requests in flight.
+   */
+  interface Capacity {
+    /**
+     * Takes room for a duplicate, unless there is none left.
+     */
+    boolean tryAcquire();
+
+    void release();
+  }
+
+  private static void discard(final HttpResponse response) {
+    try {
+      response.ignore();
+    } catch (final IOException e) {
+      LOGGER.debug("Failed to read out the response of a hedged request", e);
+    }
+  }
+}
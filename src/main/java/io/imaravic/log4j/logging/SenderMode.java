@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+/**
+ * Where the batches of a {@link GoogleCloudLoggingManager} get sent from.
+ */
+public enum SenderMode {
+  /**
+   * On the logging thread which completed the batch, which waits for the
+   * request, retries included, and sees its failure.
+   */
+  CALLER,
+
+  /**
+   * On a fixed pool of platform threads.
+   */
+  THREADS,
+
+  /**
+   * On a virtual thread per batch, when the JVM supports virtual threads (Java 21+),
+   * and on a fixed pool of platform threads otherwise.
+   */
+  VIRTUAL
+}
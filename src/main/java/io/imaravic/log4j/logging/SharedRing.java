@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging;
+
+import com.google.api.services.logging.model.LogEntry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SharedRing is a ring of entries in a memory-mapped file, which the JVMs of a host append
+ * their batches to, and a single one of them drains, so that only that one writes to the API.
+ *
+ * The file starts with a header holding the capacity of the ring, and the number of bytes
+ * ever read from it and written to it, followed by the ring itself. Every record is an entry,
+ * prefixed with its length, and never wraps around the end of the ring: a record which doesn't
+ * fit before the end starts over at the beginning, after a padding marker, if there's room
+ * for one. Appending and draining take a lock on the header, both the lock of the file, which
+ * keeps the other processes out, and a monitor, which keeps out the other threads of the JVM.
+ * The process draining the ring is the one holding the lock of the election file next to it.
+ *
+ * Delivery is at most once: draining moves the read offset past the entries before they are
+ * handed over, so the ring isn't locked while they are sent. Entries the drainer doesn't get to
+ * hand over, because the handler failed or the process died, are lost rather than sent twice,
+ * and a failed handler is reported with an {@link EntriesLostException}.
+ */
+class SharedRing implements Closeable {
+  private static final int MAGIC = 0x474c5247;
+  private static final int VERSION = 1;
+  private static final int READ_OFFSET = 16;
+  private static final int WRITTEN_OFFSET = 24;
+  private static final int HEADER_BYTES = 64;
+  private static final int LENGTH_BYTES = 4;
+  private static final int PADDING = -1;
+  private static final int MIN_CAPACITY = 64 * 1024;
+  // File locks are held by the whole JVM, so its threads take turns through a monitor per file
+  private static final ConcurrentMap<String, Object> MONITORS =
+      new ConcurrentHashMap<String, Object>();
+
+  private final String path;
+  private final Object monitor;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final MappedByteBuffer mapped;
+  private final int capacity;
+  private final RandomAccessFile electionFile;
+  // Guarded by the ring
+  private FileLock election;
+  // Reused by the appending threads, guarded by the monitor
+  private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+  private final DataOutputStream recordsOut = new DataOutputStream(records);
+
+  /**
+   * Receives the entries drained from the ring.
+   */
+  interface EntryHandler {
+    void onEntry(String logName,
+                 String severity,
+                 long timeMillis,
+                 String text,
+                 Map<String, String> labels);
+  }
+
+  /**
+   * Thrown by {@link #drain} when entries taken out of the ring couldn't be handed over,
+   * and are lost.
+   */
+  static class EntriesLostException extends IOException {
+    private final int lostEntries;
+
+    EntriesLostException(final int lostEntries, final Throwable cause) {
+      super(lostEntries + " entries drained from the shared ring were lost", cause);
+      this.lostEntries = lostEntries;
+    }
+
+    int getLostEntries() {
+      return lostEntries;
+    }
+  }
+
+  private SharedRing(final String path,
+                     final Object monitor,
+                     final RandomAccessFile file,
+                     final MappedByteBuffer mapped,
+                     final int capacity) throws IOException {
+    this.path = path;
+    this.monitor = monitor;
+    this.file = file;
+    this.channel = file.getChannel();
+    this.mapped = mapped;
+    this.capacity = capacity;
+    this.electionFile = new RandomAccessFile(path + ".sender", "rw");
+  }
+
+  /**
+   * Opens the ring of the given file, creating it with the given capacity unless another
+   * process already did, in which case its capacity is taken over.
+   */
+  static SharedRing open(final String fileName, final int capacity) throws IOException {
+    final String path = new File(fileName).getCanonicalPath();
+    final Object newMonitor = new Object();
+    final Object existingMonitor = MONITORS.putIfAbsent(path, newMonitor);
+    final Object monitor = existingMonitor != null ? existingMonitor : newMonitor;
+    final RandomAccessFile file = new RandomAccessFile(path, "rw");
+    try {
+      synchronized (monitor) {
+        return open(path, monitor, file, capacity);
+      }
+    } catch (final IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private static SharedRing open(final String path,
+                                 final Object monitor,
+                                 final RandomAccessFile file,
+                                 final int capacity) throws IOException {
+    final FileLock lock = file.getChannel().lock(0, HEADER_BYTES, false);
+    try {
+      final int ringCapacity;
+      if (file.length() >= HEADER_BYTES && file.readInt() == MAGIC) {
+        file.readInt();
+        ringCapacity = (int) file.readLong();
+      } else {
+        ringCapacity = Math.max(MIN_CAPACITY, capacity);
+        file.setLength(HEADER_BYTES + ringCapacity);
+        file.seek(0);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeLong(ringCapacity);
+        file.writeLong(0);
+        file.writeLong(0);
+      }
+      final MappedByteBuffer mapped =
+          file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + ringCapacity);
+      return new SharedRing(path, monitor, file, mapped, ringCapacity);
+    } finally {
+      lock.release();
+    }
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Appends the entries of the batch, whose event times and formatted messages are all set,
+   * and returns the number of bytes they took. Either all of them are appended, or none of
+   * them, when the ring doesn't have room for all of them.
+   */
+  long append(final LogEntryBatch batch) throws IOException {
+    synchronized (monitor) {
+      records.reset();
+      final int[] ends = new int[batch.size()];
+      for (int i = 0; i < batch.size(); ++i) {
+        writeEntry(batch.getEntries().get(i), batch.getEventTimeMillis(i));
+        ends[i] = records.size();
+      }
+      final byte[] bytes = records.toByteArray();
+
+      final ByteBuffer ring = mapped.duplicate();
+      final FileLock lock = channel.lock(0, HEADER_BYTES, false);
+      try {
+        final long read = mapped.getLong(READ_OFFSET);
+        long written = mapped.getLong(WRITTEN_OFFSET);
+        if (requiredBytes(written, ends) > capacity - (written - read)) {
+          throw new IOException("Shared ring " + path + " is full");
+        }
+        int start = 0;
+        for (final int end : ends) {
+          final int recordBytes = LENGTH_BYTES + end - start;
+          final long recordStart = fittingStart(written, recordBytes);
+          final int offset = (int) (written % capacity);
+          if (recordStart != written && offset + LENGTH_BYTES <= capacity) {
+            mapped.putInt(HEADER_BYTES + offset, PADDING);
+          }
+          ring.position(HEADER_BYTES + (int) (recordStart % capacity));
+          ring.putInt(end - start);
+          ring.put(bytes, start, end - start);
+          written = recordStart + recordBytes;
+          start = end;
+        }
+        mapped.putLong(WRITTEN_OFFSET, written);
+      } finally {
+        lock.release();
+      }
+      return bytes.length + LENGTH_BYTES * ends.length;
+    }
+  }
+
+  /**
+   * Returns the bytes the records of the given ends take when written from {@code written}
+   * on, including the ones skipped at the end of the ring.
+   */
+  private long requiredBytes(final long written, final int[] ends) {
+    long end = written;
+    int start = 0;
+    for (final int recordEnd : ends) {
+      final int recordBytes = LENGTH_BYTES + recordEnd - start;
+      if (recordBytes > capacity) {
+        return Long.MAX_VALUE;
+      }
+      end = fittingStart(end, recordBytes) + recordBytes;
+      start = recordEnd;
+    }
+    return end - written;
+  }
+
+  /**
+   * Returns where a record of the given size written next starts, which is the start of
+   * the ring if it doesn't fit before the end of it.
+   */
+  private long fittingStart(final long written, final int recordBytes) {
+    final int offset = (int) (written % capacity);
+    return offset + recordBytes <= capacity ? written : written + capacity - offset;
+  }
+
+  private void writeEntry(final LogEntry entry, final long timeMillis) throws IOException {
+    final Map<String, String> labels = entry.getMetadata().getLabels();
+    recordsOut.writeLong(timeMillis);
+    recordsOut.writeUTF(entry.getLog());
+    recordsOut.writeUTF(entry.getMetadata().getSeverity());
+    recordsOut.writeInt(labels == null ? 0 : labels.size());
+    if (labels != null) {
+      for (final Map.Entry<String, String> label : labels.entrySet()) {
+        recordsOut.writeUTF(label.getKey());
+        recordsOut.writeUTF(label.getValue());
+      }
+    }
+    // Written on its own, as writeUTF only takes up to 64 KiB
+    final byte[] text = entry.getTextPayload().getBytes(Charsets.UTF_8);
+    recordsOut.writeInt(text.length);
+    recordsOut.write(text);
+  }
+
+  /**
+   * Takes the entries out of the ring, up to about {@code maxBytes} of them, and hands them
+   * over to the handler once the ring is unlocked. Returns the number of entries drained.
+   * Once taken out they are gone from the ring, so if the handler throws, the entries not
+   * handed over yet are lost, which the {@link EntriesLostException} thrown instead tells.
+   */
+  int drain(final int maxBytes, final EntryHandler handler) throws IOException {
+    byte[] drained = new byte[0];
+    int drainedBytes = 0;
+    int count = 0;
+    synchronized (monitor) {
+      final ByteBuffer ring = mapped.duplicate();
+      final FileLock lock = channel.lock(0, HEADER_BYTES, false);
+      try {
+        long read = mapped.getLong(READ_OFFSET);
+        final long written = mapped.getLong(WRITTEN_OFFSET);
+        while (read < written && drainedBytes < maxBytes) {
+          final int offset = (int) (read % capacity);
+          if (offset + LENGTH_BYTES > capacity || mapped.getInt(HEADER_BYTES + offset) == PADDING) {
+            read += capacity - offset;
+            continue;
+          }
+          ring.position(HEADER_BYTES + offset);
+          final int length = ring.getInt();
+          if (drainedBytes + length > drained.length) {
+            drained = Arrays.copyOf(drained, Math.max(drained.length * 2, drainedBytes + length));
+          }
+          ring.get(drained, drainedBytes, length);
+          drainedBytes += length;
+          read += LENGTH_BYTES + length;
+          ++count;
+        }
+        mapped.putLong(READ_OFFSET, read);
+      } finally {
+        lock.release();
+      }
+    }
+
+    final DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(drained, 0, drainedBytes));
+    int handedOver = 0;
+    try {
+      for (; handedOver < count; ++handedOver) {
+        handOver(in, handler);
+      }
+    } catch (final IOException e) {
+      throw new EntriesLostException(count - handedOver, e);
+    } catch (final RuntimeException e) {
+      throw new EntriesLostException(count - handedOver, e);
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next entry drained, and hands it over to the handler.
+   */
+  private static void handOver(final DataInputStream in, final EntryHandler handler)
+      throws IOException {
+    final long timeMillis = in.readLong();
+    final String logName = in.readUTF();
+    final String severity = in.readUTF();
+    final int labelCount = in.readInt();
+    Map<String, String> labels = null;
+    if (labelCount > 0) {
+      final ImmutableMap.Builder<String, String> labelsBuilder = ImmutableMap.builder();
+      for (int j = 0; j < labelCount; ++j) {
+        labelsBuilder.put(in.readUTF(), in.readUTF());
+      }
+      labels = labelsBuilder.build();
+    }
+    final byte[] text = new byte[in.readInt()];
+    in.readFully(text);
+    handler.onEntry(logName, severity, timeMillis, new String(text, Charsets.UTF_8), labels);
+  }
+
+  /**
+   * Tries to become the process draining the ring, and returns whether it is.
+   * The election is lost only when the process ends, or the ring is closed.
+   */
+  synchronized boolean elect() throws IOException {
+    if (election == null) {
+      try {
+        election = electionFile.getChannel().tryLock();
+      } catch (final OverlappingFileLockException e) {
+        // Another ring of this JVM drains it, such as the one of a replaced manager
+      }
+    }
+    return election != null;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (election != null) {
+        election.release();
+        election = null;
+      }
+    } finally {
+      electionFile.close();
+      file.close();
+    }
+  }
+}
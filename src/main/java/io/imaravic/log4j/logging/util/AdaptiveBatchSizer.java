@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * AdaptiveBatchSizer tunes the number of entries sent in a single request
+ * with an additive-increase/multiplicative-decrease controller.
+ * The batch size grows by a step after every full batch that got acknowledged
+ * within the target latency, and is halved whenever the API signals overload
+ * (request too large, throttling or a timeout).
+ */
+public class AdaptiveBatchSizer {
+  // Guarded by this, as the limits can change while batches are being sent
+  private int minBatchSize;
+  private int maxBatchSize;
+  private int increaseStep;
+  private long targetLatencyNanos;
+
+  private volatile int batchSize;
+
+  public AdaptiveBatchSizer(final int minBatchSize,
+                            final int maxBatchSize,
+                            final long targetLatencyNanos) {
+    setLimits(minBatchSize, maxBatchSize, targetLatencyNanos);
+    this.batchSize = maxBatchSize;
+  }
+
+  /**
+   * Changes the limits of the batch size, and moves the current batch size within them.
+   */
+  public synchronized void setLimits(final int minBatchSize,
+                                     final int maxBatchSize,
+                                     final long targetLatencyNanos) {
+    Preconditions.checkArgument(minBatchSize > 0, "minBatchSize must be positive");
+    Preconditions.checkArgument(maxBatchSize >= minBatchSize,
+                                "maxBatchSize must not be smaller than minBatchSize");
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.increaseStep = Math.max(1, minBatchSize);
+    this.targetLatencyNanos = targetLatencyNanos;
+    this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, batchSize));
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public synchronized void onSuccess(final int sentBatchSize, final long latencyNanos) {
+    // Only a full batch says anything about whether a bigger one would be fine
+    if (sentBatchSize >= batchSize && latencyNanos <= targetLatencyNanos) {
+      batchSize = Math.min(maxBatchSize, batchSize + increaseStep);
+    }
+  }
+
+  public synchronized void onOverload() {
+    batchSize = Math.max(minBatchSize, batchSize / 2);
+  }
+}
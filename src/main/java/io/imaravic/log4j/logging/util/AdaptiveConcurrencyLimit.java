@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AdaptiveConcurrencyLimit bounds the number of requests in flight with a limit which follows
+ * the capacity of the server, in the spirit of the gradient limiters of TCP Vegas.
+ *
+ * Every response compares its round trip time with the long-term average one. While they
+ * match, the limit grows by about its square root, the requests the server is allowed to
+ * queue; once the round trip time grows by more than half, the server queues more than that,
+ * and the limit shrinks in proportion to how much it grew. An overloaded server (throttling,
+ * unavailability or a timeout) halves the limit, at most once per average round trip time,
+ * as the requests in flight at the time were sent under the same limit. Overloads a request
+ * retries on its own are reported through {@link #onOverload} as they happen. The limit only
+ * grows while the requests in flight actually take up half of it.
+ *
+ * Uses a lock rather than a monitor, so virtual threads waiting for the limit don't pin
+ * their carrier thread.
+ */
+public class AdaptiveConcurrencyLimit {
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final double MIN_GRADIENT = 0.5;
+  private static final double OVERLOAD_BACKOFF = 0.5;
+  private static final int WARMUP_SAMPLES = 10;
+  private static final int LONG_WINDOW_SAMPLES = 600;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition belowLimit = lock.newCondition();
+
+  // Guarded by the lock
+  private int maxLimit;
+  private int inFlight;
+  private long samples;
+  private double longRttNanos;
+  private boolean backedOff;
+  private long lastBackoffNanos;
+
+  private volatile double limit;
+
+  public AdaptiveConcurrencyLimit(final int initialLimit, final int maxLimit) {
+    Preconditions.checkArgument(initialLimit > 0, "initialLimit must be positive");
+    Preconditions.checkArgument(maxLimit > 0, "maxLimit must be positive");
+    this.maxLimit = maxLimit;
+    this.limit = Math.min(initialLimit, maxLimit);
+  }
+
+  /**
+   * Changes the highest the limit gets, and moves the limit below it.
+   */
+  public void setMaxLimit(final int maxLimit) {
+    Preconditions.checkArgument(maxLimit > 0, "maxLimit must be positive");
+    lock.lock();
+    try {
+      this.maxLimit = maxLimit;
+      limit = Math.min(limit, maxLimit);
+      belowLimit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Waits until fewer requests than the limit are in flight, and takes a place among them.
+   * Returns the number of requests in flight, this one included, to be given back
+   * to {@link #release}.
+   */
+  public int acquire() {
+    lock.lock();
+    try {
+      while (inFlight >= (int) limit) {
+        belowLimit.awaitUninterruptibly();
+      }
+      return ++inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a place among the requests in flight, unless they are at the limit already.
+   * A place taken this way is given back through {@link #releaseUnmeasured}.
+   */
+  public boolean tryAcquire() {
+    lock.lock();
+    try {
+      if (inFlight >= (int) limit) {
+        return false;
+      }
+      ++inFlight;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives the place of a request back without adjusting the limit, as for a duplicate
+   * of a request whose round trip time the original one reports.
+   */
+  public void releaseUnmeasured() {
+    lock.lock();
+    try {
+      --inFlight;
+      belowLimit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives the place of a request back, and adjusts the limit to its round trip time,
+   * or to the overload it ran into.
+   */
+  public void release(final int inFlightAtStart, final long rttNanos, final boolean overloaded) {
+    lock.lock();
+    try {
+      --inFlight;
+      if (overloaded) {
+        backOff(System.nanoTime());
+      } else {
+        onSample(inFlightAtStart, Math.max(1, rttNanos));
+      }
+      belowLimit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lets the limit back off from an overload which a request in flight is about to retry.
+   */
+  public void onOverload() {
+    lock.lock();
+    try {
+      backOff(System.nanoTime());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void backOff(final long nowNanos) {
+    if (!backedOff || nowNanos - lastBackoffNanos >= longRttNanos) {
+      backedOff = true;
+      lastBackoffNanos = nowNanos;
+      limit = Math.max(1, limit * OVERLOAD_BACKOFF);
+    }
+  }
+
+  private void onSample(final int inFlightAtStart, final long rttNanos) {
+    ++samples;
+    if (samples <= WARMUP_SAMPLES) {
+      // A plain average until the window fills up a bit
+      longRttNanos += (rttNanos - longRttNanos) / samples;
+      return;
+    }
+    longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW_SAMPLES;
+    // Once the server got a lot faster, catch up with it sooner than the window would
+    if (longRttNanos / rttNanos > 2) {
+      longRttNanos *= 0.95;
+    }
+    // Growing the limit while it isn't used says nothing about the capacity of the server
+    if (inFlightAtStart < limit / 2) {
+      return;
+    }
+
+    final double gradient =
+        Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+    final double newLimit = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(1, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+  }
+}
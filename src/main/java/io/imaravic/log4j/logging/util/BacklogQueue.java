@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BacklogQueue is the task queue of a thread pool, which hands out the oldest task first,
+ * unless more than the threshold of tasks are waiting, in which case it hands out the newest
+ * one first. After an outage the fresh tasks then don't wait behind the whole backlog.
+ */
+public class BacklogQueue<E> extends LinkedBlockingDeque<E> {
+  private static final long serialVersionUID = 1L;
+
+  // 0 to always hand out the oldest first
+  private volatile int newestFirstThreshold;
+
+  public BacklogQueue(final int newestFirstThreshold) {
+    setNewestFirstThreshold(newestFirstThreshold);
+  }
+
+  public void setNewestFirstThreshold(final int newestFirstThreshold) {
+    this.newestFirstThreshold = Math.max(0, newestFirstThreshold);
+  }
+
+  private boolean isNewestFirst() {
+    final int threshold = newestFirstThreshold;
+    return threshold > 0 && size() > threshold;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    return isNewestFirst() ? takeLast() : takeFirst();
+  }
+
+  @Override
+  public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return isNewestFirst() ? pollLast(timeout, unit) : pollFirst(timeout, unit);
+  }
+
+  @Override
+  public E poll() {
+    return isNewestFirst() ? pollLast() : pollFirst();
+  }
+}
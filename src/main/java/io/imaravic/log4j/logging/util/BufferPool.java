@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * BufferPool hands out heap byte buffers and takes them back for reuse,
+ * so steady state users don't allocate any.
+ * Buffers come in power of two size classes, from {@code minCapacity} up to
+ * {@code maxPooledCapacity} bytes, so a request is served by the smallest pooled
+ * buffer which fits it. Larger buffers aren't pooled, and the pooled ones
+ * take at most {@code maxPooledBytes} bytes in total.
+ */
+public class BufferPool {
+  private final ArrayDeque<ByteBuffer>[] sizeClasses;
+  private final int minCapacityShift;
+  private final long maxPooledBytes;
+  private long pooledBytes;
+
+  @SuppressWarnings("unchecked")
+  public BufferPool(final int minCapacity,
+                    final int maxPooledCapacity,
+                    final long maxPooledBytes) {
+    this.minCapacityShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, minCapacity) - 1);
+    this.sizeClasses = new ArrayDeque[Math.max(0, sizeClass(maxPooledCapacity + 1))];
+    for (int i = 0; i < sizeClasses.length; ++i) {
+      sizeClasses[i] = new ArrayDeque<ByteBuffer>();
+    }
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /**
+   * Returns a cleared buffer of at least the given capacity.
+   */
+  public ByteBuffer acquire(final int capacity) {
+    final ByteBuffer buffer = poll(capacity);
+    if (buffer != null) {
+      return buffer;
+    }
+    final int sizeClass = sizeClass(capacity);
+    return ByteBuffer.allocate(sizeClass >= sizeClasses.length
+                               ? capacity
+                               : 1 << (minCapacityShift + sizeClass));
+  }
+
+  /**
+   * Returns a cleared pooled buffer of at least the given capacity, or null if none is pooled.
+   */
+  public ByteBuffer poll(final int capacity) {
+    final int sizeClass = sizeClass(capacity);
+    if (sizeClass >= sizeClasses.length) {
+      return null;
+    }
+    ByteBuffer buffer = null;
+    synchronized (this) {
+      // A larger buffer is better than a new one
+      for (int i = sizeClass; buffer == null && i < sizeClasses.length; ++i) {
+        buffer = sizeClasses[i].poll();
+      }
+      if (buffer != null) {
+        pooledBytes -= buffer.capacity();
+      }
+    }
+    if (buffer != null) {
+      buffer.clear();
+    }
+    return buffer;
+  }
+
+  public void release(final ByteBuffer buffer) {
+    final int sizeClass = sizeClass(buffer.capacity());
+    // Only the buffers of a size class are taken back
+    if (sizeClass >= sizeClasses.length ||
+        buffer.capacity() != 1 << (minCapacityShift + sizeClass)) {
+      return;
+    }
+    synchronized (this) {
+      if (pooledBytes + buffer.capacity() <= maxPooledBytes) {
+        sizeClasses[sizeClass].push(buffer);
+        pooledBytes += buffer.capacity();
+      }
+    }
+  }
+
+  public synchronized int size() {
+    int size = 0;
+    for (final ArrayDeque<ByteBuffer> sizeClass : sizeClasses) {
+      size += sizeClass.size();
+    }
+    return size;
+  }
+
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  private int sizeClass(final int capacity) {
+    return Math.max(0, 32 - Integer.numberOfLeadingZeros(capacity - 1) - minCapacityShift);
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * DirectBufferArena hands out room for records in direct memory, so that
+ * pending data doesn't stay on the heap.
+ *
+ * The arena is made of slabs of direct memory, allocated as needed up to the
+ * capacity of the arena. Records are written one after the other into the
+ * current slab, at its position, by a single writer. A slab is cleared and
+ * reused once it is full and every record in it got released.
+ * Readers must not move the position of a slab, they should read from a
+ * {@link ByteBuffer#duplicate()} of it.
+ */
+public class DirectBufferArena {
+  private final int slabBytes;
+  private final int maxSlabs;
+  private final ByteBuffer[] slabs;
+  private final int[] liveRecords;
+  private final ArrayDeque<ByteBuffer> freeSlabs = new ArrayDeque<ByteBuffer>();
+  private int allocatedSlabs;
+  private int currentSlab = -1;
+
+  public DirectBufferArena(final long capacityBytes, final int slabBytes) {
+    this.slabBytes = (int) Math.min(slabBytes, capacityBytes);
+    this.maxSlabs = (int) Math.max(1, capacityBytes / this.slabBytes);
+    this.slabs = new ByteBuffer[maxSlabs];
+    this.liveRecords = new int[maxSlabs];
+  }
+
+  /**
+   * Returns the slab to write a record of at most {@code maxBytes} bytes to, at its position,
+   * or null if the arena is full or the record doesn't fit into a slab.
+   * The slab has to be {@link #release released} once the record isn't needed anymore.
+   */
+  public synchronized ByteBuffer allocate(final int maxBytes) {
+    if (maxBytes > slabBytes) {
+      return null;
+    }
+    if (currentSlab < 0 || slabs[currentSlab].remaining() < maxBytes) {
+      retireCurrentSlab();
+      if (!nextSlab()) {
+        return null;
+      }
+    }
+    ++liveRecords[currentSlab];
+    return slabs[currentSlab];
+  }
+
+  /**
+   * Releases a record written to the given slab.
+   */
+  public synchronized void release(final ByteBuffer slab) {
+    final int index = indexOf(slab);
+    if (--liveRecords[index] == 0 && index != currentSlab) {
+      slab.clear();
+      freeSlabs.push(slab);
+    }
+  }
+
+  /**
+   * Returns whether the buffer is one of the slabs of this arena.
+   */
+  public synchronized boolean owns(final ByteBuffer buffer) {
+    for (int i = 0; i < allocatedSlabs; ++i) {
+      if (slabs[i] == buffer) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the direct memory allocated so far.
+   */
+  public synchronized long getAllocatedBytes() {
+    return (long) allocatedSlabs * slabBytes;
+  }
+
+  private void retireCurrentSlab() {
+    if (currentSlab >= 0 && liveRecords[currentSlab] == 0) {
+      slabs[currentSlab].clear();
+      freeSlabs.push(slabs[currentSlab]);
+    }
+    currentSlab = -1;
+  }
+
+  private boolean nextSlab() {
+    final ByteBuffer free = freeSlabs.poll();
+    if (free != null) {
+      currentSlab = indexOf(free);
+    } else if (allocatedSlabs < maxSlabs) {
+      currentSlab = allocatedSlabs++;
+      slabs[currentSlab] = ByteBuffer.allocateDirect(slabBytes);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private int indexOf(final ByteBuffer slab) {
+    for (int i = 0; i < allocatedSlabs; ++i) {
+      if (slabs[i] == slab) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Buffer is not a slab of this arena");
+  }
+}
@@ -21,22 +21,46 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Reads the metadata of the instance from the metadata server.
+ *
+ * Fetched values are cached, as the metadata the appender reads doesn't change
+ * while the instance runs, so managers sharing this object look every value up only once.
+ */
 public class GoogleCloudMetadata {
   private static final String COMPUTE_METADATA_BASE_URL = "http://metadata/computeMetadata/v1/";
 
   private final HttpTransport transport;
+  private final String metadataBaseUrl;
+  private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
 
   public GoogleCloudMetadata(final HttpTransport transport) {
+    this(transport, COMPUTE_METADATA_BASE_URL);
+  }
+
+  /**
+   * Fetches the metadata from the server at the given base URL, which has to end with a slash.
+   */
+  public GoogleCloudMetadata(final HttpTransport transport, final String metadataBaseUrl) {
     this.transport = transport;
+    this.metadataBaseUrl = metadataBaseUrl;
   }
 
   public String fetchFromPath(final String path) throws IOException {
-    final GenericUrl metadataUrl = new GenericUrl(COMPUTE_METADATA_BASE_URL);
+    final String cached = cache.get(path);
+    if (cached != null) {
+      return cached;
+    }
+    final GenericUrl metadataUrl = new GenericUrl(metadataBaseUrl);
     metadataUrl.appendRawPath(path);
     HttpRequest request = transport.createRequestFactory()
         .buildGetRequest(metadataUrl);
     request.getHeaders().set("Metadata-Flavor", "Google");
-    return request.execute().parseAsString();
+    final String value = request.execute().parseAsString();
+    cache.putIfAbsent(path, value);
+    return value;
   }
 }
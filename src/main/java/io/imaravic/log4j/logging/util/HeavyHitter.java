@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Immutable view of a key tracked by {@link HeavyHitters}, exposed over JMX as composite data.
+ * The bytes may be overcounted by at most the bytes error, but never undercounted.
+ * The entries are counted alongside them, and include up to the entries error of other keys.
+ */
+public class HeavyHitter {
+  private final String name;
+  private final String level;
+  private final long entries;
+  private final long bytes;
+  private final long entriesError;
+  private final long bytesError;
+
+  @ConstructorProperties({"name", "level", "entries", "bytes", "entriesError", "bytesError"})
+  public HeavyHitter(final String name,
+                     final String level,
+                     final long entries,
+                     final long bytes,
+                     final long entriesError,
+                     final long bytesError) {
+    this.name = name;
+    this.level = level;
+    this.entries = entries;
+    this.bytes = bytes;
+    this.entriesError = entriesError;
+    this.bytesError = bytesError;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getLevel() {
+    return level;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getEntriesError() {
+    return entriesError;
+  }
+
+  public long getBytesError() {
+    return bytesError;
+  }
+
+  @Override
+  public String toString() {
+    return name + " " + level + " entries=" + entries + " bytes=" + bytes +
+           " (+/-" + bytesError + ")";
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HeavyHitters is a fixed-memory sketch of the keys, pairs of a name and a level, which take
+ * the most bytes, using the Space-Saving algorithm: up to {@code capacity} keys are counted,
+ * and a key which isn't counted yet takes over the counter of the smallest one, inheriting its
+ * counts as the error. Every key which took more than {@code 1 / capacity} of the bytes
+ * recorded by a thread is guaranteed to be counted in its sketch.
+ *
+ * Updates are spread over sketches selected by the id of the updating thread, like
+ * {@link StripedCounter}, which are merged when read, so reads are more expensive than writes.
+ * Recording a key which is already counted never allocates.
+ */
+public class HeavyHitters {
+  private final int capacity;
+  private final Sketch[] sketches;
+  private final int mask;
+
+  public HeavyHitters(final int capacity) {
+    this(capacity, Runtime.getRuntime().availableProcessors());
+  }
+
+  public HeavyHitters(final int capacity, final int concurrencyLevel) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    final int stripes = ThreadStripes.count(concurrencyLevel);
+    this.capacity = capacity;
+    this.mask = stripes - 1;
+    this.sketches = new Sketch[stripes];
+    for (int i = 0; i < stripes; ++i) {
+      sketches[i] = new Sketch(capacity);
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void record(final String name, final String level, final long entries, final long bytes) {
+    final Sketch sketch = sketches[ThreadStripes.index(mask)];
+    synchronized (sketch) {
+      sketch.record(name, level, entries, bytes);
+    }
+  }
+
+  /**
+   * Returns up to {@code capacity} keys which took the most bytes, the largest one first.
+   * A key missing from the full sketch of a thread may have taken up to the bytes of the
+   * smallest key of that sketch there, which are added to its bytes and their error.
+   */
+  public List<HeavyHitter> top() {
+    final Map<Key, long[]> merged = new HashMap<Key, long[]>();
+    long fullSketchesMinBytes = 0;
+    for (final Sketch sketch : sketches) {
+      synchronized (sketch) {
+        final long minBytes = sketch.size == capacity ? sketch.heap[0].bytes : 0;
+        fullSketchesMinBytes += minBytes;
+        for (int i = 0; i < sketch.size; ++i) {
+          final Counter counter = sketch.heap[i];
+          long[] counts = merged.get(counter.key);
+          if (counts == null) {
+            counts = new long[5];
+            merged.put(counter.key, counts);
+          }
+          counts[0] += counter.entries;
+          counts[1] += counter.bytes;
+          counts[2] += counter.entriesError;
+          counts[3] += counter.bytesError;
+          // The smallest bytes of the full sketches the key was found in
+          counts[4] += minBytes;
+        }
+      }
+    }
+
+    final List<HeavyHitter> heavyHitters = new ArrayList<HeavyHitter>(merged.size());
+    for (final Map.Entry<Key, long[]> keyCounts : merged.entrySet()) {
+      final long[] counts = keyCounts.getValue();
+      final long missingBytes = fullSketchesMinBytes - counts[4];
+      heavyHitters.add(new HeavyHitter(keyCounts.getKey().name,
+                                       keyCounts.getKey().level,
+                                       counts[0],
+                                       counts[1] + missingBytes,
+                                       counts[2],
+                                       counts[3] + missingBytes));
+    }
+    Collections.sort(heavyHitters, new Comparator<HeavyHitter>() {
+      @Override
+      public int compare(final HeavyHitter first, final HeavyHitter second) {
+        return first.getBytes() < second.getBytes() ? 1 :
+               first.getBytes() > second.getBytes() ? -1 : 0;
+      }
+    });
+    return heavyHitters.size() <= capacity ? heavyHitters
+                                            : new ArrayList<HeavyHitter>(
+                                                heavyHitters.subList(0, capacity));
+  }
+
+  private static final class Key {
+    private String name;
+    private String level;
+
+    Key(final String name, final String level) {
+      this.name = name;
+      this.level = level;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) other;
+      return name.equals(key.name) && level.equals(key.level);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() * 31 + level.hashCode();
+    }
+  }
+
+  private static final class Counter {
+    private Key key;
+    private long entries;
+    private long bytes;
+    private long entriesError;
+    private long bytesError;
+    private int heapIndex;
+  }
+
+  /**
+   * The counters of a stripe, indexed by key, and kept in a min-heap by their bytes,
+   * so the smallest one is taken over in constant time.
+   */
+  private static final class Sketch {
+    private final Counter[] heap;
+    private final Map<Key, Counter> counters;
+    // Looks keys up without allocating a key for every update
+    private final Key probe = new Key("", "");
+    private int size;
+
+    Sketch(final int capacity) {
+      this.heap = new Counter[capacity];
+      this.counters = new HashMap<Key, Counter>(capacity * 2);
+    }
+
+    void record(final String name, final String level, final long entries, final long bytes) {
+      probe.name = name;
+      probe.level = level;
+      Counter counter = counters.get(probe);
+      if (counter == null && size < heap.length) {
+        counter = new Counter();
+        counter.key = new Key(name, level);
+        counter.entries = entries;
+        counter.bytes = bytes;
+        counters.put(counter.key, counter);
+        heap[size] = counter;
+        siftUp(size++);
+        return;
+      }
+      if (counter == null) {
+        counter = heap[0];
+        counters.remove(counter.key);
+        counter.key = new Key(name, level);
+        counter.entriesError = counter.entries;
+        counter.bytesError = counter.bytes;
+        counters.put(counter.key, counter);
+      }
+      counter.entries += entries;
+      counter.bytes += bytes;
+      siftDown(counter.heapIndex);
+    }
+
+    private void siftUp(int index) {
+      final Counter counter = heap[index];
+      while (index > 0) {
+        final int parent = (index - 1) / 2;
+        if (heap[parent].bytes <= counter.bytes) {
+          break;
+        }
+        heap[index] = heap[parent];
+        heap[index].heapIndex = index;
+        index = parent;
+      }
+      heap[index] = counter;
+      counter.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+      final Counter counter = heap[index];
+      while (true) {
+        final int left = index * 2 + 1;
+        if (left >= size) {
+          break;
+        }
+        final int right = left + 1;
+        final int smallest = right < size && heap[right].bytes < heap[left].bytes ? right : left;
+        if (heap[smallest].bytes >= counter.bytes) {
+          break;
+        }
+        heap[index] = heap[smallest];
+        heap[index].heapIndex = index;
+        index = smallest;
+      }
+      heap[index] = counter;
+      counter.heapIndex = index;
+    }
+  }
+}
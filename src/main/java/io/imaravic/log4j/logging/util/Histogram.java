@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram is a fixed-memory, log-linear histogram of non-negative long values,
+ * in the spirit of HdrHistogram. Every power of two range is split into
+ * equally sized sub-buckets, which keeps the relative error of the reported
+ * values under ~3%. Recording a value never allocates.
+ *
+ * Like {@link StripedCounter}, the buckets are spread over stripes selected by the id of the
+ * recording thread, so threads recording at once don't contend on the same cache lines.
+ * Reads merge all the stripes, so they are more expensive than writes.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  // Keeps the max of a stripe and the buckets of the next one 128 bytes apart
+  private static final int STRIPE_PADDING = 16;
+
+  private final long highestTrackableValue;
+  private final int bucketCount;
+  // Every stripe holds its buckets, followed by its max value and the padding
+  private final int stripeStride;
+  private final int mask;
+  private final AtomicLongArray cells;
+  private final StripedCounter totalCount;
+  private final StripedCounter totalSum;
+
+  public Histogram(final long highestTrackableValue) {
+    this(highestTrackableValue, Runtime.getRuntime().availableProcessors());
+  }
+
+  public Histogram(final long highestTrackableValue, final int concurrencyLevel) {
+    if (highestTrackableValue < SUB_BUCKET_COUNT) {
+      throw new IllegalArgumentException("highestTrackableValue must be at least " +
+                                         SUB_BUCKET_COUNT);
+    }
+    final int stripes = ThreadStripes.count(concurrencyLevel);
+    this.highestTrackableValue = highestTrackableValue;
+    this.bucketCount = indexFor(highestTrackableValue) + 1;
+    this.stripeStride = bucketCount + 1 + STRIPE_PADDING;
+    this.mask = stripes - 1;
+    this.cells = new AtomicLongArray(stripes * stripeStride);
+    this.totalCount = new StripedCounter(concurrencyLevel);
+    this.totalSum = new StripedCounter(concurrencyLevel);
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    } else if (value > highestTrackableValue) {
+      value = highestTrackableValue;
+    }
+    final int stripe = ThreadStripes.index(mask) * stripeStride;
+    cells.incrementAndGet(stripe + indexFor(value));
+    totalCount.increment();
+    totalSum.add(value);
+
+    final int maxIndex = stripe + bucketCount;
+    long currentMax = cells.get(maxIndex);
+    while (value > currentMax && !cells.compareAndSet(maxIndex, currentMax, value)) {
+      currentMax = cells.get(maxIndex);
+    }
+  }
+
+  public long getCount() {
+    return totalCount.sum();
+  }
+
+  public long getMax() {
+    long max = 0;
+    for (int stripe = 0; stripe < cells.length(); stripe += stripeStride) {
+      max = Math.max(max, cells.get(stripe + bucketCount));
+    }
+    return max;
+  }
+
+  public double getMean() {
+    final long count = totalCount.sum();
+    return count == 0 ? 0 : (double) totalSum.sum() / count;
+  }
+
+  /**
+   * Returns the highest value that is equivalent (within the histogram precision)
+   * to the value at the given percentile, or 0 if nothing was recorded.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    return getValueAtPercentile(percentile, snapshotCounts());
+  }
+
+  public HistogramSnapshot snapshot() {
+    final long[] snapshot = snapshotCounts();
+    return new HistogramSnapshot(getCount(),
+                                 getMean(),
+                                 getValueAtPercentile(50.0, snapshot),
+                                 getValueAtPercentile(90.0, snapshot),
+                                 getValueAtPercentile(99.0, snapshot),
+                                 getValueAtPercentile(99.9, snapshot),
+                                 getMax());
+  }
+
+  /**
+   * Returns an array to be used as the baseline of {@link #intervalSnapshot(long[])}.
+   */
+  public long[] newBaseline() {
+    return new long[bucketCount];
+  }
+
+  /**
+   * Returns a snapshot of the values recorded since the baseline was last moved,
+   * and moves the baseline to now. Mean and max are derived from the buckets,
+   * so they carry the same relative error as the percentiles.
+   */
+  public HistogramSnapshot intervalSnapshot(final long[] baseline) {
+    final long[] interval = snapshotCounts();
+    long count = 0;
+    double sum = 0;
+    long max = 0;
+    for (int i = 0; i < interval.length; ++i) {
+      final long current = interval[i];
+      interval[i] = current - baseline[i];
+      baseline[i] = current;
+      if (interval[i] > 0) {
+        count += interval[i];
+        sum += (double) interval[i] * highestEquivalentValue(i);
+        max = highestEquivalentValue(i);
+      }
+    }
+    return new HistogramSnapshot(count,
+                                 count == 0 ? 0 : sum / count,
+                                 getValueAtPercentile(50.0, interval),
+                                 getValueAtPercentile(90.0, interval),
+                                 getValueAtPercentile(99.0, interval),
+                                 getValueAtPercentile(99.9, interval),
+                                 max);
+  }
+
+  private long[] snapshotCounts() {
+    final long[] snapshot = new long[bucketCount];
+    for (int stripe = 0; stripe < cells.length(); stripe += stripeStride) {
+      for (int i = 0; i < bucketCount; ++i) {
+        snapshot[i] += cells.get(stripe + i);
+      }
+    }
+    return snapshot;
+  }
+
+  private static long getValueAtPercentile(final double percentile, final long[] snapshot) {
+    long total = 0;
+    for (final long count : snapshot) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    final long countAtPercentile =
+        Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+    long runningCount = 0;
+    for (int i = 0; i < snapshot.length; ++i) {
+      runningCount += snapshot[i];
+      if (runningCount >= countAtPercentile) {
+        return highestEquivalentValue(i);
+      }
+    }
+    return highestEquivalentValue(snapshot.length - 1);
+  }
+
+  static int indexFor(final long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+    final int subBucket = (int) (value >>> shift);
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT +
+           (subBucket - SUB_BUCKET_HALF_COUNT);
+  }
+
+  static long highestEquivalentValue(final int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    final long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT +
+                           SUB_BUCKET_HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Immutable point-in-time view of a {@link Histogram}, exposed over JMX as composite data.
+ */
+public class HistogramSnapshot {
+  private final long count;
+  private final double mean;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+  private final long p999;
+  private final long max;
+
+  @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+  public HistogramSnapshot(final long count,
+                           final double mean,
+                           final long p50,
+                           final long p90,
+                           final long p99,
+                           final long p999,
+                           final long max) {
+    this.count = count;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p90 = p90;
+    this.p99 = p99;
+    this.p999 = p999;
+    this.max = max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP90() {
+    return p90;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getP999() {
+    return p999;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + count +
+           ", mean=" + Math.round(mean) +
+           ", p50=" + p50 +
+           ", p90=" + p90 +
+           ", p99=" + p99 +
+           ", p99.9=" + p999 +
+           ", max=" + max;
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.Lists;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static io.imaravic.log4j.logging.util.Reflection.classForName;
+import static io.imaravic.log4j.logging.util.Reflection.findMethod;
+
+/**
+ * HttpTransport over the HTTP client of Java 11+, through reflection, so the library
+ * keeps running on older JVMs.
+ *
+ * Unlike the transports built on HttpURLConnection, which need a connection of their own
+ * for every request in flight, the requests in flight share a single HTTP/2 connection per
+ * host, as concurrent streams under the flow control of the connection.
+ * Servers which don't speak HTTP/2 are spoken to over HTTP/1.1.
+ */
+public final class Http2Transport extends HttpTransport {
+  // Set by the HTTP client itself, which refuses them from the caller
+  private static final Set<String> RESTRICTED_HEADERS =
+      ImmutableSet.of("connection", "content-length", "expect", "host", "upgrade");
+
+  private static final Class<?> HTTP_CLIENT = classForName("java.net.http.HttpClient");
+  private static final Class<?> CLIENT_BUILDER = classForName("java.net.http.HttpClient$Builder");
+  private static final Class<?> VERSION = classForName("java.net.http.HttpClient$Version");
+  private static final Class<?> DURATION = classForName("java.time.Duration");
+  private static final Class<?> HTTP_REQUEST = classForName("java.net.http.HttpRequest");
+  private static final Class<?> REQUEST_BUILDER =
+      classForName("java.net.http.HttpRequest$Builder");
+  private static final Class<?> BODY_PUBLISHER =
+      classForName("java.net.http.HttpRequest$BodyPublisher");
+  private static final Class<?> BODY_PUBLISHERS =
+      classForName("java.net.http.HttpRequest$BodyPublishers");
+  private static final Class<?> HTTP_RESPONSE = classForName("java.net.http.HttpResponse");
+  private static final Class<?> BODY_HANDLER =
+      classForName("java.net.http.HttpResponse$BodyHandler");
+  private static final Class<?> BODY_HANDLERS =
+      classForName("java.net.http.HttpResponse$BodyHandlers");
+  private static final Class<?> HTTP_HEADERS = classForName("java.net.http.HttpHeaders");
+  private static final Class<?> TIMEOUT_EXCEPTION =
+      classForName("java.net.http.HttpTimeoutException");
+
+  private static final Method NEW_CLIENT_BUILDER = findMethod(HTTP_CLIENT, "newBuilder");
+  private static final Method CLIENT_VERSION = findMethod(CLIENT_BUILDER, "version", VERSION);
+  private static final Method CLIENT_CONNECT_TIMEOUT =
+      findMethod(CLIENT_BUILDER, "connectTimeout", DURATION);
+  private static final Method BUILD_CLIENT = findMethod(CLIENT_BUILDER, "build");
+  private static final Method DURATION_OF_MILLIS = findMethod(DURATION, "ofMillis", long.class);
+  private static final Method NEW_REQUEST_BUILDER =
+      findMethod(HTTP_REQUEST, "newBuilder", URI.class);
+  private static final Method REQUEST_METHOD =
+      findMethod(REQUEST_BUILDER, "method", String.class, BODY_PUBLISHER);
+  private static final Method REQUEST_HEADER =
+      findMethod(REQUEST_BUILDER, "header", String.class, String.class);
+  private static final Method REQUEST_TIMEOUT = findMethod(REQUEST_BUILDER, "timeout", DURATION);
+  private static final Method BUILD_REQUEST = findMethod(REQUEST_BUILDER, "build");
+  private static final Method OF_BYTE_ARRAY =
+      findMethod(BODY_PUBLISHERS, "ofByteArray", byte[].class, int.class, int.class);
+  private static final Method NO_BODY = findMethod(BODY_PUBLISHERS, "noBody");
+  private static final Method OF_INPUT_STREAM = findMethod(BODY_HANDLERS, "ofInputStream");
+  private static final Method SEND = findMethod(HTTP_CLIENT, "send", HTTP_REQUEST, BODY_HANDLER);
+  private static final Method STATUS_CODE = findMethod(HTTP_RESPONSE, "statusCode");
+  private static final Method RESPONSE_HEADERS = findMethod(HTTP_RESPONSE, "headers");
+  private static final Method RESPONSE_BODY = findMethod(HTTP_RESPONSE, "body");
+  private static final Method RESPONSE_VERSION = findMethod(HTTP_RESPONSE, "version");
+  private static final Method HEADERS_MAP = findMethod(HTTP_HEADERS, "map");
+
+  private final Object client;
+  private final Object bodyHandler;
+
+  private Http2Transport(final Object client, final Object bodyHandler) {
+    this.client = client;
+    this.bodyHandler = bodyHandler;
+  }
+
+  public static boolean isSupported() {
+    return NEW_CLIENT_BUILDER != null && CLIENT_VERSION != null && CLIENT_CONNECT_TIMEOUT != null &&
+           BUILD_CLIENT != null && DURATION_OF_MILLIS != null && NEW_REQUEST_BUILDER != null &&
+           REQUEST_METHOD != null && REQUEST_HEADER != null && REQUEST_TIMEOUT != null &&
+           BUILD_REQUEST != null && OF_BYTE_ARRAY != null && NO_BODY != null &&
+           OF_INPUT_STREAM != null && SEND != null && STATUS_CODE != null &&
+           RESPONSE_HEADERS != null && RESPONSE_BODY != null && RESPONSE_VERSION != null &&
+           HEADERS_MAP != null && TIMEOUT_EXCEPTION != null;
+  }
+
+  /**
+   * Returns a transport preferring HTTP/2, whose connections time out after
+   * {@code connectTimeoutMillis}, or the client default for 0, or null if the
+   * HTTP client of Java 11+ is not available.
+   */
+  public static Http2Transport newTransport(final int connectTimeoutMillis) {
+    if (!isSupported()) {
+      return null;
+    }
+    try {
+      Object builder = CLIENT_VERSION.invoke(NEW_CLIENT_BUILDER.invoke(null),
+                                             VERSION.getField("HTTP_2").get(null));
+      if (connectTimeoutMillis > 0) {
+        builder = CLIENT_CONNECT_TIMEOUT.invoke(builder, duration(connectTimeoutMillis));
+      }
+      return new Http2Transport(BUILD_CLIENT.invoke(builder), OF_INPUT_STREAM.invoke(null));
+    } catch (final Exception e) {
+      return null;
+    }
+  }
+
+  @Override
+  public boolean supportsMethod(final String method) {
+    return true;
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(final String method, final String url) {
+    return new Http2Request(method, url);
+  }
+
+  private class Http2Request extends LowLevelHttpRequest {
+    private final String method;
+    private final String url;
+    private final List<String> headerNames = Lists.newArrayList();
+    private final List<String> headerValues = Lists.newArrayList();
+    private int readTimeoutMillis;
+
+    Http2Request(final String method, final String url) {
+      this.method = method;
+      this.url = url;
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+      headerNames.add(name);
+      headerValues.add(value);
+    }
+
+    @Override
+    public void setTimeout(final int connectTimeoutMillis, final int readTimeoutMillis) {
+      // The connect timeout belongs to the client, as the connection is shared
+      this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      try {
+        Object builder = NEW_REQUEST_BUILDER.invoke(null, URI.create(url));
+        for (int i = 0; i < headerNames.size(); ++i) {
+          if (!RESTRICTED_HEADERS.contains(headerNames.get(i).toLowerCase(Locale.ENGLISH))) {
+            builder = REQUEST_HEADER.invoke(builder, headerNames.get(i), headerValues.get(i));
+          }
+        }
+        if (getContentType() != null) {
+          builder = REQUEST_HEADER.invoke(builder, "Content-Type", getContentType());
+        }
+        if (getContentEncoding() != null) {
+          builder = REQUEST_HEADER.invoke(builder, "Content-Encoding", getContentEncoding());
+        }
+        if (readTimeoutMillis > 0) {
+          builder = REQUEST_TIMEOUT.invoke(builder, duration(readTimeoutMillis));
+        }
+        builder = REQUEST_METHOD.invoke(builder, method, bodyPublisher());
+        return new Http2Response(SEND.invoke(client, BUILD_REQUEST.invoke(builder), bodyHandler));
+      } catch (final InvocationTargetException e) {
+        throw asIOException(e.getCause());
+      } catch (final IllegalAccessException e) {
+        throw new IOException(e);
+      }
+    }
+
+    private Object bodyPublisher() throws IOException, IllegalAccessException,
+                                          InvocationTargetException {
+      if (getStreamingContent() == null) {
+        return NO_BODY.invoke(null);
+      }
+      final BodyOutputStream content =
+          new BodyOutputStream(getContentLength() > 0 ? (int) getContentLength() : 1024);
+      getStreamingContent().writeTo(content);
+      return content.publisher();
+    }
+  }
+
+  /**
+   * Hands its buffer over to the body publisher as it is, instead of copying it out.
+   */
+  private static class BodyOutputStream extends ByteArrayOutputStream {
+    BodyOutputStream(final int size) {
+      super(size);
+    }
+
+    Object publisher() throws IllegalAccessException, InvocationTargetException {
+      return OF_BYTE_ARRAY.invoke(null, buf, 0, count);
+    }
+  }
+
+  private static Object duration(final int millis)
+      throws IllegalAccessException, InvocationTargetException {
+    return DURATION_OF_MILLIS.invoke(null, (long) millis);
+  }
+
+  /**
+   * Reports timeouts the same way the other transports do, so they are retried
+   * and counted as timeouts.
+   */
+  private static IOException asIOException(final Throwable cause) {
+    if (TIMEOUT_EXCEPTION.isInstance(cause)) {
+      final SocketTimeoutException timeout = new SocketTimeoutException(cause.getMessage());
+      timeout.initCause(cause);
+      return timeout;
+    } else if (cause instanceof IOException) {
+      return (IOException) cause;
+    } else if (cause instanceof InterruptedException) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException interrupted = new InterruptedIOException(cause.getMessage());
+      interrupted.initCause(cause);
+      return interrupted;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    return new IOException(cause);
+  }
+
+  private static class Http2Response extends LowLevelHttpResponse {
+    private final int statusCode;
+    private final String version;
+    private final InputStream content;
+    private final List<String> headerNames = Lists.newArrayList();
+    private final List<String> headerValues = Lists.newArrayList();
+
+    Http2Response(final Object response) throws IllegalAccessException, InvocationTargetException {
+      this.statusCode = (Integer) STATUS_CODE.invoke(response);
+      this.version = RESPONSE_VERSION.invoke(response).toString();
+      this.content = (InputStream) RESPONSE_BODY.invoke(response);
+      @SuppressWarnings("unchecked")
+      final Map<String, List<String>> headers =
+          (Map<String, List<String>>) HEADERS_MAP.invoke(RESPONSE_HEADERS.invoke(response));
+      for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+        // HTTP/2 has a pseudo header for the status
+        if (header.getKey().startsWith(":")) {
+          continue;
+        }
+        for (final String value : header.getValue()) {
+          headerNames.add(header.getKey());
+          headerValues.add(value);
+        }
+      }
+    }
+
+    @Override
+    public InputStream getContent() {
+      return content;
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return getHeader("content-encoding");
+    }
+
+    @Override
+    public long getContentLength() {
+      final String contentLength = getHeader("content-length");
+      return contentLength == null ? -1 : Long.parseLong(contentLength);
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader("content-type");
+    }
+
+    @Override
+    public String getStatusLine() {
+      return (version.equals("HTTP_2") ? "HTTP/2" : "HTTP/1.1") + " " + statusCode;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getReasonPhrase() {
+      // HTTP/2 has no reason phrases
+      return null;
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return headerNames.size();
+    }
+
+    @Override
+    public String getHeaderName(final int index) {
+      return headerNames.get(index);
+    }
+
+    @Override
+    public String getHeaderValue(final int index) {
+      return headerValues.get(index);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+      content.close();
+    }
+
+    private String getHeader(final String name) {
+      for (int i = 0; i < headerNames.size(); ++i) {
+        if (headerNames.get(i).equalsIgnoreCase(name)) {
+          return headerValues.get(i);
+        }
+      }
+      return null;
+    }
+  }
+}
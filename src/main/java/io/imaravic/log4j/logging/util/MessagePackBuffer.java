@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import com.google.common.base.Charsets;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MessagePackBuffer encodes values into a growing heap buffer in the MessagePack format,
+ * which is kept and reused from one message to the next. It only covers what the Fluent
+ * forward protocol takes: maps, arrays, strings, binaries, integers and event times.
+ */
+public class MessagePackBuffer {
+  private static final byte EVENT_TIME_TYPE = 0;
+
+  private ByteBuffer buffer;
+
+  public MessagePackBuffer(final int initialCapacity) {
+    this.buffer = ByteBuffer.allocate(initialCapacity);
+  }
+
+  public void clear() {
+    buffer.clear();
+  }
+
+  public int position() {
+    return buffer.position();
+  }
+
+  /**
+   * Returns the bytes encoded so far, as a buffer sharing them, and ready to be read.
+   */
+  public ByteBuffer flip() {
+    final ByteBuffer encoded = buffer.duplicate();
+    encoded.flip();
+    return encoded;
+  }
+
+  public MessagePackBuffer packArrayHeader(final int size) {
+    if (size < 16) {
+      ensureRemaining(1);
+      buffer.put((byte) (0x90 | size));
+    } else if (size < 0x10000) {
+      ensureRemaining(3);
+      buffer.put((byte) 0xdc).putShort((short) size);
+    } else {
+      ensureRemaining(5);
+      buffer.put((byte) 0xdd).putInt(size);
+    }
+    return this;
+  }
+
+  public MessagePackBuffer packMapHeader(final int size) {
+    if (size < 16) {
+      ensureRemaining(1);
+      buffer.put((byte) (0x80 | size));
+    } else if (size < 0x10000) {
+      ensureRemaining(3);
+      buffer.put((byte) 0xde).putShort((short) size);
+    } else {
+      ensureRemaining(5);
+      buffer.put((byte) 0xdf).putInt(size);
+    }
+    return this;
+  }
+
+  public MessagePackBuffer packLong(final long value) {
+    if (value >= 0 && value < 0x80) {
+      ensureRemaining(1);
+      buffer.put((byte) value);
+    } else if (value >= 0 && value <= 0xffffffffL) {
+      ensureRemaining(5);
+      buffer.put((byte) 0xce).putInt((int) value);
+    } else {
+      ensureRemaining(9);
+      buffer.put((byte) 0xd3).putLong(value);
+    }
+    return this;
+  }
+
+  /**
+   * Packs the time as a Fluent EventTime, the seconds and nanoseconds since the epoch.
+   */
+  public MessagePackBuffer packEventTime(final long timeMillis) {
+    final long seconds = floorDiv(timeMillis, 1000);
+    ensureRemaining(10);
+    buffer.put((byte) 0xd7)
+        .put(EVENT_TIME_TYPE)
+        .putInt((int) seconds)
+        .putInt((int) (timeMillis - seconds * 1000) * 1000000);
+    return this;
+  }
+
+  /**
+   * Packs the chars of the text from {@code start} to {@code end} as a UTF-8 string.
+   * Unpaired surrogates are replaced, the same way the String encoder does.
+   */
+  public MessagePackBuffer packString(final CharSequence text, final int start, final int end) {
+    final int length = Utf8.encodedLength(start == 0 && end == text.length()
+                                          ? text : text.subSequence(start, end));
+    if (length < 32) {
+      ensureRemaining(1 + length);
+      buffer.put((byte) (0xa0 | length));
+    } else if (length < 0x100) {
+      ensureRemaining(2 + length);
+      buffer.put((byte) 0xd9).put((byte) length);
+    } else if (length < 0x10000) {
+      ensureRemaining(3 + length);
+      buffer.put((byte) 0xda).putShort((short) length);
+    } else {
+      ensureRemaining(5 + length);
+      buffer.put((byte) 0xdb).putInt(length);
+    }
+    putUtf8(text, start, end);
+    return this;
+  }
+
+  public MessagePackBuffer packString(final CharSequence text) {
+    return packString(text, 0, text.length());
+  }
+
+  /**
+   * Starts a binary whose length is only known once its bytes are packed, and returns
+   * its position, which {@link #endBinary} takes.
+   */
+  public int startBinary() {
+    ensureRemaining(5);
+    final int start = buffer.position();
+    buffer.put((byte) 0xc6).putInt(0);
+    return start;
+  }
+
+  public void endBinary(final int start) {
+    buffer.putInt(start + 1, buffer.position() - start - 5);
+  }
+
+  private void putUtf8(final CharSequence text, final int start, final int end) {
+    for (int i = start; i < end; ++i) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < end &&
+                 Character.isLowSurrogate(text.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        buffer.put((byte) (0xf0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        buffer.put((byte) '?');
+      } else {
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  private void ensureRemaining(final int bytes) {
+    if (buffer.remaining() < bytes) {
+      final ByteBuffer grown =
+          ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+  }
+
+  /**
+   * Reads a map of strings to strings, such as the acks of the Fluent forward protocol,
+   * from the start of the bytes, or returns null if the bytes don't hold all of it yet.
+   * The position of the bytes is left as it was.
+   *
+   * @throws IllegalArgumentException if the bytes start with anything else
+   */
+  public static Map<String, String> readStringMap(final ByteBuffer bytes) {
+    final ByteBuffer in = bytes.duplicate();
+    try {
+      final int header = in.get() & 0xff;
+      final int size;
+      if ((header & 0xf0) == 0x80) {
+        size = header & 0x0f;
+      } else if (header == 0xde) {
+        size = in.getShort() & 0xffff;
+      } else if (header == 0xdf) {
+        size = in.getInt();
+      } else {
+        throw new IllegalArgumentException("Not a map: 0x" + Integer.toHexString(header));
+      }
+      final Map<String, String> map = new LinkedHashMap<String, String>();
+      for (int i = 0; i < size; ++i) {
+        final String key = readString(in);
+        map.put(key, readString(in));
+      }
+      return map;
+    } catch (final BufferUnderflowException e) {
+      return null;
+    }
+  }
+
+  private static String readString(final ByteBuffer in) {
+    final int header = in.get() & 0xff;
+    final int length;
+    if ((header & 0xe0) == 0xa0) {
+      length = header & 0x1f;
+    } else if (header == 0xd9) {
+      length = in.get() & 0xff;
+    } else if (header == 0xda) {
+      length = in.getShort() & 0xffff;
+    } else if (header == 0xdb) {
+      length = in.getInt();
+    } else {
+      throw new IllegalArgumentException("Not a string: 0x" + Integer.toHexString(header));
+    }
+    if (length < 0 || length > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    final byte[] utf8 = new byte[length];
+    in.get(utf8);
+    return new String(utf8, Charsets.UTF_8);
+  }
+
+  private static long floorDiv(final long x, final long y) {
+    final long quotient = x / y;
+    return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Looks up the classes and methods of newer JVMs, which the library reaches through
+ * reflection so it keeps running on older ones. Whatever isn't there is null.
+ */
+final class Reflection {
+  private Reflection() {
+  }
+
+  static Class<?> classForName(final String className) {
+    try {
+      return Class.forName(className);
+    } catch (final ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the public method, or null if it, its class, or any of its parameter types
+   * is missing.
+   */
+  static Method findMethod(final Class<?> type,
+                           final String name,
+                           final Class<?>... parameterTypes) {
+    if (type == null) {
+      return null;
+    }
+    for (final Class<?> parameterType : parameterTypes) {
+      if (parameterType == null) {
+        return null;
+      }
+    }
+    try {
+      return type.getMethod(name, parameterTypes);
+    } catch (final NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -9,7 +9,6 @@ import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.Sleeper;
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
@@ -20,6 +19,18 @@ import java.io.IOException;
  * Credentials.
  */
 public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  // Throttled requests are worth retrying with a backoff just like server errors
+  private static final HttpBackOffUnsuccessfulResponseHandler.BackOffRequired
+      SERVER_ERROR_OR_THROTTLED = new HttpBackOffUnsuccessfulResponseHandler.BackOffRequired() {
+    @Override
+    public boolean isRequired(final HttpResponse response) {
+      return response.getStatusCode() / 100 == 5 ||
+             response.getStatusCode() == HTTP_TOO_MANY_REQUESTS;
+    }
+  };
+
   // Intercepts the request for filling in the "Authorization"
   // header field, as well as recovering from certain unsuccessful
   // error codes wherein the Credential must refresh its token for a
@@ -31,18 +42,28 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
 
   private final int maxElapsedTimeMillis;
 
+  // Connect and read timeout of every request, 0 keeps the client defaults
+  private final int requestTimeoutMillis;
+
   public RetryHttpInitializerWrapper(final Credential wrappedCredential,
                                      final int maxElapsedTimeMillis) {
     this(wrappedCredential, Sleeper.DEFAULT, maxElapsedTimeMillis);
   }
 
-  @VisibleForTesting
-  RetryHttpInitializerWrapper(final Credential wrappedCredential,
-                              final Sleeper sleeper,
-                              final int maxElapsedTimeMillis) {
+  public RetryHttpInitializerWrapper(final Credential wrappedCredential,
+                                     final Sleeper sleeper,
+                                     final int maxElapsedTimeMillis) {
+    this(wrappedCredential, sleeper, maxElapsedTimeMillis, 0);
+  }
+
+  public RetryHttpInitializerWrapper(final Credential wrappedCredential,
+                                     final Sleeper sleeper,
+                                     final int maxElapsedTimeMillis,
+                                     final int requestTimeoutMillis) {
     this.wrappedCredential = Preconditions.checkNotNull(wrappedCredential);
     this.sleeper = sleeper;
     this.maxElapsedTimeMillis = maxElapsedTimeMillis;
+    this.requestTimeoutMillis = requestTimeoutMillis;
   }
 
   @Override
@@ -52,8 +73,13 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
             new ExponentialBackOff.Builder()
                 .setMaxElapsedTimeMillis(maxElapsedTimeMillis)
                 .build())
-            .setSleeper(sleeper);
+            .setSleeper(sleeper)
+            .setBackOffRequired(SERVER_ERROR_OR_THROTTLED);
 
+    if (requestTimeoutMillis > 0) {
+      request.setConnectTimeout(requestTimeoutMillis);
+      request.setReadTimeout(requestTimeoutMillis);
+    }
     request.setInterceptor(wrappedCredential);
     request.setUnsuccessfulResponseHandler(
         new HttpUnsuccessfulResponseHandler() {
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * StripedCounter is a low-contention counter, with updates spread over
+ * a number of cells selected by the id of the updating thread.
+ * Reads sum all the cells, so they are more expensive than writes.
+ */
+public class StripedCounter {
+  // Each cell is padded to 128 bytes, so that two cells never share
+  // a cache line (or an adjacent-line prefetch pair).
+  private static final int CELL_STRIDE = 16;
+
+  private final AtomicLongArray cells;
+  private final int mask;
+
+  public StripedCounter() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public StripedCounter(final int concurrencyLevel) {
+    final int stripes = ThreadStripes.count(concurrencyLevel);
+    this.mask = stripes - 1;
+    this.cells = new AtomicLongArray(stripes * CELL_STRIDE);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  public void add(final long delta) {
+    cells.addAndGet(cellIndex(), delta);
+  }
+
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < cells.length(); i += CELL_STRIDE) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  private int cellIndex() {
+    return ThreadStripes.index(mask) * CELL_STRIDE;
+  }
+}
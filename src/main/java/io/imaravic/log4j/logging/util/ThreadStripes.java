@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+/**
+ * Spreads the updates of striped structures over their stripes by the id of the updating
+ * thread, so every thread keeps updating the same stripe.
+ */
+final class ThreadStripes {
+  private ThreadStripes() {
+  }
+
+  /**
+   * Returns the power of two number of stripes for the given concurrency level.
+   */
+  static int count(final int concurrencyLevel) {
+    int stripes = 1;
+    while (stripes < concurrencyLevel) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /**
+   * Returns the stripe of the current thread, where {@code mask} is the number of stripes
+   * less one.
+   */
+  static int index(final int mask) {
+    long id = Thread.currentThread().getId();
+    // Thread ids are sequential, mix them up a bit before masking
+    id ^= (id >>> 16);
+    id *= 0x9E3779B97F4A7C15L;
+    return (int) (id >>> 32) & mask;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+import static io.imaravic.log4j.logging.util.Reflection.classForName;
+import static io.imaravic.log4j.logging.util.Reflection.findMethod;
+
+/**
+ * Access to the Unix domain socket channels of Java 16+, through reflection,
+ * so the library keeps running on older JVMs.
+ */
+public final class UnixDomainSockets {
+  private static final Class<?> PROTOCOL_FAMILY = classForName("java.net.ProtocolFamily");
+  private static final Object UNIX = unixProtocolFamily();
+  private static final Method ADDRESS_OF =
+      findMethod(classForName("java.net.UnixDomainSocketAddress"), "of", String.class);
+  private static final Method OPEN = findMethod(SocketChannel.class, "open", PROTOCOL_FAMILY);
+
+  private UnixDomainSockets() {
+  }
+
+  public static boolean isSupported() {
+    return UNIX != null && ADDRESS_OF != null && OPEN != null;
+  }
+
+  public static SocketAddress address(final String path) {
+    checkSupported();
+    try {
+      return (SocketAddress) ADDRESS_OF.invoke(null, path);
+    } catch (final IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (final InvocationTargetException e) {
+      throw new IllegalArgumentException("Invalid Unix domain socket path " + path, e.getCause());
+    }
+  }
+
+  /**
+   * Opens a socket channel, not connected yet, of the Unix domain protocol family.
+   */
+  public static SocketChannel open() throws IOException {
+    checkSupported();
+    try {
+      return (SocketChannel) OPEN.invoke(null, UNIX);
+    } catch (final IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (final InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static void checkSupported() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Unix domain sockets take Java 16 or newer");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object unixProtocolFamily() {
+    final Class<?> family = classForName("java.net.StandardProtocolFamily");
+    if (family == null) {
+      return null;
+    }
+    try {
+      return Enum.valueOf(family.asSubclass(Enum.class), "UNIX");
+    } catch (final IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+public final class Utf8 {
+  private Utf8() {
+  }
+
+  /**
+   * Returns the number of bytes the given text takes when encoded as UTF-8,
+   * without encoding it. Unpaired surrogates count as the single
+   * replacement byte the encoder would emit for them.
+   */
+  public static int encodedLength(final CharSequence text) {
+    final int length = text.length();
+    int encodedLength = length;
+    for (int i = 0; i < length; ++i) {
+      final char c = text.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          encodedLength += 1;
+        } else if (Character.isHighSurrogate(c) &&
+                   i + 1 < length &&
+                   Character.isLowSurrogate(text.charAt(i + 1))) {
+          // 4 bytes for the pair of chars
+          encodedLength += 2;
+          ++i;
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+          encodedLength += 2;
+        }
+      }
+    }
+    return encodedLength;
+  }
+
+  /**
+   * Returns the end of the longest run of the text starting at {@code start} which takes
+   * at most {@code maxBytes} bytes when encoded as UTF-8, without splitting a surrogate pair.
+   * Only the chars of the run, and the one after it, are looked at.
+   */
+  public static int prefixEnd(final CharSequence text, final int start, final int maxBytes) {
+    final int length = text.length();
+    int encodedLength = 0;
+    int i = start;
+    while (i < length) {
+      final char c = text.charAt(i);
+      int chars = 1;
+      final int bytes;
+      if (c < 0x80) {
+        bytes = 1;
+      } else if (c < 0x800) {
+        bytes = 2;
+      } else if (Character.isHighSurrogate(c) &&
+                 i + 1 < length &&
+                 Character.isLowSurrogate(text.charAt(i + 1))) {
+        bytes = 4;
+        chars = 2;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        bytes = 1;
+      } else {
+        bytes = 3;
+      }
+      if (encodedLength + bytes > maxBytes) {
+        break;
+      }
+      encodedLength += bytes;
+      i += chars;
+    }
+    return i;
+  }
+}
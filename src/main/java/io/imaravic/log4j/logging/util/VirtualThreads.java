@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015 Igor Maravić
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.imaravic.log4j.logging.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static io.imaravic.log4j.logging.util.Reflection.classForName;
+import static io.imaravic.log4j.logging.util.Reflection.findMethod;
+
+/**
+ * Access to the virtual threads of Java 21+, through reflection,
+ * so the library keeps running on older JVMs.
+ */
+public final class VirtualThreads {
+  private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+  private static final Method NAME = findMethod(classForName("java.lang.Thread$Builder"),
+                                                "name", String.class, long.class);
+  private static final Method FACTORY = findMethod(classForName("java.lang.Thread$Builder"),
+                                                   "factory");
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR =
+      findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+  private VirtualThreads() {
+  }
+
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null && NAME != null && FACTORY != null &&
+           NEW_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread for every task, the threads named
+   * {@code namePrefix} followed by a sequence number, or null if virtual threads are
+   * not supported.
+   */
+  public static ExecutorService newThreadPerTaskExecutor(final String namePrefix) {
+    if (!isSupported()) {
+      return null;
+    }
+    try {
+      final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+    } catch (final Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package io.imaravic.log4j.logging;
+
+import org.apache.logging.log4j.message.MessageFormatMessage;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringFormattedMessage;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeferredMessagesTest {
+  @Test
+  public void testParameterizedMessagesAreDeferred() {
+    // Their parameters are turned into strings when they are created
+    assertTrue(DeferredMessages.canDefer(
+        new ParameterizedMessage("{} {}", "text", new StringBuilder("mutable"))));
+  }
+
+  @Test
+  public void testFormattedMessagesWithImmutableParametersAreDeferred() {
+    assertTrue(DeferredMessages.canDefer(
+        new StringFormattedMessage("%s %d %s %s", "text", 42, TimeUnit.SECONDS, null)));
+    assertTrue(DeferredMessages.canDefer(
+        new MessageFormatMessage("{0} {1}", 1.5, true)));
+  }
+
+  @Test
+  public void testFormattedMessagesWithMutableParametersAreNotDeferred() {
+    assertFalse(DeferredMessages.canDefer(
+        new StringFormattedMessage("%s", new StringBuilder("mutable"))));
+    assertFalse(DeferredMessages.canDefer(
+        new MessageFormatMessage("{0}", Arrays.asList("mutable"))));
+  }
+
+  @Test
+  public void testOtherMessagesAreNotDeferred() {
+    assertFalse(DeferredMessages.canDefer(new SimpleMessage("text")));
+    assertFalse(DeferredMessages.canDefer(new ObjectMessage(new StringBuilder("mutable"))));
+  }
+
+  @Test
+  public void testLengthIsEstimatedFromFormatAndParameters() {
+    assertEquals("%s and %s".length() + 2 * 16,
+                 DeferredMessages.estimateLength(new StringFormattedMessage("%s and %s", "a", "b")));
+  }
+}
@@ -0,0 +1,487 @@
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.googleapis.compute.ComputeCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.logging.model.LogEntry;
+import com.google.api.services.logging.model.WriteLogEntriesRequest;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import io.imaravic.log4j.logging.util.GoogleCloudMetadata;
+
+/**
+ * In-process stand-in for the v1beta3 and v2 entries:write API and the GCE metadata server.
+ *
+ * Every write request first waits for the configured latency, and then, with the
+ * configured rates, times out (the connection is held for {@code timeoutMillis} and
+ * closed without a response), gets throttled with a 429, or fails with a 503.
+ * Only requests that get through are counted as delivered. The v2 API also rejects the
+ * entries whose text contains the configured marker, and writes the rest of the request.
+ */
+class FakeCloudLoggingServer {
+  static final String PROJECT_ID = "fake-project";
+  static final String ZONE = "europe-west1-d";
+  static final String INSTANCE_ID = "1234567890";
+
+  private static final String METADATA_PATH = "/computeMetadata/v1/";
+  private static final String API_PATH = "/v1beta3/";
+  private static final String V2_API_PATH = "/v2/";
+  private static final String V2_LOG_NAME_PREFIX = "projects/" + PROJECT_ID + "/logs/";
+  private static final String ENTRIES_WRITE_SUFFIX = "/entries:write";
+  private static final int HTTP_BAD_REQUEST = 400;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Random random;
+  private final Map<String, String> metadata = new ConcurrentHashMap<String, String>();
+
+  private final AtomicLong metadataRequests = new AtomicLong();
+  private final AtomicLong writeRequests = new AtomicLong();
+  private final AtomicLong compressedRequests = new AtomicLong();
+  private final AtomicLong acceptedRequests = new AtomicLong();
+  private final AtomicLong throttledRequests = new AtomicLong();
+  private final AtomicLong failedRequests = new AtomicLong();
+  private final AtomicLong timedOutRequests = new AtomicLong();
+  private final AtomicLong stalledRequests = new AtomicLong();
+  private final AtomicLong receivedEntries = new AtomicLong();
+  private final AtomicLong rejectedEntries = new AtomicLong();
+  private final Set<String> insertIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final ConcurrentMap<String, AtomicLong> entriesPerLog = Maps.newConcurrentMap();
+  private final Set<String> resourceTypes =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile long latencyMillis;
+  private volatile long latencyJitterMillis;
+  private volatile double errorRate;
+  private volatile double throttleRate;
+  private volatile double timeoutRate;
+  private volatile long timeoutMillis = 1000;
+  private volatile double stallRate;
+  private volatile long stallMillis;
+  private volatile String rejectedText;
+
+  FakeCloudLoggingServer() throws IOException {
+    this(System.nanoTime());
+  }
+
+  /**
+   * Creates a server whose fault injection draws from a random sequence with the given seed.
+   */
+  FakeCloudLoggingServer(final long seed) throws IOException {
+    random = new Random(seed);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fake-cloud-logging-%d").build());
+    server.setExecutor(executor);
+    server.createContext(METADATA_PATH, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        handleMetadata(exchange);
+      }
+    });
+    server.createContext(API_PATH, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        handleWrite(exchange);
+      }
+    });
+    server.createContext(V2_API_PATH, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        handleWriteV2(exchange);
+      }
+    });
+
+    metadata.put("project/project-id", PROJECT_ID);
+    metadata.put("instance/zone", "projects/" + PROJECT_ID + "/zones/" + ZONE);
+    metadata.put("instance/id", INSTANCE_ID);
+    metadata.put("instance/attributes/", "");
+    metadata.put("instance/service-accounts/default/token",
+                 "{\"access_token\":\"fake-token\",\"expires_in\":3600,\"token_type\":\"Bearer\"}");
+  }
+
+  FakeCloudLoggingServer start() {
+    server.start();
+    return this;
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Root URL to configure as the {@code loggingRootUrl} of the manager.
+   */
+  String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  String getMetadataUrl() {
+    return getRootUrl() + METADATA_PATH.substring(1);
+  }
+
+  /**
+   * Compute credentials that fetch their access token from this server's metadata.
+   */
+  GoogleCloudCredentials newCredentials() {
+    return new GoogleCloudCredentials(true, null, null) {
+      @Override
+      ComputeCredential buildNewComputeCredentials(final HttpTransport transport,
+                                                   final JacksonFactory jacksonFactory) {
+        return new ComputeCredential.Builder(transport, jacksonFactory)
+            .setTokenServerEncodedUrl(getMetadataUrl() +
+                                      "instance/service-accounts/default/token")
+            .build();
+      }
+    };
+  }
+
+  /**
+   * Manager that bootstraps from this server and writes {@code logName} to it.
+   */
+  GoogleCloudLoggingManager newManager(final String name,
+                                       final String logName,
+                                       final int maxRetryTimeMillis,
+                                       final GoogleCloudLoggingSettings.Builder settings)
+      throws Exception {
+    final HttpTransport transport = new NetHttpTransport();
+    return new GoogleCloudLoggingManager(name,
+                                         transport,
+                                         new GoogleCloudMetadata(transport, getMetadataUrl()),
+                                         newCredentials(),
+                                         null,
+                                         null,
+                                         logName,
+                                         null,
+                                         maxRetryTimeMillis,
+                                         settings.withLoggingRootUrl(getRootUrl()).build());
+  }
+
+  FakeCloudLoggingServer withMetadata(final String path, final String value) {
+    metadata.put(path, value);
+    return this;
+  }
+
+  FakeCloudLoggingServer withoutMetadata(final String path) {
+    metadata.remove(path);
+    return this;
+  }
+
+  FakeCloudLoggingServer withLatency(final long latencyMillis, final long jitterMillis) {
+    this.latencyMillis = latencyMillis;
+    this.latencyJitterMillis = jitterMillis;
+    return this;
+  }
+
+  FakeCloudLoggingServer withErrorRate(final double errorRate) {
+    this.errorRate = errorRate;
+    return this;
+  }
+
+  FakeCloudLoggingServer withThrottleRate(final double throttleRate) {
+    this.throttleRate = throttleRate;
+    return this;
+  }
+
+  FakeCloudLoggingServer withTimeouts(final double timeoutRate, final long timeoutMillis) {
+    this.timeoutRate = timeoutRate;
+    this.timeoutMillis = timeoutMillis;
+    return this;
+  }
+
+  /**
+   * Makes some of the requests wait the given time before they get handled as usual.
+   */
+  FakeCloudLoggingServer withStalls(final double stallRate, final long stallMillis) {
+    this.stallRate = stallRate;
+    this.stallMillis = stallMillis;
+    return this;
+  }
+
+  /**
+   * Makes the v2 API reject the entries whose text contains the given marker.
+   */
+  FakeCloudLoggingServer withRejectedText(final String rejectedText) {
+    this.rejectedText = rejectedText;
+    return this;
+  }
+
+  /**
+   * Requests to the metadata server, including the ones for access tokens.
+   */
+  long getMetadataRequests() {
+    return metadataRequests.get();
+  }
+
+  long getWriteRequests() {
+    return writeRequests.get();
+  }
+
+  long getCompressedRequests() {
+    return compressedRequests.get();
+  }
+
+  long getAcceptedRequests() {
+    return acceptedRequests.get();
+  }
+
+  long getThrottledRequests() {
+    return throttledRequests.get();
+  }
+
+  long getFailedRequests() {
+    return failedRequests.get();
+  }
+
+  long getTimedOutRequests() {
+    return timedOutRequests.get();
+  }
+
+  long getStalledRequests() {
+    return stalledRequests.get();
+  }
+
+  /**
+   * Returns the number of accepted entries, retried duplicates included.
+   */
+  long getReceivedEntries() {
+    return receivedEntries.get();
+  }
+
+  /**
+   * Returns the number of distinct insertIds among the accepted entries.
+   */
+  long getUniqueEntries() {
+    return insertIds.size();
+  }
+
+  long getRejectedEntries() {
+    return rejectedEntries.get();
+  }
+
+  /**
+   * Returns the monitored resource types of the accepted v2 requests.
+   */
+  Set<String> getResourceTypes() {
+    return resourceTypes;
+  }
+
+  long getEntries(final String logName) {
+    final AtomicLong entries = entriesPerLog.get(logName);
+    return entries == null ? 0 : entries.get();
+  }
+
+  private void handleMetadata(final HttpExchange exchange) throws IOException {
+    metadataRequests.incrementAndGet();
+    final String path = exchange.getRequestURI().getPath().substring(METADATA_PATH.length());
+    final String value = metadata.get(path);
+    // Like the real server, accept the legacy header the token requests still carry
+    if (!"Google".equals(exchange.getRequestHeaders().getFirst("Metadata-Flavor")) &&
+        !"true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("X-Google-Metadata-Request"))) {
+      respond(exchange, 403, "Missing Metadata-Flavor header");
+    } else if (value == null) {
+      respond(exchange, 404, "Not found");
+    } else {
+      respond(exchange, 200, value);
+    }
+  }
+
+  private void handleWrite(final HttpExchange exchange) throws IOException {
+    final String path = exchange.getRequestURI().getPath();
+    if (!"POST".equals(exchange.getRequestMethod()) || !path.endsWith(ENTRIES_WRITE_SUFFIX)) {
+      respond(exchange, 404, "Not found");
+      return;
+    }
+    writeRequests.incrementAndGet();
+    final byte[] body = readBody(exchange);
+    if (injectFault(exchange)) {
+      return;
+    }
+
+    final WriteLogEntriesRequest request =
+        JacksonFactory.getDefaultInstance().createJsonParser(new String(body, Charsets.UTF_8))
+            .parse(WriteLogEntriesRequest.class);
+    for (final LogEntry entry : request.getEntries()) {
+      accept(entry.getInsertId(), entry.getLog());
+    }
+    acceptedRequests.incrementAndGet();
+    respond(exchange, 200, "{}");
+  }
+
+  private void handleWriteV2(final HttpExchange exchange) throws IOException {
+    final String path = exchange.getRequestURI().getPath();
+    if (!"POST".equals(exchange.getRequestMethod()) ||
+        !path.equals("/" + LoggingV2.ENTRIES_WRITE_PATH)) {
+      respond(exchange, 404, "Not found");
+      return;
+    }
+    writeRequests.incrementAndGet();
+    final byte[] body = readBody(exchange);
+    if (injectFault(exchange)) {
+      return;
+    }
+
+    final LoggingV2.WriteRequest request =
+        JacksonFactory.getDefaultInstance().createJsonParser(new String(body, Charsets.UTF_8))
+            .parse(LoggingV2.WriteRequest.class);
+    final String rejected = rejectedText;
+    final StringBuilder logEntryErrors = new StringBuilder();
+    for (int i = 0; i < request.getEntries().size(); ++i) {
+      final LoggingV2.LogEntryV2 entry = request.getEntries().get(i);
+      if (!entry.getLogName().startsWith(V2_LOG_NAME_PREFIX)) {
+        respond(exchange, HTTP_BAD_REQUEST, "{\"error\":{\"code\":400}}");
+        return;
+      }
+      if (rejected != null && entry.getTextPayload().contains(rejected)) {
+        logEntryErrors.append(logEntryErrors.length() == 0 ? "" : ",")
+            .append('"').append(i).append("\":{\"code\":3,\"message\":\"Rejected\"}");
+      }
+    }
+    // Like the real API, a request without partial success is written all or nothing
+    final boolean partialSuccess = Boolean.TRUE.equals(request.getPartialSuccess());
+    if (logEntryErrors.length() == 0 || partialSuccess) {
+      for (int i = 0; i < request.getEntries().size(); ++i) {
+        final LoggingV2.LogEntryV2 entry = request.getEntries().get(i);
+        if (rejected != null && entry.getTextPayload().contains(rejected)) {
+          rejectedEntries.incrementAndGet();
+        } else {
+          accept(entry.getInsertId(),
+                 entry.getLogName().substring(V2_LOG_NAME_PREFIX.length()));
+        }
+      }
+      resourceTypes.add(request.getResource().getType());
+    }
+    if (logEntryErrors.length() > 0) {
+      respond(exchange, HTTP_BAD_REQUEST,
+              "{\"error\":{\"code\":400,\"message\":\"Rejected\",\"details\":[" +
+              "{\"@type\":\"type.googleapis.com/google.logging.v2.WriteLogEntriesPartialErrors\"," +
+              "\"logEntryErrors\":{" + logEntryErrors + "}}]}}");
+      return;
+    }
+    acceptedRequests.incrementAndGet();
+    respond(exchange, 200, "{}");
+  }
+
+  /**
+   * Waits for the configured latency, and then fails the request as configured.
+   * Returns whether the request failed.
+   */
+  private boolean injectFault(final HttpExchange exchange) throws IOException {
+    sleep(latencyMillis + (latencyJitterMillis > 0 ? nextLong(latencyJitterMillis) : 0));
+    if (stallRate > 0 && nextDouble() < stallRate) {
+      stalledRequests.incrementAndGet();
+      sleep(stallMillis);
+    }
+
+    final double fault = nextDouble();
+    if (fault < timeoutRate) {
+      timedOutRequests.incrementAndGet();
+      sleep(timeoutMillis);
+      exchange.close();
+      return true;
+    } else if (fault < timeoutRate + throttleRate) {
+      throttledRequests.incrementAndGet();
+      respond(exchange, HTTP_TOO_MANY_REQUESTS, "{\"error\":{\"code\":429}}");
+      return true;
+    } else if (fault < timeoutRate + throttleRate + errorRate) {
+      failedRequests.incrementAndGet();
+      respond(exchange, HTTP_SERVICE_UNAVAILABLE, "{\"error\":{\"code\":503}}");
+      return true;
+    }
+    return false;
+  }
+
+  private void accept(final String insertId, final String logName) {
+    insertIds.add(insertId);
+    AtomicLong logEntries = entriesPerLog.get(logName);
+    if (logEntries == null) {
+      entriesPerLog.putIfAbsent(logName, new AtomicLong());
+      logEntries = entriesPerLog.get(logName);
+    }
+    logEntries.incrementAndGet();
+    receivedEntries.incrementAndGet();
+  }
+
+  private synchronized double nextDouble() {
+    return random.nextDouble();
+  }
+
+  private synchronized long nextLong(final long bound) {
+    return (long) (random.nextDouble() * bound);
+  }
+
+  private static void respond(final HttpExchange exchange,
+                              final int statusCode,
+                              final String body) throws IOException {
+    final byte[] content = body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type",
+                                      body.startsWith("{") ? "application/json" : "text/plain");
+    // A zero length would make the response chunked, -1 means no body at all
+    exchange.sendResponseHeaders(statusCode, content.length == 0 ? -1 : content.length);
+    final OutputStream responseBody = exchange.getResponseBody();
+    try {
+      responseBody.write(content);
+    } finally {
+      responseBody.close();
+    }
+  }
+
+  /**
+   * Reads the body of the request, decompressing it if it was sent compressed.
+   */
+  private byte[] readBody(final HttpExchange exchange) throws IOException {
+    final InputStream body = exchange.getRequestBody();
+    if (!"gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      return readFully(body);
+    }
+    compressedRequests.incrementAndGet();
+    return readFully(new GZIPInputStream(body));
+  }
+
+  private static byte[] readFully(final InputStream in) throws IOException {
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void sleep(final long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package io.imaravic.log4j.logging;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the forward input of Fluentd, listening on the loopback interface.
+ *
+ * It takes Forward, PackedForward and Message mode messages, decodes their entries, and
+ * acknowledges the chunk of every message which asks for it, unless acks are turned off,
+ * in which case the client is left waiting.
+ */
+class FakeFluentForwardServer {
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor;
+  private final Set<Socket> connections =
+      Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+  private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+  private final AtomicLong acceptedConnections = new AtomicLong();
+  private final AtomicLong receivedMessages = new AtomicLong();
+  private volatile boolean acks = true;
+
+  static class Entry {
+    final String tag;
+    final long timeMillis;
+    final Map<?, ?> record;
+
+    Entry(final String tag, final long timeMillis, final Map<?, ?> record) {
+      this.tag = tag;
+      this.timeMillis = timeMillis;
+      this.record = record;
+    }
+  }
+
+  FakeFluentForwardServer() throws IOException {
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                                      .setDaemon(true)
+                                                      .setNameFormat("fake-fluent-%d")
+                                                      .build());
+  }
+
+  FakeFluentForwardServer start() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            final Socket socket = serverSocket.accept();
+            acceptedConnections.incrementAndGet();
+            connections.add(socket);
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            });
+          } catch (final IOException e) {
+            // Stopped
+          }
+        }
+      }
+    });
+    return this;
+  }
+
+  void stop() throws IOException {
+    serverSocket.close();
+    closeConnections();
+    executor.shutdownNow();
+  }
+
+  String getAddress() {
+    return "127.0.0.1:" + serverSocket.getLocalPort();
+  }
+
+  FakeFluentForwardServer withoutAcks() {
+    this.acks = false;
+    return this;
+  }
+
+  /**
+   * Closes the open connections, the way a restarting aggregator does.
+   */
+  void closeConnections() throws IOException {
+    for (final Socket socket : connections) {
+      socket.close();
+    }
+    connections.clear();
+  }
+
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  long getAcceptedConnections() {
+    return acceptedConnections.get();
+  }
+
+  long getReceivedMessages() {
+    return receivedMessages.get();
+  }
+
+  private void serve(final Socket socket) {
+    try {
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      final OutputStream out = socket.getOutputStream();
+      while (true) {
+        final List<?> message = (List<?>) read(in);
+        final String tag = (String) message.get(0);
+        final Object body = message.get(1);
+        Map<?, ?> options = null;
+        if (body instanceof byte[]) {
+          final DataInputStream packed =
+              new DataInputStream(new ByteArrayInputStream((byte[]) body));
+          while (packed.available() > 0) {
+            addEntry(tag, (List<?>) read(packed));
+          }
+          options = message.size() > 2 ? (Map<?, ?>) message.get(2) : null;
+        } else if (body instanceof List) {
+          for (final Object entry : (List<?>) body) {
+            addEntry(tag, (List<?>) entry);
+          }
+          options = message.size() > 2 ? (Map<?, ?>) message.get(2) : null;
+        } else {
+          entries.add(new Entry(tag, (Long) body, (Map<?, ?>) message.get(2)));
+          options = message.size() > 3 ? (Map<?, ?>) message.get(3) : null;
+        }
+        receivedMessages.incrementAndGet();
+        if (acks && options != null && options.get("chunk") != null) {
+          final byte[] chunk = ((String) options.get("chunk")).getBytes(Charsets.UTF_8);
+          out.write(new byte[]{(byte) 0x81, (byte) 0xa3, 'a', 'c', 'k', (byte) 0xd9});
+          out.write(chunk.length);
+          out.write(chunk);
+          out.flush();
+        }
+      }
+    } catch (final IOException e) {
+      // Closed by either side
+    } finally {
+      connections.remove(socket);
+      try {
+        socket.close();
+      } catch (final IOException e) {
+        // Already closed
+      }
+    }
+  }
+
+  private void addEntry(final String tag, final List<?> entry) {
+    entries.add(new Entry(tag, (Long) entry.get(0), (Map<?, ?>) entry.get(1)));
+  }
+
+  /**
+   * Reads a MessagePack value, with an EventTime read as its milliseconds since the epoch.
+   */
+  private static Object read(final DataInputStream in) throws IOException {
+    final int header = in.read();
+    if (header < 0) {
+      throw new EOFException();
+    }
+    if (header <= 0x7f) {
+      return (long) header;
+    } else if (header <= 0x8f) {
+      return readMap(in, header & 0x0f);
+    } else if (header <= 0x9f) {
+      return readArray(in, header & 0x0f);
+    } else if (header <= 0xbf) {
+      return readString(in, header & 0x1f);
+    } else if (header >= 0xe0) {
+      return (long) (byte) header;
+    }
+    switch (header) {
+      case 0xc0:
+        return null;
+      case 0xc2:
+        return false;
+      case 0xc3:
+        return true;
+      case 0xc4:
+        return readBytes(in, in.readUnsignedByte());
+      case 0xc5:
+        return readBytes(in, in.readUnsignedShort());
+      case 0xc6:
+        return readBytes(in, in.readInt());
+      case 0xcc:
+        return (long) in.readUnsignedByte();
+      case 0xcd:
+        return (long) in.readUnsignedShort();
+      case 0xce:
+        return in.readInt() & 0xffffffffL;
+      case 0xcf:
+      case 0xd3:
+        return in.readLong();
+      case 0xd0:
+        return (long) in.readByte();
+      case 0xd1:
+        return (long) in.readShort();
+      case 0xd2:
+        return (long) in.readInt();
+      case 0xd7:
+        if (in.readByte() != 0) {
+          throw new IOException("Unknown extension type");
+        }
+        final long seconds = in.readInt() & 0xffffffffL;
+        final long nanos = in.readInt() & 0xffffffffL;
+        return seconds * 1000 + nanos / 1000000;
+      case 0xd9:
+        return readString(in, in.readUnsignedByte());
+      case 0xda:
+        return readString(in, in.readUnsignedShort());
+      case 0xdb:
+        return readString(in, in.readInt());
+      case 0xdc:
+        return readArray(in, in.readUnsignedShort());
+      case 0xdd:
+        return readArray(in, in.readInt());
+      case 0xde:
+        return readMap(in, in.readUnsignedShort());
+      case 0xdf:
+        return readMap(in, in.readInt());
+      default:
+        throw new IOException("Unsupported MessagePack type 0x" + Integer.toHexString(header));
+    }
+  }
+
+  private static Map<Object, Object> readMap(final DataInputStream in, final int size)
+      throws IOException {
+    final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    for (int i = 0; i < size; ++i) {
+      final Object key = read(in);
+      map.put(key, read(in));
+    }
+    return map;
+  }
+
+  private static List<Object> readArray(final DataInputStream in, final int size)
+      throws IOException {
+    final List<Object> array = new ArrayList<Object>(size);
+    for (int i = 0; i < size; ++i) {
+      array.add(read(in));
+    }
+    return array;
+  }
+
+  private static String readString(final DataInputStream in, final int length) throws IOException {
+    return new String(readBytes(in, length), Charsets.UTF_8);
+  }
+
+  private static byte[] readBytes(final DataInputStream in, final int length) throws IOException {
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -32,7 +32,8 @@ public class GoogleCloudLoggingAppenderTest {
                                               anyString(),
                                               anyString(),
                                               anyString(),
-                                              anyInt())).thenReturn(googleCloudLoggingManager);
+                                              anyInt(),
+                                              any(GoogleCloudLoggingSettings.class))).thenReturn(googleCloudLoggingManager);
 
     final GoogleCloudLoggingAppender appender = GoogleCloudLoggingAppender.newBuilder().build();
 
@@ -51,7 +52,8 @@ public class GoogleCloudLoggingAppenderTest {
                                               anyString(),
                                               anyString(),
                                               anyString(),
-                                              anyInt())).thenThrow(new RuntimeException("TEST"));
+                                              anyInt(),
+                                              any(GoogleCloudLoggingSettings.class))).thenThrow(new RuntimeException("TEST"));
 
     final GoogleCloudLoggingAppender appender = GoogleCloudLoggingAppender.newBuilder().build();
     assertEquals(null, appender);
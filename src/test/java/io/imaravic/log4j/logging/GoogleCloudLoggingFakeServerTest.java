@@ -0,0 +1,590 @@
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import io.imaravic.log4j.logging.util.GoogleCloudMetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the manager against {@link FakeCloudLoggingServer}, checking delivery, retries,
+ * hedging, the sender modes, reconfiguration and the bootstrap end to end without a
+ * Google Cloud project.
+ */
+public class GoogleCloudLoggingFakeServerTest {
+  private static final long SEED = 42;
+  private static final String LOG_NAME = "fake-server-test";
+
+  private FakeCloudLoggingServer server;
+
+  @Before
+  public void setup() throws Exception {
+    server = new FakeCloudLoggingServer(SEED).start();
+  }
+
+  @After
+  public void teardown() {
+    server.stop();
+  }
+
+  @Test
+  public void testAllEntriesDeliveredWithoutFaults() throws Exception {
+    final GoogleCloudLoggingManager manager = newManager(1000, 0);
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .run();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(2000, server.getUniqueEntries());
+    assertEquals(2000, server.getReceivedEntries());
+    assertEquals(2000, server.getEntries(LOG_NAME));
+    assertEquals(2000, manager.getMetrics().getEntriesSent());
+    assertEquals(0, manager.getMetrics().getPendingEntries());
+    assertEquals(2000, result.getEventToAckLatencyNanos().getCount());
+    // Compressed like the requests of the generated client
+    assertEquals(server.getWriteRequests(), server.getCompressedRequests());
+  }
+
+  @Test
+  public void testServerErrorsAndThrottlingAreRetried() throws Exception {
+    server.withErrorRate(0.2).withThrottleRate(0.1);
+    final GoogleCloudLoggingManager manager = newManager(30000, 0);
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(200)
+        .withEventsPerBatch(25)
+        .run();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertTrue(server.getFailedRequests() > 0);
+    assertTrue(server.getThrottledRequests() > 0);
+    assertEquals(server.getFailedRequests() + server.getThrottledRequests(),
+                 manager.getMetrics().getRetries());
+    assertEquals(0, manager.getMetrics().getEntriesDropped());
+  }
+
+  @Test
+  public void testTimedOutRequestsAreRetried() throws Exception {
+    server.withTimeouts(0.3, 500);
+    final GoogleCloudLoggingManager manager = newManager(30000, 200);
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(2)
+        .withEventsPerThread(200)
+        .withEventsPerBatch(50)
+        .run();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertTrue(server.getTimedOutRequests() > 0);
+    assertTrue(manager.getMetrics().getRetries() >= server.getTimedOutRequests());
+  }
+
+  @Test
+  public void testEntriesAreDroppedOnceRetriesRunOut() throws Exception {
+    server.withErrorRate(1.0);
+    final GoogleCloudLoggingManager manager = newManager(1, 0);
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(1)
+        .withEventsPerThread(100)
+        .withEventsPerBatch(50)
+        .run();
+
+    assertEquals(2, result.getFailedWrites());
+    assertEquals(0, server.getUniqueEntries());
+    assertEquals(100, manager.getMetrics().getEntriesDropped());
+    assertEquals(0, manager.getMetrics().getPendingEntries());
+  }
+
+  @Test
+  public void testStalledRequestsAreHedged() throws Exception {
+    server.withLatency(5, 5).withStalls(0.05, 2000);
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            // Room for the duplicates next to the whole backlog
+            .withMaxInFlightBatches(256)
+            .withHedgeLatencyPercentile(90)
+            .withMaxHedgedRequestsRatio(0.2));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(10)
+        .run();
+    manager.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(2000, server.getUniqueEntries());
+    assertEquals(2000, manager.getMetrics().getEntriesSent());
+    assertTrue(server.getStalledRequests() > 0);
+    assertTrue(manager.getMetrics().getRequestsHedged() > 0);
+    assertTrue(manager.getMetrics().getHedgesWon() > 0);
+    // Within the cap of the hedged requests
+    assertTrue(manager.getMetrics().getRequestsHedged() <=
+               0.2 * manager.getMetrics().getHttpLatencyNanos().getCount());
+    manager.release();
+  }
+
+  @Test
+  public void testThreadsSenderModeDeliversEverythingByRelease() throws Exception {
+    testSenderModeDeliversEverythingByRelease(SenderMode.THREADS);
+  }
+
+  @Test
+  public void testVirtualSenderModeDeliversEverythingByRelease() throws Exception {
+    // Falls back to platform threads on JVMs without virtual threads
+    testSenderModeDeliversEverythingByRelease(SenderMode.VIRTUAL);
+  }
+
+  @Test
+  public void testFlushWaitsForBackgroundSendsWithoutBlockingLoggers() throws Exception {
+    server.withLatency(300, 0);
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            .withMaxBatchSize(10));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(1)
+        .withEventsPerThread(25)
+        .withEventsPerBatch(1000)
+        .run();
+    final ListenableFuture<Void> flushed = manager.flush();
+    assertFalse(flushed.isDone());
+
+    // Logging goes on while the flush waits for the API
+    new LoadGenerator(manager)
+        .withThreads(1)
+        .withEventsPerThread(1)
+        .withEventsPerBatch(1000)
+        .run();
+    assertFalse(flushed.isDone());
+
+    flushed.get(10, TimeUnit.SECONDS);
+    // The later event may have made it already, the flushed ones have to
+    assertTrue(server.getUniqueEntries() >= 25);
+    assertEquals(0, result.getFailedWrites());
+    manager.release();
+  }
+
+  @Test
+  public void testOffHeapArenaDeliversEverything() throws Exception {
+    server.withLatency(20, 0);
+    // Small enough for the arena to fill up, so the heap fallback gets used as well
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            .withOffHeapArenaBytes(64 * 1024));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .withMessageBytes(500)
+        .run();
+    manager.release();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertEquals(2000, server.getEntries(LOG_NAME));
+  }
+
+  @Test
+  public void testStripedBuffersDeliverEverything() throws Exception {
+    // Every stripe encodes into an arena of its own
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            .withBufferStripes(4)
+            .withOffHeapArenaBytes(4 * 1024 * 1024));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(8)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .run();
+    manager.release();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertEquals(4000, server.getEntries(LOG_NAME));
+  }
+
+  @Test
+  public void testPriorityEntriesOvertakeTheBacklog() throws Exception {
+    server.withLatency(1000, 0);
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withPriorityLevel(Level.ERROR));
+
+    // Sends a batch from the caller, holding the manager for the whole request
+    final Thread backlog = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 100; ++i) {
+          final LogEvent event = LoadGenerator.buildLogEvent("backlog", Level.INFO, "backlog " + i);
+          event.setEndOfBatch(i == 99);
+          manager.write(event);
+        }
+      }
+    });
+    backlog.start();
+    while (server.getWriteRequests() == 0) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+
+    final long startNanos = System.nanoTime();
+    manager.write(LoadGenerator.buildLogEvent("priority", Level.ERROR, "priority"));
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 500);
+
+    manager.flush().get(10, TimeUnit.SECONDS);
+    backlog.join();
+    assertEquals(101, server.getUniqueEntries());
+    assertEquals(1, manager.getMetrics().getPriorityEntries());
+    manager.release();
+  }
+
+  @Test
+  public void testHttp2DeliversEverything() throws Exception {
+    // Falls back to HTTP/1.1 before Java 11, and against the HTTP/1.1 stand-in
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            .withHttp2(true)
+            .withLoggingApi(LoggingApi.V2));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .run();
+    manager.release();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertEquals(2000, server.getEntries(LOG_NAME));
+  }
+
+  @Test
+  public void testV2RequestCarriesTheEntriesOfEveryLog() throws Exception {
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withLoggingApi(LoggingApi.V2)
+            .withLogNamePattern("%logger"));
+
+    for (int i = 0; i < 100; ++i) {
+      final LogEvent event = LoadGenerator.buildLogEvent("log" + i % 4, Level.INFO, "entry " + i);
+      event.setEndOfBatch(i == 99);
+      manager.write(event);
+    }
+
+    assertEquals(1, server.getWriteRequests());
+    for (int log = 0; log < 4; ++log) {
+      assertEquals(25, server.getEntries("log" + log));
+    }
+    assertEquals(Collections.singleton("gce_instance"), server.getResourceTypes());
+    assertEquals(100, manager.getMetrics().getEntriesSent());
+    manager.release();
+  }
+
+  @Test
+  public void testV2GarbageFreeDeliversEverything() throws Exception {
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withLoggingApi(LoggingApi.V2)
+            .withGarbageFree(true)
+            .withLogNamePattern("%logger"));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .run();
+    manager.release();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    for (int thread = 0; thread < 4; ++thread) {
+      assertEquals(500, server.getEntries("load.thread" + thread));
+    }
+  }
+
+  @Test
+  public void testV2RejectedEntriesDontTakeTheRestOfTheRequestDown() throws Exception {
+    server.withRejectedText("poison");
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withLoggingApi(LoggingApi.V2));
+
+    try {
+      for (int i = 0; i < 10; ++i) {
+        final LogEvent event = LoadGenerator.buildLogEvent("load", Level.INFO,
+                                                           i == 3 ? "poison" : "entry " + i);
+        event.setEndOfBatch(i == 9);
+        manager.write(event);
+      }
+      fail("Expected the rejected entry to fail the write");
+    } catch (final AppenderLoggingException e) {
+      assertTrue(e.getCause().getMessage().startsWith("1 of 10 entries were rejected"));
+    }
+
+    // Written once, without resending the valid entries
+    assertEquals(1, server.getWriteRequests());
+    assertEquals(9, server.getEntries(LOG_NAME));
+    assertEquals(1, server.getRejectedEntries());
+    assertEquals(9, manager.getMetrics().getEntriesSent());
+    assertEquals(1, manager.getMetrics().getEntriesDropped());
+    assertEquals(0, manager.getMetrics().getPendingEntries());
+    manager.release();
+  }
+
+  @Test
+  public void testReconfigurationWaitsForThePreviousManagersEntries() throws Exception {
+    final HttpTransport transport = new NetHttpTransport();
+    final GoogleCloudMetadata metadata = new GoogleCloudMetadata(transport, server.getMetadataUrl());
+    final GoogleCloudCredentials credentials = server.newCredentials();
+    final GoogleCloudLoggingSettings.Builder settings = GoogleCloudLoggingSettings.newBuilder()
+        .withLoggingRootUrl(server.getRootUrl())
+        .withSenderMode(SenderMode.THREADS)
+        .withRegisterMBean(false);
+
+    final GoogleCloudLoggingManager first = GoogleCloudLoggingManager.getManager(
+        "reconfigured", transport, metadata,
+        new GoogleCloudLoggingManager.ManagerConfig(credentials, null, null, LOG_NAME, null,
+                                                    30000, settings.build()));
+    writeEvents(first, 10, true);
+    first.flush().get(5, TimeUnit.SECONDS);
+    final long metadataRequests = server.getMetadataRequests();
+
+    // Tuning changes are taken over by the running manager
+    assertSame(first, GoogleCloudLoggingManager.getManager(
+        "reconfigured", transport, metadata,
+        new GoogleCloudLoggingManager.ManagerConfig(credentials, null, null, LOG_NAME, null,
+                                                    30000, settings.withSenderThreads(2).build())));
+    writeEvents(first, 100, false);
+
+    // Any other change gets a new manager, while the previous one keeps logging until released
+    final GoogleCloudLoggingManager second = GoogleCloudLoggingManager.getManager(
+        "reconfigured", transport, metadata,
+        new GoogleCloudLoggingManager.ManagerConfig(credentials, null, null, LOG_NAME + "-next",
+                                                    null, 30000, settings.build()));
+    assertNotSame(first, second);
+    assertSame(first.getMetrics(), second.getMetrics());
+    writeEvents(first, 50, false);
+    writeEvents(second, 100, false);
+    // Both references of the previous configuration
+    first.release();
+    first.release();
+    second.flush().get(5, TimeUnit.SECONDS);
+
+    assertEquals(160, server.getEntries(LOG_NAME));
+    assertEquals(100, server.getEntries(LOG_NAME + "-next"));
+    assertEquals(260, second.getMetrics().getEntriesSent());
+    assertEquals(0, second.getMetrics().getPendingEntries());
+    // Neither metadata lookups nor a new access token
+    assertEquals(metadataRequests, server.getMetadataRequests());
+    second.release();
+  }
+
+  @Test
+  public void testFailedReconfigurationKeepsThePreviousManager() throws Exception {
+    final HttpTransport transport = new NetHttpTransport();
+    final GoogleCloudMetadata metadata = new GoogleCloudMetadata(transport, server.getMetadataUrl());
+    final GoogleCloudCredentials credentials = server.newCredentials();
+    final GoogleCloudLoggingSettings.Builder settings = GoogleCloudLoggingSettings.newBuilder()
+        .withLoggingRootUrl(server.getRootUrl())
+        .withSenderMode(SenderMode.THREADS)
+        .withRegisterMBean(false);
+
+    final GoogleCloudLoggingManager first = GoogleCloudLoggingManager.getManager(
+        "failed-reconfiguration", transport, metadata,
+        new GoogleCloudLoggingManager.ManagerConfig(credentials, null, null, LOG_NAME, null,
+                                                    30000, settings.build()));
+
+    // A file sink without a file can't be created
+    try {
+      GoogleCloudLoggingManager.getManager(
+          "failed-reconfiguration", transport, metadata,
+          new GoogleCloudLoggingManager.ManagerConfig(credentials, null, null, LOG_NAME, null,
+                                                      30000,
+                                                      settings.withSink(LogSink.FILE).build()));
+      fail();
+    } catch (final IllegalStateException e) {
+      // Expected
+    }
+
+    assertTrue(AbstractManager.hasManager("failed-reconfiguration"));
+    writeEvents(first, 10, true);
+    first.flush().get(5, TimeUnit.SECONDS);
+    assertEquals(10, server.getEntries(LOG_NAME));
+
+    // The only reference left is the one of the previous configuration
+    first.release();
+    assertFalse(AbstractManager.hasManager("failed-reconfiguration"));
+  }
+
+  @Test
+  public void testEventsWaitForTheBootstrapWhileItIsRetried() throws Exception {
+    // The project can't be looked up until the metadata server gets it back
+    server.withoutMetadata("project/project-id");
+    final HttpTransport transport = new NetHttpTransport();
+    final GoogleCloudLoggingManager manager = GoogleCloudLoggingManager.getManager(
+        "bootstrapped", transport, new GoogleCloudMetadata(transport, server.getMetadataUrl()),
+        new GoogleCloudLoggingManager.ManagerConfig(
+            server.newCredentials(), null, null, LOG_NAME, null, 30000,
+            GoogleCloudLoggingSettings.newBuilder()
+                .withLoggingRootUrl(server.getRootUrl())
+                .withMaxBatchSize(10)
+                .withMaxInFlightBatches(2)
+                .withRegisterMBean(false)
+                .build()));
+
+    // Up to as many as the batches in flight hold wait for the bootstrap
+    writeEvents(manager, 25, true);
+    final long deadlineMillis = System.currentTimeMillis() + 5000;
+    while (manager.getMetrics().getBootstrapFailures() == 0 &&
+           System.currentTimeMillis() < deadlineMillis) {
+      Thread.sleep(10);
+    }
+    assertTrue(manager.getMetrics().getBootstrapFailures() > 0);
+    assertEquals(0, server.getEntries(LOG_NAME));
+
+    server.withMetadata("project/project-id", FakeCloudLoggingServer.PROJECT_ID);
+    manager.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(20, server.getEntries(LOG_NAME));
+    assertEquals(20, manager.getMetrics().getEntriesSent());
+    assertEquals(5, manager.getMetrics().getEntriesDropped());
+    manager.release();
+  }
+
+  @Test
+  public void testAdaptiveConcurrencyBacksOffWhenThrottled() throws Exception {
+    server.withLatency(10, 5).withThrottleRate(0.2);
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(SenderMode.THREADS)
+            .withSenderThreads(16)
+            .withMaxInFlightBatches(16)
+            .withAdaptiveConcurrency(true));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(200)
+        .withEventsPerBatch(10)
+        .run();
+    manager.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertTrue(server.getThrottledRequests() > 0);
+    final int concurrencyLimit = manager.getMetrics().getConcurrencyLimit();
+    assertTrue(concurrencyLimit >= 1 && concurrencyLimit < 16);
+    manager.release();
+  }
+
+  @Test
+  public void testSharedRingEntriesAreSentByASingleManager() throws Exception {
+    final File ring = File.createTempFile("shared-ring", ".ring");
+    ring.delete();
+    final GoogleCloudLoggingSettings.Builder settings = GoogleCloudLoggingSettings.newBuilder()
+        .withSink(LogSink.SHARED_RING)
+        .withSharedRingFile(ring.getPath())
+        .withMaxBatchSize(100)
+        .withRegisterMBean(false);
+    final GoogleCloudLoggingManager first = newManager(30000, settings);
+    final GoogleCloudLoggingManager second = newManager(30000, settings);
+
+    writeEvents(first, 150, true);
+    writeEvents(second, 150, true);
+    first.flush().get(10, TimeUnit.SECONDS);
+    second.flush().get(10, TimeUnit.SECONDS);
+    assertEquals(150, first.getMetrics().getEntriesSent());
+    assertEquals(150, second.getMetrics().getEntriesSent());
+
+    // Whichever got elected drains both, so the entries share the batches of one sender
+    final long deadlineMillis = System.currentTimeMillis() + 10000;
+    while (server.getEntries(LOG_NAME) < 300 && System.currentTimeMillis() < deadlineMillis) {
+      Thread.sleep(10);
+    }
+    assertEquals(300, server.getEntries(LOG_NAME));
+    assertEquals(300, server.getUniqueEntries());
+    assertTrue(server.getWriteRequests() <= 6);
+
+    second.release();
+    first.release();
+    new File(ring.getPath() + ".sender").delete();
+    ring.delete();
+  }
+
+  private void testSenderModeDeliversEverythingByRelease(final SenderMode senderMode)
+      throws Exception {
+    server.withLatency(20, 0);
+    final GoogleCloudLoggingManager manager =
+        newManager(30000, GoogleCloudLoggingSettings.newBuilder()
+            .withSenderMode(senderMode)
+            .withSenderThreads(8));
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(4)
+        .withEventsPerThread(500)
+        .withEventsPerBatch(50)
+        .run();
+    manager.release();
+
+    assertEquals(0, result.getFailedWrites());
+    assertEquals(1.0, result.completeness(server), 0.0);
+    assertEquals(2000, manager.getMetrics().getEntriesSent());
+    assertEquals(0, manager.getMetrics().getPendingEntries());
+  }
+
+  private GoogleCloudLoggingManager newManager(final int maxRetryTimeMillis,
+                                               final int requestTimeoutMillis)
+      throws Exception {
+    return newManager(maxRetryTimeMillis,
+                      GoogleCloudLoggingSettings.newBuilder()
+                          .withRequestTimeoutMillis(requestTimeoutMillis));
+  }
+
+  private GoogleCloudLoggingManager newManager(final int maxRetryTimeMillis,
+                                               final GoogleCloudLoggingSettings.Builder settings)
+      throws Exception {
+    return server.newManager("fake-server-test", LOG_NAME, maxRetryTimeMillis, settings);
+  }
+
+  private static void writeEvents(final GoogleCloudLoggingManager manager,
+                                  final int count,
+                                  final boolean endOfBatch) {
+    for (int i = 0; i < count; ++i) {
+      final LogEvent event = LoadGenerator.buildLogEvent("load", Level.INFO, "entry " + i);
+      event.setEndOfBatch(endOfBatch && i == count - 1);
+      manager.write(event);
+    }
+  }
+}
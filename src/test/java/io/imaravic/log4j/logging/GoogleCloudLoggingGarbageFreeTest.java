@@ -0,0 +1,140 @@
+package io.imaravic.log4j.logging;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that writing an event in garbage-free mode doesn't allocate, once the
+ * pools got warmed up, and that the entries it encodes are delivered intact.
+ */
+public class GoogleCloudLoggingGarbageFreeTest {
+  private static final String LOG_NAME = "garbage-free";
+  private static final int EVENTS_PER_ROUND = 400;
+
+  private FakeCloudLoggingServer server;
+  private GoogleCloudLoggingManager manager;
+  private LogEvent[] events;
+  private LogEvent endOfBatch;
+
+  @Before
+  public void setup() throws Exception {
+    server = new FakeCloudLoggingServer().start();
+    manager = newManager();
+
+    events = new LogEvent[EVENTS_PER_ROUND];
+    for (int i = 0; i < events.length; ++i) {
+      events[i] = buildLogEvent("event " + i + " with \"quotes\" and ünïcödé");
+    }
+    endOfBatch = buildLogEvent("end of batch");
+    endOfBatch.setEndOfBatch(true);
+  }
+
+  @After
+  public void teardown() {
+    manager.release();
+    server.stop();
+  }
+
+  @Test
+  public void testSteadyStateWritesDontAllocate() throws Exception {
+    final com.sun.management.ThreadMXBean threadMXBean = threadMXBean();
+    Assume.assumeTrue(threadMXBean != null);
+
+    // Fill the pools and let the JIT compile the write path
+    for (int round = 0; round < 20; ++round) {
+      writeRound();
+    }
+
+    // Compilation still going on in the background can allocate, so take the best of a few rounds
+    long allocatedBytes = Long.MAX_VALUE;
+    for (int round = 0; round < 5 && allocatedBytes > 0; ++round) {
+      allocatedBytes = Math.min(allocatedBytes, measureRound(threadMXBean));
+    }
+
+    assertEquals(0, allocatedBytes);
+  }
+
+  @Test
+  public void testEncodedEntriesAreDelivered() throws Exception {
+    for (int round = 0; round < 3; ++round) {
+      writeRound();
+    }
+
+    final long entries = 3 * (EVENTS_PER_ROUND + 1);
+    assertEquals(entries, server.getReceivedEntries());
+    assertEquals(entries, server.getUniqueEntries());
+    assertEquals(entries, server.getEntries(LOG_NAME));
+    assertEquals(entries, manager.getMetrics().getEntriesSent());
+  }
+
+  /**
+   * Returns the bytes allocated writing a round of events, leaving out its first event,
+   * which creates the map entry of the batch, and its end of batch, which sends it.
+   */
+  private long measureRound(final com.sun.management.ThreadMXBean threadMXBean) {
+    final long threadId = Thread.currentThread().getId();
+    final long measurementOverhead =
+        threadMXBean.getThreadAllocatedBytes(threadId) - threadMXBean.getThreadAllocatedBytes(threadId);
+    manager.write(events[0]);
+    final long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 1; i < events.length; ++i) {
+      manager.write(events[i]);
+    }
+    final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+    manager.write(endOfBatch);
+    return Math.max(0, allocatedBytes + measurementOverhead);
+  }
+
+  private void writeRound() {
+    for (final LogEvent event : events) {
+      manager.write(event);
+    }
+    manager.write(endOfBatch);
+  }
+
+  private static com.sun.management.ThreadMXBean threadMXBean() {
+    try {
+      final com.sun.management.ThreadMXBean threadMXBean =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      return threadMXBean.isThreadAllocatedMemorySupported() &&
+             threadMXBean.isThreadAllocatedMemoryEnabled() ? threadMXBean : null;
+    } catch (final ClassCastException e) {
+      return null;
+    }
+  }
+
+  private static Log4jLogEvent buildLogEvent(final String logMsg) {
+    return Log4jLogEvent.createEvent("garbage.free",
+                                     null,
+                                     "loggerFQCN",
+                                     Level.INFO,
+                                     new SimpleMessage(logMsg),
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     System.currentTimeMillis());
+  }
+
+  private GoogleCloudLoggingManager newManager() throws Exception {
+    return server.newManager("garbage-free-test",
+                             LOG_NAME,
+                             1000,
+                             GoogleCloudLoggingSettings.newBuilder()
+                                 .withGarbageFree(true)
+                                 .withMinBatchSize(1000)
+                                 .withMaxBatchSize(1000));
+  }
+}
@@ -34,7 +34,8 @@ public class GoogleCloudLoggingIntegrationFromGceTest {
                                               anyString(),
                                               anyString(),
                                               anyString(),
-                                              anyInt())).thenReturn(googleCloudLoggingManager);
+                                              anyInt(),
+                                              any(GoogleCloudLoggingSettings.class))).thenReturn(googleCloudLoggingManager);
   }
 
   @Test
@@ -50,7 +51,8 @@ public class GoogleCloudLoggingIntegrationFromGceTest {
                                          isNull(String.class),
                                          anyString(),
                                          isNull(String.class),
-                                         anyInt());
+                                         anyInt(),
+                                         any(GoogleCloudLoggingSettings.class));
     assertTrue(credentialsCaptor.getValue().usingComputeCredentials());
   }
 }
@@ -34,7 +34,8 @@ public class GoogleCloudLoggingIntegrationNotFromGceTest {
                                               anyString(),
                                               anyString(),
                                               anyString(),
-                                              anyInt())).thenReturn(googleCloudLoggingManager);
+                                              anyInt(),
+                                              any(GoogleCloudLoggingSettings.class))).thenReturn(googleCloudLoggingManager);
   }
 
   @Test
@@ -50,7 +51,8 @@ public class GoogleCloudLoggingIntegrationNotFromGceTest {
                                          eq("europe-west1-d"),
                                          anyString(),
                                          eq("0"),
-                                         anyInt());
+                                         anyInt(),
+                                         any(GoogleCloudLoggingSettings.class));
     assertFalse(credentialsCaptor.getValue().usingComputeCredentials());
     assertEquals("serviceId@developer.gserviceaccount.com",
                  credentialsCaptor.getValue().getServiceAccountId());
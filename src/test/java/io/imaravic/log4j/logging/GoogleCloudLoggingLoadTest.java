@@ -0,0 +1,50 @@
+package io.imaravic.log4j.logging;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the manager against {@link FakeCloudLoggingServer}, so throughput, delivery
+ * completeness and tail latency can be measured without a Google Cloud project.
+ * The size of {@link #testLoadWithRealisticFaults} can be raised with the
+ * {@code loadTest.threads}, {@code loadTest.eventsPerThread} and
+ * {@code loadTest.eventsPerBatch} system properties.
+ */
+public class GoogleCloudLoggingLoadTest {
+  private static final long SEED = 42;
+  private static final String LOG_NAME = "load-test";
+
+  private FakeCloudLoggingServer server;
+
+  @Before
+  public void setup() throws Exception {
+    server = new FakeCloudLoggingServer(SEED).start();
+  }
+
+  @After
+  public void teardown() {
+    server.stop();
+  }
+
+  @Test
+  public void testLoadWithRealisticFaults() throws Exception {
+    server.withLatency(5, 20).withErrorRate(0.01).withThrottleRate(0.01);
+    final GoogleCloudLoggingManager manager =
+        server.newManager("load-test", LOG_NAME, 30000, GoogleCloudLoggingSettings.newBuilder());
+
+    final LoadGenerator.Result result = new LoadGenerator(manager)
+        .withThreads(Integer.getInteger("loadTest.threads", 4))
+        .withEventsPerThread(Integer.getInteger("loadTest.eventsPerThread", 500))
+        .withEventsPerBatch(Integer.getInteger("loadTest.eventsPerBatch", 100))
+        .run();
+    final String description = result.describe(server);
+    StatusLogger.getLogger().debug("Load test: {}", description);
+
+    assertEquals(description, 0, result.getFailedWrites());
+    assertEquals(description, 1.0, result.completeness(server), 0.0);
+  }
+}
@@ -1,40 +1,83 @@
 package io.imaravic.log4j.logging;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.util.DateTime;
+import com.google.api.client.util.Sleeper;
 import com.google.api.services.logging.Logging;
 import com.google.api.services.logging.model.LogEntry;
 import com.google.api.services.logging.model.WriteLogEntriesRequest;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringFormattedMessage;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
 
 import io.imaravic.log4j.logging.util.GoogleCloudMetadata;
+import io.imaravic.log4j.logging.util.HeavyHitter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -60,8 +103,10 @@ public class GoogleCloudLoggingManagerTest {
     PowerMockito.doReturn(loggingClient).when(GoogleCloudLoggingManager.class,
                                               "createLoggingClient",
                                               any(HttpTransport.class),
-                                              any(GoogleCloudCredentials.class),
-                                              anyInt());
+                                              any(Credential.class),
+                                              anyInt(),
+                                              any(Sleeper.class),
+                                              any(GoogleCloudLoggingSettings.class));
 
     when(googleCloudMetadata.fetchFromPath("project/project-id"))
         .thenReturn("project_id");
@@ -221,6 +266,90 @@ public class GoogleCloudLoggingManagerTest {
     assertEquals("europe-west1-d", entries.get(0).getMetadata().getZone());
   }
 
+  @Test
+  public void testEventsWaitForTheBootstrapWhileItIsRetried() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+    // The project can't be looked up before the third attempt
+    when(googleCloudMetadata.fetchFromPath("project/project-id"))
+        .thenThrow(new IOException("TEST"))
+        .thenThrow(new IOException("TEST"))
+        .thenReturn("project_id");
+
+    final List<String> requests = Collections.synchronizedList(Lists.<String>newArrayList());
+    final List<String> payloads = Collections.synchronizedList(Lists.<String>newArrayList());
+    final MockHttpTransport loggingTransport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(final String method, final String url) {
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            requests.add(method);
+            if ("POST".equals(method)) {
+              for (final LogEntry entry : readWriteRequest(this).getEntries()) {
+                payloads.add(entry.getTextPayload());
+              }
+            }
+            return super.execute();
+          }
+        };
+      }
+    };
+    PowerMockito.doReturn(new Logging.Builder(loggingTransport,
+                                              JacksonFactory.getDefaultInstance(),
+                                              null)
+                              .setApplicationName("test")
+                              .build())
+        .when(GoogleCloudLoggingManager.class,
+              "createLoggingClient",
+              any(HttpTransport.class),
+              any(Credential.class),
+              anyInt(),
+              any(Sleeper.class),
+              any(GoogleCloudLoggingSettings.class));
+
+    final GoogleCloudLoggingManager googleCloudLoggingManager =
+        GoogleCloudLoggingManager.getManager(
+            "bootstrapped",
+            httpTransport,
+            googleCloudMetadata,
+            new GoogleCloudLoggingManager.ManagerConfig(googleCloudCredentials,
+                                                        null,
+                                                        null,
+                                                        "log_name",
+                                                        null,
+                                                        1,
+                                                        GoogleCloudLoggingSettings.newBuilder()
+                                                            .withMaxBatchSize(10)
+                                                            .withMaxInFlightBatches(2)
+                                                            .withRegisterMBean(false)
+                                                            .build()));
+
+    // Up to as many as the batches in flight hold wait for the bootstrap, the rest is dropped
+    for (int i = 0; i < 25; ++i) {
+      final LogEvent event = buildLogEvent("entry " + i, System.currentTimeMillis(), Level.INFO);
+      event.setEndOfBatch(i == 24);
+      googleCloudLoggingManager.write(event);
+    }
+    assertEquals(5, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+    assertTrue(payloads.isEmpty());
+
+    googleCloudLoggingManager.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getBootstrapFailures());
+    verify(googleCloudMetadata, times(3)).fetchFromPath("project/project-id");
+    // Connected ahead of the first batch
+    assertEquals("GET", requests.get(0));
+    final List<String> expectedPayloads = Lists.newArrayList();
+    for (int i = 0; i < 20; ++i) {
+      expectedPayloads.add("entry " + i);
+    }
+    assertEquals(expectedPayloads, payloads);
+    assertEquals(20, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getPendingEntries());
+    googleCloudLoggingManager.release();
+  }
+
   @Test
   public void testBatchingFromManager() throws Exception {
     when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
@@ -432,10 +561,1002 @@ public class GoogleCloudLoggingManagerTest {
     assertEquals("_zone_", entries.get(0).getMetadata().getZone());
   }
 
+  @Test
+  public void testMetricsAreUpdatedOnSuccessfulWrite() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesEnqueued());
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getPendingEntries());
+
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    final GoogleCloudLoggingMetricsMXBean metrics = googleCloudLoggingManager.getMetrics();
+    assertEquals(2, metrics.getEntriesEnqueued());
+    assertEquals(2, metrics.getEntriesSent());
+    assertEquals(0, metrics.getPendingEntries());
+    assertEquals(1, metrics.getBatchesSent());
+    assertEquals(0, metrics.getRequestFailures());
+    assertEquals(2, metrics.getBatchSize().getMax());
+    assertEquals(2, metrics.getEnqueueLatencyNanos().getCount());
+  }
+
+  @Test
+  public void testMetricsCountDroppedEntriesOnExceptionFromLoggingClient() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doThrow(new IOException("TEST")).when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+
+    try {
+      googleCloudLoggingManager.write(event);
+      fail("AppenderLoggingException expected");
+    } catch (final AppenderLoggingException expected) {
+      // expected
+    }
+
+    final GoogleCloudLoggingMetricsMXBean metrics = googleCloudLoggingManager.getMetrics();
+    assertEquals(1, metrics.getRequestFailures());
+    assertEquals(1, metrics.getEntriesDropped());
+    assertEquals(0, metrics.getEntriesSent());
+    assertEquals(0, metrics.getPendingEntries());
+  }
+
+  @Test
+  public void testEventToAckLatencyIsRecordedOnSuccessfulWrite() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    LogEvent event = buildLogEvent("LogMsg", System.currentTimeMillis() - 1000, Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    final GoogleCloudLoggingMetricsMXBean metrics = googleCloudLoggingManager.getMetrics();
+    assertEquals(1, metrics.getEventToAckLatencyNanos().getCount());
+    assertTrue(metrics.getEventToAckLatencyNanos().getP50() >= TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1, metrics.getQueueWaitLatencyNanos().getCount());
+    assertTrue(metrics.getQueueWaitLatencyNanos().getP50() < TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void testBatchIsSentOnceItReachesTheTargetBatchSize() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withMinBatchSize(1)
+                                                           .withMaxBatchSize(4)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    for (int i = 0; i < 3; ++i) {
+      googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    }
+    verify(googleCloudLoggingManager, never())
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    assertEquals(4, writtenLogEntriesCaptor.getValue().getEntries().size());
+  }
+
+  @Test
+  public void testBatchIsSplitToStayWithinMaxBatchBytes() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withMaxBatchBytes(3000)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final String logMsg = Strings.repeat("x", 1000);
+    googleCloudLoggingManager.write(buildLogEvent(logMsg, "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent(logMsg, "2015-04-06T18:38:24.002Z", Level.INFO));
+    LogEvent event = buildLogEvent(logMsg, "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager, times(2))
+        .writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    assertEquals(2, writtenLogEntriesCaptor.getAllValues().get(0).getEntries().size());
+    assertEquals(1, writtenLogEntriesCaptor.getAllValues().get(1).getEntries().size());
+  }
+
+  @Test
+  public void testBatchRejectedAsTooLargeIsSplitAndResent() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doThrow(new HttpResponseException.Builder(413, "Request Entity Too Large", new HttpHeaders())
+                .build())
+        .doNothing()
+        .when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+    LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    verify(googleCloudLoggingManager, times(3))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+  }
+
+  @Test
+  public void testBadEntryIsIsolatedAndQuarantined() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    // Rejects every request carrying the bad entry
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        final WriteLogEntriesRequest request = (WriteLogEntriesRequest) invocation.getArguments()[0];
+        for (final LogEntry entry : request.getEntries()) {
+          if (entry.getTextPayload().equals("bad")) {
+            throw new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders()).build();
+          }
+        }
+        return null;
+      }
+    }).when(googleCloudLoggingManager).writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    try {
+      for (int i = 0; i < 8; ++i) {
+        LogEvent event = buildLogEvent(i == 5 ? "bad" : "LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+        event.setEndOfBatch(i == 7);
+        googleCloudLoggingManager.write(event);
+      }
+      fail("Expected the bad entry to fail the write");
+    } catch (final AppenderLoggingException e) {
+      assertEquals(400, ((HttpResponseException) e.getCause()).getStatusCode());
+    }
+
+    // 8 -> 4 + 4 -> 2 + 2 -> 1 + 1, the halves without the bad entry sent once each
+    verify(googleCloudLoggingManager, times(7))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertEquals(7, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesQuarantined());
+    assertEquals(6, googleCloudLoggingManager.getMetrics().getBisectionRequests());
+  }
+
+  @Test
+  public void testBisectionStopsOnceItsBudgetIsSpent() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withMaxBisectionRequests(2)
+                                                           .build()));
+
+    doThrow(new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders()).build())
+        .when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    try {
+      for (int i = 0; i < 8; ++i) {
+        LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+        event.setEndOfBatch(i == 7);
+        googleCloudLoggingManager.write(event);
+      }
+      fail("Expected the rejected batch to fail the write");
+    } catch (final AppenderLoggingException e) {
+      // Expected
+    }
+
+    verify(googleCloudLoggingManager, times(3))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertEquals(8, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getEntriesQuarantined());
+  }
+
+  @Test
+  public void testEntriesAreRoutedToPerLoggerLogs() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withLogNamePattern("app/%logger")
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("first", "LogMsg", System.currentTimeMillis(), Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent("second", "LogMsg", System.currentTimeMillis(), Level.INFO));
+    LogEvent event = buildLogEvent("first", "LogMsg", System.currentTimeMillis(), Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager, times(2))
+        .writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+
+    final List<LogEntry> firstLogEntries = writtenLogEntriesCaptor.getAllValues().get(0).getEntries();
+    assertEquals(2, firstLogEntries.size());
+    assertEquals("app%2Ffirst", firstLogEntries.get(0).getLog());
+    assertEquals("app%2Ffirst", firstLogEntries.get(1).getLog());
+
+    final List<LogEntry> secondLogEntries = writtenLogEntriesCaptor.getAllValues().get(1).getEntries();
+    assertEquals(1, secondLogEntries.size());
+    assertEquals("app%2Fsecond", secondLogEntries.get(0).getLog());
+  }
+
+  @Test
+  public void testFlushSendsBufferedEntries() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg1", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg2", "2015-04-06T18:38:24.003Z", Level.INFO));
+    verify(googleCloudLoggingManager, never())
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final ListenableFuture<Void> flushed = googleCloudLoggingManager.flush();
+    assertTrue(flushed.isDone());
+    flushed.get();
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    assertEquals(2, writtenLogEntriesCaptor.getValue().getEntries().size());
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getPendingEntries());
+
+    assertTrue(googleCloudLoggingManager.flush().isDone());
+    verify(googleCloudLoggingManager, times(1))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+  }
+
+  @Test
+  public void testPriorityEntriesAreSentRightAway() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withPriorityLevel(Level.ERROR)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg1", "2015-04-06T18:38:24.002Z", Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg2", "2015-04-06T18:38:24.003Z", Level.ERROR));
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager, timeout(5000))
+        .writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(1, entries.size());
+    assertEquals("LogMsg2", entries.get(0).getTextPayload());
+    assertEquals("ERROR", entries.get(0).getMetadata().getSeverity());
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getPriorityEntries());
+    // Counted as sent once the write returned, which may take a moment more
+    final long deadlineMillis = System.currentTimeMillis() + 5000;
+    while (googleCloudLoggingManager.getMetrics().getPendingEntries() > 1 &&
+           System.currentTimeMillis() < deadlineMillis) {
+      Thread.sleep(1);
+    }
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getPendingEntries());
+
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+    verify(googleCloudLoggingManager, times(2))
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getPendingEntries());
+  }
+
+  @Test
+  public void testSafeMessagesAreFormattedBySender() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withSenderMode(SenderMode.THREADS)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final StringBuilder mutable = new StringBuilder("before");
+    googleCloudLoggingManager.write(buildLogEvent(
+        new StringFormattedMessage("%s %d", "deferred", 42), Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent(
+        new StringFormattedMessage("%s", mutable), Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent(
+        new ParameterizedMessage("{} {}", "parameterized", mutable), Level.INFO));
+    // Formatted right away, so the change doesn't show up
+    mutable.setLength(0);
+    mutable.append("after");
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(3, entries.size());
+    assertEquals("deferred 42", entries.get(0).getTextPayload());
+    assertEquals("before", entries.get(1).getTextPayload());
+    assertEquals("parameterized before", entries.get(2).getTextPayload());
+    googleCloudLoggingManager.release();
+  }
+
+  @Test
+  public void testOversizedMessagesAreTruncated() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withSenderMode(SenderMode.THREADS)
+                                                           .withMaxMessageBytes(10)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent(
+        new SimpleMessage("0123456789abc"), Level.INFO));
+    // Formatted, and truncated, by the sender
+    googleCloudLoggingManager.write(buildLogEvent(
+        new ParameterizedMessage("{}{}", "01234567", "\u20ac"), Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent(new SimpleMessage("short"), Level.INFO));
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(3, entries.size());
+    assertEquals("0123456789", entries.get(0).getTextPayload());
+    assertEquals(OversizedMessages.TRUNCATED_LABELS, entries.get(0).getMetadata().getLabels());
+    // The euro sign takes 3 bytes, so it doesn't fit
+    assertEquals("01234567", entries.get(1).getTextPayload());
+    assertEquals(OversizedMessages.TRUNCATED_LABELS, entries.get(1).getMetadata().getLabels());
+    assertEquals("short", entries.get(2).getTextPayload());
+    assertNull(entries.get(2).getMetadata().getLabels());
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getMessagesTruncated());
+    googleCloudLoggingManager.release();
+  }
+
+  @Test
+  public void testLoggersTakingTheMostBytesAreTracked() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+    // Only tracked when asked for
+    assertEquals(0, GoogleCloudLoggingSettings.newBuilder().build().getTopLoggers());
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("top-loggers",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withTopLoggers(2)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final long timeMillis = System.currentTimeMillis();
+    for (int i = 0; i < 3; ++i) {
+      googleCloudLoggingManager.write(
+          buildLogEvent("chatty", Strings.repeat("x", 1000), timeMillis, Level.DEBUG));
+    }
+    for (int i = 0; i < 10; ++i) {
+      googleCloudLoggingManager.write(buildLogEvent("quiet", "short", timeMillis, Level.INFO));
+    }
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    final List<HeavyHitter> topLoggers = googleCloudLoggingManager.getMetrics().getTopLoggers();
+    assertEquals(2, topLoggers.size());
+    assertEquals("chatty", topLoggers.get(0).getName());
+    assertEquals("DEBUG", topLoggers.get(0).getLevel());
+    assertEquals(3, topLoggers.get(0).getEntries());
+    assertTrue(topLoggers.get(0).getBytes() > 3000);
+    assertEquals(0, topLoggers.get(0).getBytesError());
+    assertEquals("quiet", topLoggers.get(1).getName());
+    assertEquals(10, topLoggers.get(1).getEntries());
+
+    // The same loggers are exposed over JMX
+    final CompositeData[] mbeanTopLoggers = (CompositeData[])
+        new StandardMBean(googleCloudLoggingManager.getMetrics(),
+                          GoogleCloudLoggingMetricsMXBean.class,
+                          true).getAttribute("TopLoggers");
+    assertEquals(2, mbeanTopLoggers.length);
+    assertEquals("chatty", mbeanTopLoggers[0].get("name"));
+    googleCloudLoggingManager.release();
+  }
+
+  @Test
+  public void testOversizedMessagesAreSplitIntoChunks() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withMaxMessageBytes(4)
+                                                           .withSplitOversizedMessages(true)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final LogEvent event = buildLogEvent("ab\u20accd\u00e9", "2015-04-06T18:38:24.002Z", Level.INFO);
+    event.setEndOfBatch(true);
+    googleCloudLoggingManager.write(event);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(3, entries.size());
+    final String chunkId =
+        entries.get(0).getMetadata().getLabels().get(OversizedMessages.CHUNK_ID_LABEL);
+    final String[] chunks = {"ab", "\u20acc", "d\u00e9"};
+    for (int i = 0; i < chunks.length; ++i) {
+      assertEquals(chunks[i], entries.get(i).getTextPayload());
+      assertEquals(ImmutableMap.of(OversizedMessages.CHUNK_ID_LABEL, chunkId,
+                                   OversizedMessages.CHUNK_LABEL, (i + 1) + "/3"),
+                   entries.get(i).getMetadata().getLabels());
+    }
+    assertEquals(3, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getMessagesSplit());
+  }
+
+  @Test
+  public void testExpiredEntriesAreDroppedAndSummarized() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withSenderMode(SenderMode.THREADS)
+                                                           .withMaxEntryAgeMillis(60000)
+                                                           .withSummarizeExpiredEntries(true)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("old", "2015-04-06T18:38:24.000Z", Level.INFO));
+    googleCloudLoggingManager.write(buildLogEvent("fresh", System.currentTimeMillis(), Level.INFO));
+    // Left for the sender to format, which it never does
+    googleCloudLoggingManager.write(buildLogEvent(
+        "loggerName", "older", new DateTime("2015-04-06T18:38:20.000Z").getValue(), Level.ERROR));
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(2, entries.size());
+    assertEquals("fresh", entries.get(0).getTextPayload());
+    assertEquals("2 entries older than 60000 ms were dropped, " +
+                 "logged from 2015-04-06T18:38:20.000Z to 2015-04-06T18:38:24.000Z",
+                 entries.get(1).getTextPayload());
+    assertEquals("WARNING", entries.get(1).getMetadata().getSeverity());
+    assertEquals("log_name", entries.get(1).getLog());
+    assertEquals(ImmutableMap.of("io.imaravic.log4j.logging/expired_entries", "2"),
+                 entries.get(1).getMetadata().getLabels());
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getEntriesExpired());
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(0, googleCloudLoggingManager.getMetrics().getPendingEntries());
+    googleCloudLoggingManager.release();
+  }
+
+  @Test
+  public void testStripedBuffersAreMergedInPerThreadOrder() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    final GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1,
+                                                       GoogleCloudLoggingSettings.newBuilder()
+                                                           .withBufferStripes(4)
+                                                           .build()));
+
+    doNothing().when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final String threadName = "thread" + t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 50; ++i) {
+            googleCloudLoggingManager.write(
+                buildLogEvent(threadName + " " + i, System.currentTimeMillis(), Level.INFO));
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<WriteLogEntriesRequest> writtenLogEntriesCaptor =
+        ArgumentCaptor.forClass(WriteLogEntriesRequest.class);
+    verify(googleCloudLoggingManager).writeToGoogleCloudLogging(writtenLogEntriesCaptor.capture());
+    final List<LogEntry> entries = writtenLogEntriesCaptor.getValue().getEntries();
+    assertEquals(200, entries.size());
+    final Map<String, Integer> lastIndexPerThread = Maps.newHashMap();
+    for (final LogEntry entry : entries) {
+      // Every thread wrote its own sequence, which has to arrive in order
+      final String[] threadAndIndex = entry.getTextPayload().split(" ");
+      final int index = Integer.parseInt(threadAndIndex[1]);
+      final Integer lastIndex = lastIndexPerThread.put(threadAndIndex[0], index);
+      assertEquals(lastIndex == null ? 0 : lastIndex + 1, index);
+    }
+    assertEquals(4, lastIndexPerThread.size());
+  }
+
+  @Test
+  public void testFlushWaitsForBatchesBeingSentByOtherThreads() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    final GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        sending.countDown();
+        release.await();
+        return null;
+      }
+    }).when(googleCloudLoggingManager).writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final LogEvent event = buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO);
+        event.setEndOfBatch(true);
+        googleCloudLoggingManager.write(event);
+      }
+    });
+    writer.start();
+    assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+    // The stripes are empty by now, but the entry taken out of them is not acknowledged yet
+    final ListenableFuture<Void> flushed = googleCloudLoggingManager.flush();
+    Thread.sleep(100);
+    assertFalse(flushed.isDone());
+
+    release.countDown();
+    flushed.get(5, TimeUnit.SECONDS);
+    writer.join();
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesSent());
+  }
+
+  @Test
+  public void testFlushFailsOnExceptionFromLoggingClient() throws Exception {
+    when(googleCloudMetadata.fetchFromPath("instance/attributes/"))
+        .thenReturn("");
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        PowerMockito.spy(new GoogleCloudLoggingManager("name",
+                                                       httpTransport,
+                                                       googleCloudMetadata,
+                                                       googleCloudCredentials,
+                                                       null,
+                                                       null,
+                                                       "log_name",
+                                                       null,
+                                                       1));
+
+    doThrow(new IOException("TEST")).when(googleCloudLoggingManager)
+        .writeToGoogleCloudLogging(any(WriteLogEntriesRequest.class));
+
+    googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+
+    try {
+      googleCloudLoggingManager.flush().get();
+      fail("Flush should fail");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof AppenderLoggingException);
+      assertEquals("TEST", e.getCause().getCause().getMessage());
+    }
+    assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+  }
+
+  @Test
+  public void testEntriesAreWrittenAsJsonLinesToTheSinkFile() throws Exception {
+    final File sinkFile = File.createTempFile("entries", ".json");
+    sinkFile.deleteOnExit();
+
+    GoogleCloudLoggingManager googleCloudLoggingManager =
+        new GoogleCloudLoggingManager("name",
+                                      httpTransport,
+                                      googleCloudMetadata,
+                                      googleCloudCredentials,
+                                      null,
+                                      null,
+                                      "log_name",
+                                      null,
+                                      1,
+                                      GoogleCloudLoggingSettings.newBuilder()
+                                          .withSink(LogSink.FILE)
+                                          .withSinkFile(sinkFile.getPath())
+                                          .withMaxMessageBytes(8)
+                                          .build());
+
+    googleCloudLoggingManager.write(buildLogEvent("\"quoted\"", "2015-04-06T18:38:24.002Z", Level.WARN));
+    googleCloudLoggingManager.write(buildLogEvent("truncated message", "2015-04-06T18:38:24.003Z",
+                                                  Level.ERROR));
+    googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+    final List<String> lines = Files.readLines(sinkFile, Charsets.UTF_8);
+    assertEquals(2, lines.size());
+    final GenericJson first = JacksonFactory.getDefaultInstance().fromString(lines.get(0),
+                                                                             GenericJson.class);
+    assertEquals("\"quoted\"", first.get("message"));
+    assertEquals("WARNING", first.get("severity"));
+    assertEquals("2015-04-06T18:38:24.002Z", first.get("time"));
+    assertEquals("log_name", first.get("logName"));
+    assertNotNull(first.get("logging.googleapis.com/insertId"));
+    final GenericJson second = JacksonFactory.getDefaultInstance().fromString(lines.get(1),
+                                                                              GenericJson.class);
+    assertEquals("truncate", second.get("message"));
+    assertEquals("ERROR", second.get("severity"));
+    assertEquals(ImmutableMap.of("io.imaravic.log4j.logging/truncated", "true"),
+                 second.get("logging.googleapis.com/labels"));
+    assertEquals(2, googleCloudLoggingManager.getMetrics().getEntriesSent());
+    assertEquals(Files.toByteArray(sinkFile).length,
+                 googleCloudLoggingManager.getMetrics().getBytesSent());
+    // Neither the metadata server nor the API are needed
+    verify(googleCloudMetadata, never()).fetchFromPath(anyString());
+    verify(googleCloudCredentials, never()).usingComputeCredentials();
+    googleCloudLoggingManager.release();
+  }
+
+  @Test
+  public void testBatchesAreForwardedAndAcknowledged() throws Exception {
+    final FakeFluentForwardServer server = new FakeFluentForwardServer().start();
+    try {
+      GoogleCloudLoggingManager googleCloudLoggingManager =
+          new GoogleCloudLoggingManager("name",
+                                        httpTransport,
+                                        googleCloudMetadata,
+                                        googleCloudCredentials,
+                                        null,
+                                        null,
+                                        "log_name",
+                                        null,
+                                        1,
+                                        GoogleCloudLoggingSettings.newBuilder()
+                                            .withSink(LogSink.FORWARD)
+                                            .withForwardAddress(server.getAddress())
+                                            .withMaxMessageBytes(8)
+                                            .build());
+
+      googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.WARN));
+      googleCloudLoggingManager.write(buildLogEvent("truncated message", "2015-04-06T18:38:24.003Z",
+                                                    Level.ERROR));
+      googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+      assertEquals(1, server.getReceivedMessages());
+      assertEquals(2, server.getEntries().size());
+      final FakeFluentForwardServer.Entry first = server.getEntries().get(0);
+      assertEquals("log_name", first.tag);
+      assertEquals(new DateTime("2015-04-06T18:38:24.002Z").getValue(), first.timeMillis);
+      assertEquals("LogMsg", first.record.get("message"));
+      assertEquals("WARNING", first.record.get("severity"));
+      assertNotNull(first.record.get("logging.googleapis.com/insertId"));
+      final FakeFluentForwardServer.Entry second = server.getEntries().get(1);
+      assertEquals("truncate", second.record.get("message"));
+      assertEquals(ImmutableMap.of("io.imaravic.log4j.logging/truncated", "true"),
+                   second.record.get("logging.googleapis.com/labels"));
+
+      // The next batch goes over a new connection once the server dropped the idle one
+      server.closeConnections();
+      googleCloudLoggingManager.write(buildLogEvent("Again", "2015-04-06T18:38:24.004Z",
+                                                    Level.INFO));
+      googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+
+      assertEquals(3, server.getEntries().size());
+      assertEquals("Again", server.getEntries().get(2).record.get("message"));
+      assertEquals(2, server.getAcceptedConnections());
+      assertEquals(3, googleCloudLoggingManager.getMetrics().getEntriesSent());
+      assertEquals(0, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+      verify(googleCloudMetadata, never()).fetchFromPath(anyString());
+      googleCloudLoggingManager.release();
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testForwardedBatchFailsWithoutAnAck() throws Exception {
+    final FakeFluentForwardServer server = new FakeFluentForwardServer().withoutAcks().start();
+    try {
+      GoogleCloudLoggingManager googleCloudLoggingManager =
+          new GoogleCloudLoggingManager("name",
+                                        httpTransport,
+                                        googleCloudMetadata,
+                                        googleCloudCredentials,
+                                        null,
+                                        null,
+                                        "log_name",
+                                        null,
+                                        1,
+                                        GoogleCloudLoggingSettings.newBuilder()
+                                            .withSink(LogSink.FORWARD)
+                                            .withForwardAddress(server.getAddress())
+                                            .withRequestTimeoutMillis(200)
+                                            .build());
+
+      googleCloudLoggingManager.write(buildLogEvent("LogMsg", "2015-04-06T18:38:24.002Z", Level.INFO));
+      try {
+        googleCloudLoggingManager.flush().get(5, TimeUnit.SECONDS);
+        fail("Flush should fail");
+      } catch (final ExecutionException e) {
+        assertTrue(e.getCause() instanceof AppenderLoggingException);
+        assertTrue(e.getCause().getCause() instanceof SocketTimeoutException);
+      }
+      assertEquals(1, server.getEntries().size());
+      assertEquals(1, googleCloudLoggingManager.getMetrics().getEntriesDropped());
+      assertEquals(0, googleCloudLoggingManager.getMetrics().getEntriesSent());
+      googleCloudLoggingManager.release();
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static WriteLogEntriesRequest readWriteRequest(final MockLowLevelHttpRequest request)
+      throws IOException {
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    request.getStreamingContent().writeTo(content);
+    InputStream body = new ByteArrayInputStream(content.toByteArray());
+    if ("gzip".equals(request.getContentEncoding())) {
+      body = new GZIPInputStream(body);
+    }
+    return JacksonFactory.getDefaultInstance().fromInputStream(body,
+                                                               WriteLogEntriesRequest.class);
+  }
+
   private static Log4jLogEvent buildLogEvent(final String logMsg,
                                              final String timestamp,
                                              final Level level) {
+    return buildLogEvent(logMsg, new DateTime(timestamp).getValue(), level);
+  }
+
+  private static Log4jLogEvent buildLogEvent(final String logMsg,
+                                             final long timeMillis,
+                                             final Level level) {
+    return buildLogEvent("loggerName", logMsg, timeMillis, level);
+  }
+
+  private static Log4jLogEvent buildLogEvent(final Message message, final Level level) {
     return Log4jLogEvent.createEvent("loggerName",
+                                     null,
+                                     "loggerFQCN",
+                                     level,
+                                     message,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     System.currentTimeMillis());
+  }
+
+  private static Log4jLogEvent buildLogEvent(final String loggerName,
+                                             final String logMsg,
+                                             final long timeMillis,
+                                             final Level level) {
+    return Log4jLogEvent.createEvent(loggerName,
                                      null,
                                      "loggerFQCN",
                                      level,
@@ -446,7 +1567,6 @@ public class GoogleCloudLoggingManagerTest {
                                      null,
                                      null,
                                      null,
-                                     new DateTime(timestamp)
-                                         .getValue());
+                                     timeMillis);
   }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package io.imaravic.log4j.logging;
+
+import com.google.common.base.Strings;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.imaravic.log4j.logging.util.HistogramSnapshot;
+
+/**
+ * Drives a manager from a number of threads at once, the way an async logger
+ * would: every thread writes its events in batches, the last event of a batch
+ * marked as the end of batch.
+ */
+class LoadGenerator {
+  private final GoogleCloudLoggingManager manager;
+  private int threads = 4;
+  private int eventsPerThread = 1000;
+  private int eventsPerBatch = 100;
+  private int messageBytes = 200;
+
+  LoadGenerator(final GoogleCloudLoggingManager manager) {
+    this.manager = manager;
+  }
+
+  LoadGenerator withThreads(final int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  LoadGenerator withEventsPerThread(final int eventsPerThread) {
+    this.eventsPerThread = eventsPerThread;
+    return this;
+  }
+
+  LoadGenerator withEventsPerBatch(final int eventsPerBatch) {
+    this.eventsPerBatch = eventsPerBatch;
+    return this;
+  }
+
+  LoadGenerator withMessageBytes(final int messageBytes) {
+    this.messageBytes = messageBytes;
+    return this;
+  }
+
+  Result run() throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicLong failedWrites = new AtomicLong();
+    final String padding = Strings.repeat("x", messageBytes);
+
+    for (int t = 0; t < threads; ++t) {
+      final String loggerName = "load.thread" + t;
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < eventsPerThread; ++i) {
+              final Log4jLogEvent event = buildLogEvent(loggerName, Level.INFO, i + " " + padding);
+              event.setEndOfBatch((i + 1) % eventsPerBatch == 0 || i + 1 == eventsPerThread);
+              try {
+                manager.write(event);
+              } catch (final AppenderLoggingException e) {
+                failedWrites.incrementAndGet();
+              }
+            }
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "load-generator-" + t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    final long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    return new Result((long) threads * eventsPerThread,
+                      failedWrites.get(),
+                      System.nanoTime() - startNanos,
+                      manager.getMetrics().getEventToAckLatencyNanos());
+  }
+
+  static Log4jLogEvent buildLogEvent(final String loggerName,
+                                     final Level level,
+                                     final String logMsg) {
+    return Log4jLogEvent.createEvent(loggerName,
+                                     null,
+                                     "loggerFQCN",
+                                     level,
+                                     new SimpleMessage(logMsg),
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     null,
+                                     System.currentTimeMillis());
+  }
+
+  static class Result {
+    private final long events;
+    private final long failedWrites;
+    private final long elapsedNanos;
+    private final HistogramSnapshot eventToAckLatencyNanos;
+
+    Result(final long events,
+           final long failedWrites,
+           final long elapsedNanos,
+           final HistogramSnapshot eventToAckLatencyNanos) {
+      this.events = events;
+      this.failedWrites = failedWrites;
+      this.elapsedNanos = elapsedNanos;
+      this.eventToAckLatencyNanos = eventToAckLatencyNanos;
+    }
+
+    long getEvents() {
+      return events;
+    }
+
+    long getFailedWrites() {
+      return failedWrites;
+    }
+
+    double getEventsPerSecond() {
+      return events * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    HistogramSnapshot getEventToAckLatencyNanos() {
+      return eventToAckLatencyNanos;
+    }
+
+    /**
+     * Returns the share of the generated events the server accepted at least once.
+     */
+    double completeness(final FakeCloudLoggingServer server) {
+      return (double) server.getUniqueEntries() / events;
+    }
+
+    String describe(final FakeCloudLoggingServer server) {
+      return String.format("%d events in %d ms (%.0f events/s), failed writes %d, " +
+                           "completeness %.4f, requests %d (throttled %d, failed %d, " +
+                           "timed out %d), duplicates %d, event to ack p50 %d ms, " +
+                           "p99 %d ms, max %d ms",
+                           events,
+                           TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                           getEventsPerSecond(),
+                           failedWrites,
+                           completeness(server),
+                           server.getWriteRequests(),
+                           server.getThrottledRequests(),
+                           server.getFailedRequests(),
+                           server.getTimedOutRequests(),
+                           server.getReceivedEntries() - server.getUniqueEntries(),
+                           TimeUnit.NANOSECONDS.toMillis(eventToAckLatencyNanos.getP50()),
+                           TimeUnit.NANOSECONDS.toMillis(eventToAckLatencyNanos.getP99()),
+                           TimeUnit.NANOSECONDS.toMillis(eventToAckLatencyNanos.getMax()));
+    }
+  }
+}
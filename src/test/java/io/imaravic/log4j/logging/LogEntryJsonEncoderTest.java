@@ -0,0 +1,203 @@
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.logging.model.LogEntry;
+import com.google.api.services.logging.model.WriteLogEntriesRequest;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogEntryJsonEncoderTest {
+  private final JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+  @Test
+  public void testEncodedEntryParsesBackToTheSameEntry() throws Exception {
+    final LogEntryJsonEncoder encoder = newEncoder("user@developer.gserviceaccount.com");
+
+    final LogEntry entry = jsonFactory.fromString(encode(encoder, 0x1fL, "log%2Fname", "WARNING",
+                                                         1428345504002L, "LogMsg"),
+                                                  LogEntry.class);
+
+    assertEquals("prefix-1f", entry.getInsertId());
+    assertEquals("log%2Fname", entry.getLog());
+    assertEquals("LogMsg", entry.getTextPayload());
+    assertEquals("project_id", entry.getMetadata().getProjectId());
+    assertEquals("compute.googleapis.com", entry.getMetadata().getServiceName());
+    assertEquals("europe-west1-d", entry.getMetadata().getZone());
+    assertEquals("user@developer.gserviceaccount.com", entry.getMetadata().getUserId());
+    assertEquals("WARNING", entry.getMetadata().getSeverity());
+    assertEquals("2015-04-06T18:38:24.002Z", entry.getMetadata().getTimestamp());
+  }
+
+  @Test
+  public void testUserIdIsLeftOutWithoutServiceAccount() throws Exception {
+    final LogEntry entry = jsonFactory.fromString(encode(newEncoder(null), 0, "log", "INFO",
+                                                         0, "LogMsg"),
+                                                  LogEntry.class);
+
+    assertEquals("prefix-0", entry.getInsertId());
+    assertNull(entry.getMetadata().getUserId());
+  }
+
+  @Test
+  public void testTextIsEscaped() throws Exception {
+    final String message = "quote \" backslash \\ newline \n tab \t bell \u0007 " +
+                           "é€ 😀 unpaired \ud83d end";
+
+    final LogEntry entry = jsonFactory.fromString(encode(newEncoder(null), 1, "log", "INFO",
+                                                         0, message),
+                                                  LogEntry.class);
+
+    assertEquals(message.replace("\ud83d end", "? end"), entry.getTextPayload());
+  }
+
+  @Test
+  public void testTimestampIsFormattedLikeDateTime() throws Exception {
+    final LogEntryJsonEncoder encoder = newEncoder(null);
+    final long[] timesMillis = {0L, 1L, 951782400000L, 951868799999L, 1428345504002L,
+                                4102444800000L, -1L, -86400001L, -2208988800000L};
+    for (final long timeMillis : timesMillis) {
+      final LogEntry entry = jsonFactory.fromString(encode(encoder, 1, "log", "INFO",
+                                                           timeMillis, "LogMsg"),
+                                                    LogEntry.class);
+      assertEquals(new DateTime(timeMillis, 0).toStringRfc3339(),
+                   entry.getMetadata().getTimestamp());
+    }
+  }
+
+  @Test
+  public void testEncodedLengthStaysWithinTheMaximum() throws Exception {
+    final LogEntryJsonEncoder encoder = newEncoder(null);
+    final String message = "\u0001\u0002\"\\€";
+
+    final ByteBuffer out = ByteBuffer.allocate(encoder.maxEncodedLength("log", "INFO", message));
+    encoder.encode(out, Long.MAX_VALUE, "log", "INFO", Long.MAX_VALUE / 2, message);
+
+    assertTrue(out.position() <= out.capacity());
+  }
+
+  @Test
+  public void testEncodedLengthIsExactButForTheSequence() throws Exception {
+    final LogEntryJsonEncoder encoder = newEncoder(null);
+    final String message = "quote \" newline \n bell \u0007 é€ 😀 unpaired \ud83d end";
+    final ImmutableMap<String, String> labels = ImmutableMap.of("ké", "\tvalue");
+
+    final ByteBuffer out = ByteBuffer.allocate(4096);
+    // Longest sequence number there is
+    encoder.encode(out, -1L, "log", "INFO", 0, message, 0, message.length(), labels);
+
+    assertEquals(out.position(),
+                 encoder.encodedLength("log", "INFO", message, 0, message.length(), labels));
+    assertTrue(out.position() <
+               encoder.maxEncodedLength("log", "INFO", message.length(), labels));
+  }
+
+  @Test
+  public void testRequestWrapsTheEntries() throws Exception {
+    final LogEntryJsonEncoder encoder = newEncoder(null);
+    final String request = new String(encoder.getRequestStart(), Charsets.UTF_8) +
+                           encode(encoder, 1, "log", "INFO", 0, "first") + "," +
+                           encode(encoder, 2, "log", "INFO", 0, "second") +
+                           new String(encoder.getRequestEnd(), Charsets.UTF_8);
+
+    final WriteLogEntriesRequest writeLogEntriesRequest =
+        jsonFactory.fromString(request, WriteLogEntriesRequest.class);
+
+    assertEquals(ImmutableMap.of("compute.googleapis.com/resource_id", "vm_id"),
+                 writeLogEntriesRequest.getCommonLabels());
+    assertEquals(2, writeLogEntriesRequest.getEntries().size());
+    assertEquals("second", writeLogEntriesRequest.getEntries().get(1).getTextPayload());
+  }
+
+  @Test
+  public void testV2RequestParsesBackToTheSameEntries() throws Exception {
+    final LogEntryJsonEncoder encoder = LogEntryJsonEncoder.forV2(
+        jsonFactory,
+        "prefix-",
+        "project_id",
+        new LoggingV2.MonitoredResource()
+            .setType("gce_instance")
+            .setLabels(ImmutableMap.of("instance_id", "vm_id")));
+    final String request = new String(encoder.getRequestStart(), Charsets.UTF_8) +
+                           encode(encoder, 1, "log%2Fname", "WARNING", 1428345504002L, "first") +
+                           "," + encode(encoder, 2, "other", "INFO", 0, "second") +
+                           new String(encoder.getRequestEnd(), Charsets.UTF_8);
+
+    final LoggingV2.WriteRequest writeRequest =
+        jsonFactory.fromString(request, LoggingV2.WriteRequest.class);
+
+    assertEquals("gce_instance", writeRequest.getResource().getType());
+    assertEquals(ImmutableMap.of("instance_id", "vm_id"), writeRequest.getResource().getLabels());
+    assertTrue(writeRequest.getPartialSuccess());
+    final LoggingV2.LogEntryV2 first = writeRequest.getEntries().get(0);
+    assertEquals("prefix-1", first.getInsertId());
+    assertEquals("projects/project_id/logs/log%2Fname", first.getLogName());
+    assertEquals("WARNING", first.getSeverity());
+    assertEquals("2015-04-06T18:38:24.002Z", first.getTimestamp());
+    assertEquals("first", first.getTextPayload());
+    assertEquals("projects/project_id/logs/other", writeRequest.getEntries().get(1).getLogName());
+  }
+
+  @Test
+  public void testPartOfTheMessageIsEncodedWithLabels() throws Exception {
+    final String message = "skipped \ud83d\ude00 \"chunk\" skipped";
+    final ImmutableMap<String, String> labels = ImmutableMap.of(
+        OversizedMessages.CHUNK_ID_LABEL, "id", OversizedMessages.CHUNK_LABEL, "2/3");
+    final LogEntryJsonEncoder encoder = newEncoder(null);
+    final ByteBuffer out =
+        ByteBuffer.allocate(encoder.maxEncodedLength("log", "INFO", 10, labels));
+    encoder.encode(out, 1, "log", "INFO", 0, message, 8, 18, labels);
+
+    final LogEntry entry = jsonFactory.fromString(
+        new String(out.array(), 0, out.position(), Charsets.UTF_8), LogEntry.class);
+
+    assertEquals("\ud83d\ude00 \"chunk\"", entry.getTextPayload());
+    assertEquals(labels, entry.getMetadata().getLabels());
+    assertEquals("INFO", entry.getMetadata().getSeverity());
+    assertEquals("1970-01-01T00:00:00.000Z", entry.getMetadata().getTimestamp());
+  }
+
+  @Test
+  public void testV2EntryCarriesItsLabels() throws Exception {
+    final LogEntryJsonEncoder encoder = LogEntryJsonEncoder.forV2(
+        jsonFactory, "prefix-", "project_id", new LoggingV2.MonitoredResource().setType("global"));
+    final ByteBuffer out = ByteBuffer.allocate(
+        encoder.maxEncodedLength("log", "INFO", 3, OversizedMessages.TRUNCATED_LABELS));
+    encoder.encode(out, 1, "log", "INFO", 0, "message", 0, 3, OversizedMessages.TRUNCATED_LABELS);
+
+    final LoggingV2.LogEntryV2 entry = jsonFactory.fromString(
+        new String(out.array(), 0, out.position(), Charsets.UTF_8), LoggingV2.LogEntryV2.class);
+
+    assertEquals("mes", entry.getTextPayload());
+    assertEquals(OversizedMessages.TRUNCATED_LABELS, entry.getLabels());
+  }
+
+  private LogEntryJsonEncoder newEncoder(final String userId) throws Exception {
+    return new LogEntryJsonEncoder(jsonFactory,
+                                   "prefix-",
+                                   "project_id",
+                                   "compute.googleapis.com",
+                                   "europe-west1-d",
+                                   userId,
+                                   ImmutableMap.of("compute.googleapis.com/resource_id", "vm_id"));
+  }
+
+  private static String encode(final LogEntryJsonEncoder encoder,
+                               final long sequence,
+                               final String logName,
+                               final String severity,
+                               final long timeMillis,
+                               final String message) {
+    final ByteBuffer out = ByteBuffer.allocate(encoder.maxEncodedLength(logName, severity, message));
+    encoder.encode(out, sequence, logName, severity, timeMillis, message);
+    return new String(out.array(), 0, out.position(), Charsets.UTF_8);
+  }
+}
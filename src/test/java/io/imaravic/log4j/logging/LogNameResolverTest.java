@@ -0,0 +1,91 @@
+package io.imaravic.log4j.logging;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LogNameResolverTest {
+  @Test
+  public void testWithoutPatternDefaultLogNameIsUsed() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("", "default log", null, 16);
+
+    assertEquals("default+log", logNameResolver.resolve(buildLogEvent("a.b.C", Level.INFO)));
+  }
+
+  @Test
+  public void testLoggerLevelAndContextConversions() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("", "default", "app/%logger-%p-%X{component}%%", 16);
+
+    final LogEvent event = buildLogEvent("a.b.C", Level.WARN);
+    when(event.getContextMap()).thenReturn(ImmutableMap.of("component", "billing"));
+
+    assertEquals("app%2Fa.b.C-WARN-billing%25", logNameResolver.resolve(event));
+  }
+
+  @Test
+  public void testEmptyResolvedNameFallsBackToDefaultLogName() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("", "default", "%X{component}", 16);
+
+    assertEquals("default", logNameResolver.resolve(buildLogEvent("a.b.C", Level.INFO)));
+  }
+
+  @Test
+  public void testPrefixIsAddedToResolvedNames() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("appengine.googleapis.com/", "default", "%c", 16);
+
+    assertEquals("appengine.googleapis.com%2Fdefault", logNameResolver.getDefaultLogName());
+    assertEquals("appengine.googleapis.com%2Fa.b.C",
+                 logNameResolver.resolve(buildLogEvent("a.b.C", Level.INFO)));
+  }
+
+  @Test
+  public void testEncodedNamesAreCached() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("", "default", "%logger", 2);
+
+    final String first = logNameResolver.resolve(buildLogEvent("a b", Level.INFO));
+    assertSame(first, logNameResolver.resolve(buildLogEvent("a b", Level.INFO)));
+  }
+
+  @Test
+  public void testFullCacheStartsOver() throws Exception {
+    final LogNameResolver logNameResolver =
+        new LogNameResolver("", "default", "%logger", 2);
+
+    final String first = logNameResolver.resolve(buildLogEvent("a b", Level.INFO));
+    logNameResolver.resolve(buildLogEvent("c d", Level.INFO));
+    final String third = logNameResolver.resolve(buildLogEvent("e f", Level.INFO));
+
+    final String again = logNameResolver.resolve(buildLogEvent("a b", Level.INFO));
+    assertEquals(first, again);
+    assertNotSame(first, again);
+    assertSame(third, logNameResolver.resolve(buildLogEvent("e f", Level.INFO)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedConversionThrows() throws Exception {
+    new LogNameResolver("", "default", "%thread", 16);
+  }
+
+  private static LogEvent buildLogEvent(final String loggerName, final Level level) {
+    final LogEvent event = mock(LogEvent.class);
+    when(event.getLoggerName()).thenReturn(loggerName);
+    when(event.getLevel()).thenReturn(level);
+    when(event.getContextMap()).thenReturn(Collections.<String, String>emptyMap());
+    return event;
+  }
+}
@@ -0,0 +1,185 @@
+package io.imaravic.log4j.logging;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class RequestHedgerTest {
+  private final GoogleCloudLoggingMetrics metrics = new GoogleCloudLoggingMetrics();
+  private final CountingCapacity capacity = new CountingCapacity(Integer.MAX_VALUE);
+  private RequestHedger hedger;
+
+  @Before
+  public void setup() throws Exception {
+    // Loads the classes of the client, which would make the first request slow
+    respond("warm up").ignore();
+  }
+
+  @After
+  public void teardown() {
+    if (hedger != null) {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testNothingIsHedgedUntilEnoughRequestsWereMeasured() throws Exception {
+    hedger = newHedger(90, 1.0, capacity);
+    recordLatencies(10, 1);
+
+    assertEquals("attempt 1", hedger.execute(new StallingRequest(100)).parseAsString());
+    assertEquals(0, metrics.getRequestsHedged());
+  }
+
+  @Test
+  public void testRequestsSlowerThanThePercentileAreHedged() throws Exception {
+    hedger = newHedger(90, 1.0, capacity);
+    // 1 to 100 ms, so the 90th percentile is about 90 ms
+    recordLatencies(100, 1);
+
+    assertEquals("attempt 1", hedger.execute(new StallingRequest(20)).parseAsString());
+    assertEquals(0, metrics.getRequestsHedged());
+
+    assertEquals("attempt 2", hedger.execute(new StallingRequest(2000)).parseAsString());
+    assertEquals(1, metrics.getRequestsHedged());
+  }
+
+  @Test
+  public void testFirstResponseWins() throws Exception {
+    hedger = newHedger(50, 1.0, capacity);
+    recordLatencies(20, 0);
+
+    final StallingRequest request = new StallingRequest(Long.MAX_VALUE);
+    try {
+      assertEquals("attempt 2", hedger.execute(request).parseAsString());
+    } finally {
+      request.release();
+    }
+    assertEquals(1, metrics.getRequestsHedged());
+    // Counted right after the response of the duplicate got handed over
+    final long deadlineMillis = System.currentTimeMillis() + 5000;
+    while (metrics.getHedgesWon() == 0 && System.currentTimeMillis() < deadlineMillis) {
+      Thread.sleep(1);
+    }
+    assertEquals(1, metrics.getHedgesWon());
+    // The duplicate gave its room back once it got done
+    assertEquals(1, capacity.acquired.get());
+    assertEquals(0, capacity.inUse.get());
+  }
+
+  @Test
+  public void testHedgedRequestsStayWithinTheRatio() throws Exception {
+    hedger = newHedger(50, 0.25, capacity);
+    recordLatencies(20, 0);
+
+    for (int i = 0; i < 8; ++i) {
+      hedger.execute(new StallingRequest(50)).ignore();
+    }
+    assertEquals(2, metrics.getRequestsHedged());
+  }
+
+  @Test
+  public void testNothingIsHedgedWithoutRoomForTheDuplicate() throws Exception {
+    final CountingCapacity full = new CountingCapacity(0);
+    hedger = newHedger(50, 1.0, full);
+    recordLatencies(20, 0);
+
+    assertEquals("attempt 1", hedger.execute(new StallingRequest(100)).parseAsString());
+    assertEquals(0, metrics.getRequestsHedged());
+    assertEquals(0, full.acquired.get());
+  }
+
+  private RequestHedger newHedger(final double latencyPercentile,
+                                  final double maxHedgeRatio,
+                                  final RequestHedger.Capacity capacity) {
+    return new RequestHedger(metrics,
+                             latencyPercentile,
+                             maxHedgeRatio,
+                             Executors.newCachedThreadPool(),
+                             capacity);
+  }
+
+  /**
+   * Records the given number of latencies, growing by the given step from a millisecond.
+   */
+  private void recordLatencies(final int count, final int stepMillis) {
+    for (int i = 0; i < count; ++i) {
+      metrics.httpLatency.record(TimeUnit.MILLISECONDS.toNanos(1 + i * stepMillis));
+    }
+  }
+
+  private static HttpResponse respond(final String content) throws IOException {
+    return new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent(content))
+        .build()
+        .createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .execute();
+  }
+
+  /**
+   * A request whose first copy stalls for the given time, or until released,
+   * while the copies after it respond right away.
+   */
+  private static final class StallingRequest implements Callable<HttpResponse> {
+    private final long stallMillis;
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    StallingRequest(final long stallMillis) {
+      this.stallMillis = stallMillis;
+    }
+
+    @Override
+    public HttpResponse call() throws Exception {
+      final int attempt = attempts.incrementAndGet();
+      if (attempt == 1) {
+        released.await(stallMillis, TimeUnit.MILLISECONDS);
+      }
+      return respond("attempt " + attempt);
+    }
+
+    void release() {
+      released.countDown();
+    }
+  }
+
+  private static final class CountingCapacity implements RequestHedger.Capacity {
+    private final int room;
+    private final AtomicInteger acquired = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    CountingCapacity(final int room) {
+      this.room = room;
+    }
+
+    @Override
+    public boolean tryAcquire() {
+      if (inUse.incrementAndGet() > room) {
+        inUse.decrementAndGet();
+        return false;
+      }
+      acquired.incrementAndGet();
+      return true;
+    }
+
+    @Override
+    public void release() {
+      inUse.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package io.imaravic.log4j.logging;
+
+import com.google.api.services.logging.model.LogEntry;
+import com.google.api.services.logging.model.LogEntryMetadata;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedRingTest {
+  private static final int CAPACITY = 64 * 1024;
+
+  private File file;
+  private final List<String> texts = Lists.newArrayList();
+  private final SharedRing.EntryHandler handler = new SharedRing.EntryHandler() {
+    @Override
+    public void onEntry(final String logName,
+                        final String severity,
+                        final long timeMillis,
+                        final String text,
+                        final Map<String, String> labels) {
+      texts.add(text);
+    }
+  };
+
+  @Before
+  public void setup() throws Exception {
+    file = File.createTempFile("shared-ring", ".ring");
+    file.delete();
+  }
+
+  @After
+  public void teardown() {
+    file.delete();
+    new File(file.getPath() + ".sender").delete();
+  }
+
+  @Test
+  public void testDrainedEntriesAreTheAppendedOnes() throws Exception {
+    final SharedRing ring = SharedRing.open(file.getPath(), CAPACITY);
+    final LogEntryBatch batch = new LogEntryBatch("log");
+    batch.add(newEntry("first", ImmutableMap.of("key", "value")), 10, 1428345504002L, 0);
+    batch.add(newEntry("second", null), 10, 1428345504003L, 0);
+    ring.append(batch);
+
+    final List<Object[]> entries = Lists.newArrayList();
+    assertEquals(2, ring.drain(CAPACITY, new SharedRing.EntryHandler() {
+      @Override
+      public void onEntry(final String logName,
+                          final String severity,
+                          final long timeMillis,
+                          final String text,
+                          final Map<String, String> labels) {
+        entries.add(new Object[] {logName, severity, timeMillis, text, labels});
+      }
+    }));
+    assertEquals(0, ring.drain(CAPACITY, handler));
+    ring.close();
+
+    assertEquals("log", entries.get(0)[0]);
+    assertEquals("INFO", entries.get(0)[1]);
+    assertEquals(1428345504002L, entries.get(0)[2]);
+    assertEquals("first", entries.get(0)[3]);
+    assertEquals(ImmutableMap.of("key", "value"), entries.get(0)[4]);
+    assertEquals(1428345504003L, entries.get(1)[2]);
+    assertEquals("second", entries.get(1)[3]);
+    assertNull(entries.get(1)[4]);
+  }
+
+  @Test
+  public void testFullRingRejectsTheWholeBatch() throws Exception {
+    final SharedRing ring = SharedRing.open(file.getPath(), CAPACITY);
+    final String text = Strings.repeat("x", 10000);
+    ring.append(newBatch(text, 5));
+    try {
+      ring.append(newBatch(text, 2));
+      fail();
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().contains("is full"));
+    }
+    assertEquals(5, ring.drain(CAPACITY, handler));
+    ring.close();
+  }
+
+  @Test
+  public void testRecordsWrapAroundTheEndOfTheRing() throws Exception {
+    final SharedRing writer = SharedRing.open(file.getPath(), CAPACITY);
+    final SharedRing reader = SharedRing.open(file.getPath(), CAPACITY * 2);
+    for (int i = 0; i < 20; ++i) {
+      final String text = i + Strings.repeat("x", 7000);
+      writer.append(newBatch(text, 3));
+      assertEquals(3, reader.drain(CAPACITY, handler));
+      assertEquals(text, texts.get(texts.size() - 1));
+    }
+    assertEquals(60, texts.size());
+    writer.close();
+    reader.close();
+  }
+
+  @Test
+  public void testEntriesNotHandedOverAreLost() throws Exception {
+    final SharedRing ring = SharedRing.open(file.getPath(), CAPACITY);
+    ring.append(newBatch("text", 5));
+    try {
+      ring.drain(CAPACITY, new SharedRing.EntryHandler() {
+        @Override
+        public void onEntry(final String logName,
+                            final String severity,
+                            final long timeMillis,
+                            final String text,
+                            final Map<String, String> labels) {
+          if (!texts.isEmpty()) {
+            throw new IllegalStateException("Stopped");
+          }
+          texts.add(text);
+        }
+      });
+      fail();
+    } catch (final SharedRing.EntriesLostException e) {
+      assertEquals(4, e.getLostEntries());
+    }
+    // At most once, so they aren't drained again
+    assertEquals(0, ring.drain(CAPACITY, handler));
+    assertEquals(1, texts.size());
+    ring.close();
+  }
+
+  @Test
+  public void testOnlyOneRingIsElected() throws Exception {
+    final SharedRing first = SharedRing.open(file.getPath(), CAPACITY);
+    final SharedRing second = SharedRing.open(file.getPath(), CAPACITY);
+    assertTrue(first.elect());
+    assertFalse(second.elect());
+    first.close();
+    assertTrue(second.elect());
+    second.close();
+  }
+
+  private static LogEntryBatch newBatch(final String text, final int count) {
+    final LogEntryBatch batch = new LogEntryBatch("log");
+    for (int i = 0; i < count; ++i) {
+      batch.add(newEntry(text, null), text.length(), System.currentTimeMillis(), 0);
+    }
+    return batch;
+  }
+
+  private static LogEntry newEntry(final String text, final Map<String, String> labels) {
+    return new LogEntry()
+        .setLog("log")
+        .setMetadata(new LogEntryMetadata().setSeverity("INFO").setLabels(labels))
+        .setTextPayload(text);
+  }
+}
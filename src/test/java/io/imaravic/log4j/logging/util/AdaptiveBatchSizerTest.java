@@ -0,0 +1,69 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchSizerTest {
+  @Test
+  public void testBatchSizeStartsAtMaximum() {
+    final AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(10, 100, 1000);
+
+    assertEquals(100, batchSizer.getBatchSize());
+  }
+
+  @Test
+  public void testBatchSizeIsHalvedOnOverloadDownToMinimum() {
+    final AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(10, 100, 1000);
+
+    batchSizer.onOverload();
+    assertEquals(50, batchSizer.getBatchSize());
+    batchSizer.onOverload();
+    assertEquals(25, batchSizer.getBatchSize());
+    batchSizer.onOverload();
+    batchSizer.onOverload();
+    assertEquals(10, batchSizer.getBatchSize());
+  }
+
+  @Test
+  public void testBatchSizeGrowsOnlyAfterFullAndFastBatches() {
+    final AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(10, 100, 1000);
+    batchSizer.onOverload();
+    assertEquals(50, batchSizer.getBatchSize());
+
+    // Not full
+    batchSizer.onSuccess(20, 10);
+    assertEquals(50, batchSizer.getBatchSize());
+
+    // Too slow
+    batchSizer.onSuccess(50, 5000);
+    assertEquals(50, batchSizer.getBatchSize());
+
+    batchSizer.onSuccess(50, 10);
+    assertEquals(60, batchSizer.getBatchSize());
+
+    for (int i = 0; i < 10; ++i) {
+      batchSizer.onSuccess(batchSizer.getBatchSize(), 10);
+    }
+    assertEquals(100, batchSizer.getBatchSize());
+  }
+
+  @Test
+  public void testChangedLimitsApplyToTheCurrentBatchSize() {
+    final AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(10, 100, 1000);
+
+    batchSizer.setLimits(10, 40, 1000);
+    assertEquals(40, batchSizer.getBatchSize());
+
+    // Keeps the adapted size while it's within the limits
+    batchSizer.setLimits(10, 200, 1000);
+    assertEquals(40, batchSizer.getBatchSize());
+    batchSizer.onSuccess(40, 10);
+    assertEquals(50, batchSizer.getBatchSize());
+
+    batchSizer.setLimits(80, 200, 1000);
+    assertEquals(80, batchSizer.getBatchSize());
+    batchSizer.onOverload();
+    assertEquals(80, batchSizer.getBatchSize());
+  }
+}
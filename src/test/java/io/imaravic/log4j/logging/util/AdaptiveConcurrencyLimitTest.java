@@ -0,0 +1,121 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimitTest {
+  private static final long RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  @Test
+  public void testLimitGrowsWhileTheRoundTripTimeHolds() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 20);
+    for (int i = 0; i < 100; ++i) {
+      sendSaturatingRound(limit, RTT_NANOS);
+    }
+    assertEquals(20, limit.getLimit());
+  }
+
+  @Test
+  public void testLimitShrinksOnceTheRoundTripTimeGrows() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 20);
+    for (int i = 0; i < 20; ++i) {
+      sendSaturatingRound(limit, RTT_NANOS);
+    }
+    assertEquals(20, limit.getLimit());
+    for (int i = 0; i < 5; ++i) {
+      sendSaturatingRound(limit, RTT_NANOS * 4);
+    }
+    assertTrue(limit.getLimit() < 10);
+  }
+
+  @Test
+  public void testUnusedLimitDoesNotGrow() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 20);
+    for (int i = 0; i < 100; ++i) {
+      limit.release(limit.acquire(), RTT_NANOS, false);
+    }
+    assertEquals(8, limit.getLimit());
+  }
+
+  @Test
+  public void testOverloadHalvesTheLimitOncePerRoundTrip() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(16, 20);
+    for (int i = 0; i < 10; ++i) {
+      limit.release(limit.acquire(), TimeUnit.SECONDS.toNanos(10), false);
+    }
+    limit.release(limit.acquire(), RTT_NANOS, true);
+    assertEquals(8, limit.getLimit());
+    // Sent under the same limit as the first one
+    limit.release(limit.acquire(), RTT_NANOS, true);
+    assertEquals(8, limit.getLimit());
+  }
+
+  @Test
+  public void testRetriedOverloadHalvesTheLimitWhileInFlight() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(16, 20);
+    for (int i = 0; i < 10; ++i) {
+      limit.release(limit.acquire(), TimeUnit.SECONDS.toNanos(10), false);
+    }
+    final int inFlight = limit.acquire();
+    limit.onOverload();
+    assertEquals(8, limit.getLimit());
+    // The retry got through, which is no reason to back off again
+    limit.release(inFlight, RTT_NANOS, false);
+    assertTrue(limit.getLimit() >= 8);
+    limit.onOverload();
+    assertEquals(8, limit.getLimit());
+  }
+
+  @Test
+  public void testTryAcquireFailsAtTheLimit() {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 2);
+    final int inFlight = limit.acquire();
+    assertTrue(limit.tryAcquire());
+    assertFalse(limit.tryAcquire());
+    limit.releaseUnmeasured();
+    assertTrue(limit.tryAcquire());
+    limit.releaseUnmeasured();
+    limit.release(inFlight, RTT_NANOS, false);
+    assertEquals(2, limit.getLimit());
+  }
+
+  @Test
+  public void testAcquireWaitsForARequestToComplete() throws Exception {
+    final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1);
+    final int inFlight = limit.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        limit.acquire();
+        acquired.countDown();
+      }
+    });
+    waiter.start();
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limit.release(inFlight, RTT_NANOS, false);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    waiter.join();
+  }
+
+  /**
+   * Sends as many requests at once as the limit allows, all taking the given time.
+   */
+  private static void sendSaturatingRound(final AdaptiveConcurrencyLimit limit,
+                                          final long rttNanos) {
+    final int[] inFlight = new int[limit.getLimit()];
+    for (int i = 0; i < inFlight.length; ++i) {
+      inFlight[i] = limit.acquire();
+    }
+    for (final int inFlightAtStart : inFlight) {
+      limit.release(inFlightAtStart, rttNanos, false);
+    }
+  }
+}
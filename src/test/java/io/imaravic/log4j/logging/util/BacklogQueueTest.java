@@ -0,0 +1,48 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class BacklogQueueTest {
+  @Test
+  public void testOldestFirstWithinTheThreshold() throws Exception {
+    final BacklogQueue<Integer> queue = new BacklogQueue<Integer>(3);
+    queue.add(1);
+    queue.add(2);
+    queue.add(3);
+
+    assertEquals(1, (int) queue.take());
+    assertEquals(2, (int) queue.poll(1, TimeUnit.MILLISECONDS));
+    assertEquals(3, (int) queue.poll());
+  }
+
+  @Test
+  public void testNewestFirstWhileOverTheThreshold() throws Exception {
+    final BacklogQueue<Integer> queue = new BacklogQueue<Integer>(2);
+    for (int i = 1; i <= 5; ++i) {
+      queue.add(i);
+    }
+
+    assertEquals(5, (int) queue.take());
+    assertEquals(4, (int) queue.poll(1, TimeUnit.MILLISECONDS));
+    assertEquals(3, (int) queue.poll());
+    // Back within the threshold
+    assertEquals(1, (int) queue.take());
+    assertEquals(2, (int) queue.take());
+  }
+
+  @Test
+  public void testThresholdOfZeroKeepsTheOldestFirst() throws Exception {
+    final BacklogQueue<Integer> queue = new BacklogQueue<Integer>(0);
+    for (int i = 1; i <= 100; ++i) {
+      queue.add(i);
+    }
+
+    assertEquals(1, (int) queue.take());
+    queue.setNewestFirstThreshold(10);
+    assertEquals(100, (int) queue.take());
+  }
+}
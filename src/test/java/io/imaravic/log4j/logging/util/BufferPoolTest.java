@@ -0,0 +1,87 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+  @Test
+  public void testBuffersComeInSizeClasses() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 1024 * 1024);
+    assertEquals(512, pool.acquire(10).capacity());
+    assertEquals(512, pool.acquire(512).capacity());
+    assertEquals(1024, pool.acquire(513).capacity());
+    assertEquals(64 * 1024, pool.acquire(40000).capacity());
+    // Too large to be pooled, so no larger than asked for
+    assertEquals(100000, pool.acquire(100000).capacity());
+  }
+
+  @Test
+  public void testPollOnlyReturnsPooledBuffers() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 1024 * 1024);
+    assertNull(pool.poll(100));
+    final ByteBuffer buffer = pool.acquire(100);
+    buffer.put((byte) 1);
+    pool.release(buffer);
+
+    final ByteBuffer polled = pool.poll(300);
+    assertSame(buffer, polled);
+    assertEquals(0, polled.position());
+    assertNull(pool.poll(100));
+    assertNull(pool.poll(100000));
+  }
+
+  @Test
+  public void testMixedSizesReuseTheirBuffers() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 1024 * 1024);
+    final ByteBuffer small = pool.acquire(100);
+    final ByteBuffer large = pool.acquire(5000);
+    pool.release(small);
+    pool.release(large);
+
+    assertSame(large, pool.acquire(6000));
+    assertSame(small, pool.acquire(200));
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testLargerBufferServesASmallerOne() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 1024 * 1024);
+    final ByteBuffer large = pool.acquire(5000);
+    large.put((byte) 1);
+    pool.release(large);
+
+    final ByteBuffer buffer = pool.acquire(100);
+    assertSame(large, buffer);
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  public void testPooledBytesAreCapped() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 4096);
+    pool.release(pool.acquire(2048));
+    pool.release(pool.acquire(2048));
+    pool.release(pool.acquire(2048));
+    // Taken from the pool, so the three buffers are the same one
+    assertEquals(1, pool.size());
+
+    final ByteBuffer first = ByteBuffer.allocate(2048);
+    final ByteBuffer second = ByteBuffer.allocate(2048);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(2, pool.size());
+    assertEquals(4096, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testOddSizedBuffersAreNotPooled() {
+    final BufferPool pool = new BufferPool(512, 64 * 1024, 1024 * 1024);
+    pool.release(ByteBuffer.allocate(1000));
+    pool.release(pool.acquire(100000));
+    assertEquals(0, pool.size());
+  }
+}
@@ -0,0 +1,76 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectBufferArenaTest {
+  @Test
+  public void testRecordsShareASlabUntilItIsFull() {
+    final DirectBufferArena arena = new DirectBufferArena(300, 100);
+
+    final ByteBuffer first = arena.allocate(40);
+    assertTrue(first.isDirect());
+    first.position(first.position() + 40);
+    final ByteBuffer second = arena.allocate(40);
+    assertSame(first, second);
+    second.position(second.position() + 40);
+
+    final ByteBuffer third = arena.allocate(40);
+    assertNotSame(first, third);
+    assertEquals(0, third.position());
+    assertEquals(200, arena.getAllocatedBytes());
+  }
+
+  @Test
+  public void testSlabIsReusedOnceFullAndReleased() {
+    final DirectBufferArena arena = new DirectBufferArena(200, 100);
+
+    final ByteBuffer first = arena.allocate(60);
+    first.position(60);
+    final ByteBuffer second = arena.allocate(60);
+    second.position(60);
+    arena.release(first);
+
+    // The full slab is reused once its last record is released
+    final ByteBuffer third = arena.allocate(60);
+    assertSame(first, third);
+    assertEquals(0, third.position());
+    assertEquals(200, arena.getAllocatedBytes());
+  }
+
+  @Test
+  public void testFullArenaAndLargeRecordsAreRefused() {
+    final DirectBufferArena arena = new DirectBufferArena(200, 100);
+
+    assertNull(arena.allocate(101));
+    arena.allocate(60).position(60);
+    arena.allocate(60).position(60);
+    assertNull(arena.allocate(60));
+  }
+
+  @Test
+  public void testCurrentSlabIsKeptWhenItsRecordsAreReleased() {
+    final DirectBufferArena arena = new DirectBufferArena(100, 100);
+
+    final ByteBuffer first = arena.allocate(30);
+    first.position(30);
+    arena.release(first);
+
+    // Released records of the slab being written don't rewind it
+    final ByteBuffer second = arena.allocate(30);
+    assertSame(first, second);
+    assertEquals(30, second.position());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReleasingForeignBufferFails() {
+    new DirectBufferArena(100, 100).release(ByteBuffer.allocateDirect(10));
+  }
+}
@@ -0,0 +1,99 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHittersTest {
+  @Test
+  public void testExactCountsWhileEveryKeyFits() {
+    final HeavyHitters heavyHitters = new HeavyHitters(3, 1);
+    heavyHitters.record("a", "INFO", 1, 10);
+    heavyHitters.record("b", "INFO", 1, 30);
+    heavyHitters.record("a", "WARN", 1, 20);
+    heavyHitters.record("a", "INFO", 2, 25);
+
+    final List<HeavyHitter> top = heavyHitters.top();
+    assertEquals(3, top.size());
+    assertKey(top.get(0), "a", "INFO", 3, 35);
+    assertKey(top.get(1), "b", "INFO", 1, 30);
+    assertKey(top.get(2), "a", "WARN", 1, 20);
+    for (final HeavyHitter heavyHitter : top) {
+      assertEquals(0, heavyHitter.getBytesError());
+    }
+  }
+
+  @Test
+  public void testNewKeyTakesOverTheSmallestCounter() {
+    final HeavyHitters heavyHitters = new HeavyHitters(2, 1);
+    heavyHitters.record("a", "INFO", 1, 100);
+    heavyHitters.record("b", "INFO", 1, 10);
+    heavyHitters.record("c", "INFO", 1, 5);
+
+    final List<HeavyHitter> top = heavyHitters.top();
+    assertEquals(2, top.size());
+    assertKey(top.get(0), "a", "INFO", 1, 100);
+    assertKey(top.get(1), "c", "INFO", 2, 15);
+    assertEquals(10, top.get(1).getBytesError());
+    assertEquals(1, top.get(1).getEntriesError());
+  }
+
+  @Test
+  public void testHeavyKeysAreFoundAmongManyLightOnes() {
+    final HeavyHitters heavyHitters = new HeavyHitters(10, 1);
+    final Random random = new Random(42);
+    long heavyBytes = 0;
+    for (int i = 0; i < 100000; ++i) {
+      if (i % 10 == 0) {
+        heavyHitters.record("heavy", "INFO", 1, 100);
+        heavyBytes += 100;
+      } else {
+        heavyHitters.record("logger" + random.nextInt(5000), "INFO", 1, 1 + random.nextInt(20));
+      }
+    }
+
+    final HeavyHitter top = heavyHitters.top().get(0);
+    assertEquals("heavy", top.getName());
+    assertTrue(top.getBytes() >= heavyBytes);
+    assertTrue(top.getBytes() - top.getBytesError() <= heavyBytes);
+  }
+
+  @Test
+  public void testSketchesOfThreadsAreMerged() throws Exception {
+    final HeavyHitters heavyHitters = new HeavyHitters(4, 4);
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; ++j) {
+            heavyHitters.record("shared", "INFO", 1, 10);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    final List<HeavyHitter> top = heavyHitters.top();
+    assertEquals(1, top.size());
+    assertKey(top.get(0), "shared", "INFO", 4000, 40000);
+  }
+
+  private static void assertKey(final HeavyHitter heavyHitter,
+                                final String name,
+                                final String level,
+                                final long entries,
+                                final long bytes) {
+    assertEquals(name, heavyHitter.getName());
+    assertEquals(level, heavyHitter.getLevel());
+    assertEquals(entries, heavyHitter.getEntries());
+    assertEquals(bytes, heavyHitter.getBytes());
+  }
+}
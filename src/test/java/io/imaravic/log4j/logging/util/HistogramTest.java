@@ -0,0 +1,111 @@
+package io.imaravic.log4j.logging.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+  @Test
+  public void testEmptyHistogramReportsZeros() {
+    final Histogram histogram = new Histogram(1000000);
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getValueAtPercentile(99.0));
+  }
+
+  @Test
+  public void testSmallValuesAreRecordedExactly() {
+    final Histogram histogram = new Histogram(1000000);
+    for (int i = 1; i <= 10; ++i) {
+      histogram.record(i);
+    }
+
+    assertEquals(10, histogram.getCount());
+    assertEquals(5, histogram.getValueAtPercentile(50.0));
+    assertEquals(10, histogram.getValueAtPercentile(100.0));
+    assertEquals(10, histogram.getMax());
+    assertEquals(5.5, histogram.getMean(), 0.0001);
+  }
+
+  @Test
+  public void testLargeValuesStayWithinRelativeError() {
+    for (long value = 1; value < (1L << 40); value = value * 3 + 1) {
+      final Histogram histogram = new Histogram(1L << 40);
+      histogram.record(value);
+      final long reported = histogram.getValueAtPercentile(50.0);
+      assertTrue(reported >= value);
+      assertTrue((reported - value) <= value / 16);
+    }
+  }
+
+  @Test
+  public void testValuesAboveHighestTrackableValueAreClamped() {
+    final Histogram histogram = new Histogram(1000);
+    histogram.record(5000);
+    histogram.record(-5);
+
+    assertEquals(1000, histogram.getMax());
+    assertTrue(histogram.getValueAtPercentile(100.0) >= 1000);
+    assertEquals(0, histogram.getValueAtPercentile(50.0));
+  }
+
+  @Test
+  public void testIndexAndHighestEquivalentValueAreConsistent() {
+    for (long value = 0; value < 100000; ++value) {
+      final int index = Histogram.indexFor(value);
+      assertTrue(Histogram.highestEquivalentValue(index) >= value);
+      if (index > 0) {
+        assertTrue(Histogram.highestEquivalentValue(index - 1) < value);
+      }
+    }
+  }
+
+  @Test
+  public void testIntervalSnapshotOnlyReportsValuesSinceLastSnapshot() {
+    final Histogram histogram = new Histogram(1000000);
+    final long[] baseline = histogram.newBaseline();
+    histogram.record(10);
+    histogram.record(20);
+
+    HistogramSnapshot snapshot = histogram.intervalSnapshot(baseline);
+    assertEquals(2, snapshot.getCount());
+    assertEquals(20, snapshot.getMax());
+
+    histogram.record(1000);
+    snapshot = histogram.intervalSnapshot(baseline);
+    assertEquals(1, snapshot.getCount());
+    assertTrue(snapshot.getP50() >= 1000);
+
+    snapshot = histogram.intervalSnapshot(baseline);
+    assertEquals(0, snapshot.getCount());
+    assertEquals(3, histogram.getCount());
+  }
+
+  @Test
+  public void testStripesOfThreadsAreMerged() throws Exception {
+    final Histogram histogram = new Histogram(1000000, 4);
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; ++i) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int value = 1; value <= 1000; ++value) {
+            histogram.record(value * (thread + 1));
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    final HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(4000, snapshot.getCount());
+    assertEquals(4000, snapshot.getMax());
+    assertEquals(4000, histogram.intervalSnapshot(histogram.newBaseline()).getCount());
+  }
+}
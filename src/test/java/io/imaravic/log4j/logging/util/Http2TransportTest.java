@@ -0,0 +1,184 @@
+package io.imaravic.log4j.logging.util;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class Http2TransportTest {
+  private static final int CONCURRENT_REQUESTS = 4;
+
+  private final Set<Integer> clientPorts = Sets.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+  private HttpServer server;
+  private Http2Transport transport;
+
+  @Before
+  public void setup() throws Exception {
+    assumeTrue(Http2Transport.isSupported());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/echo", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        final byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        exchange.getResponseHeaders().set("Content-Type",
+                                          exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (exchange.getRequestHeaders().containsKey("X-Echo")) {
+          exchange.getResponseHeaders().set("X-Echo",
+                                            exchange.getRequestHeaders().getFirst("X-Echo"));
+        }
+        respond(exchange, 201, body);
+      }
+    });
+    server.createContext("/reject", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        respond(exchange, 400, "{\"error\":{\"code\":400}}".getBytes(Charsets.UTF_8));
+      }
+    });
+    server.createContext("/hang", new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          TimeUnit.SECONDS.sleep(5);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    transport = Http2Transport.newTransport(1000);
+  }
+
+  @After
+  public void teardown() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testRequestAndResponseGoThrough() throws Exception {
+    final HttpRequest request = transport.createRequestFactory().buildPostRequest(
+        url("/echo"), new ByteArrayContent("application/json", "{\"a\":1}".getBytes(Charsets.UTF_8)));
+    request.getHeaders().set("X-Echo", "echoed");
+
+    final HttpResponse response = request.execute();
+
+    assertEquals(201, response.getStatusCode());
+    assertEquals("application/json", response.getContentType());
+    assertEquals("echoed", response.getHeaders().getFirstHeaderStringValue("X-Echo"));
+    assertEquals("{\"a\":1}", response.parseAsString());
+  }
+
+  @Test
+  public void testStatusLineCarriesTheVersionSpoken() throws Exception {
+    final LowLevelHttpResponse response =
+        transport.buildRequest("GET", url("/reject").build()).execute();
+
+    // The server speaks HTTP/1.1 only, and the reason phrase isn't passed on
+    assertEquals("HTTP/1.1 400", response.getStatusLine());
+    assertEquals(null, response.getReasonPhrase());
+    response.disconnect();
+  }
+
+  @Test
+  public void testConcurrentRequestsReuseTheirConnections() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+    try {
+      for (int round = 0; round < 5; ++round) {
+        final List<Future<String>> responses = Lists.newArrayList();
+        for (int i = 0; i < CONCURRENT_REQUESTS; ++i) {
+          final String body = round + "-" + i;
+          responses.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              return transport.createRequestFactory().buildPostRequest(
+                  url("/echo"),
+                  new ByteArrayContent("text/plain", body.getBytes(Charsets.UTF_8)))
+                  .execute().parseAsString();
+            }
+          }));
+        }
+        for (int i = 0; i < CONCURRENT_REQUESTS; ++i) {
+          assertEquals(round + "-" + i, responses.get(i).get(5, TimeUnit.SECONDS));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Over HTTP/1.1 every request in flight takes a connection, but only until it completes
+    assertTrue(clientPorts.size() <= CONCURRENT_REQUESTS);
+  }
+
+  @Test
+  public void testErrorResponseCarriesItsContent() throws Exception {
+    try {
+      transport.createRequestFactory().buildPostRequest(
+          url("/reject"), new ByteArrayContent("application/json", new byte[0])).execute();
+      fail("Expected the request to be rejected");
+    } catch (final HttpResponseException e) {
+      assertEquals(400, e.getStatusCode());
+      assertEquals("{\"error\":{\"code\":400}}", e.getContent());
+    }
+  }
+
+  @Test(expected = SocketTimeoutException.class)
+  public void testTimeoutIsReportedAsSocketTimeout() throws Exception {
+    transport.createRequestFactory().buildGetRequest(url("/hang"))
+        .setReadTimeout(200)
+        .execute();
+  }
+
+  private GenericUrl url(final String path) {
+    return new GenericUrl("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+
+  private static void respond(final HttpExchange exchange,
+                              final int statusCode,
+                              final byte[] body) throws IOException {
+    exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
+    final OutputStream responseBody = exchange.getResponseBody();
+    try {
+      responseBody.write(body);
+    } finally {
+      responseBody.close();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package io.imaravic.log4j.logging.util;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MessagePackBufferTest {
+  @Test
+  public void testValuesTakeTheirShortestForm() {
+    final MessagePackBuffer buffer = new MessagePackBuffer(4);
+    buffer.packArrayHeader(2).packMapHeader(1).packString("a\u00e9").packLong(5).packLong(300);
+    assertArrayEquals(new byte[]{(byte) 0x92, (byte) 0x81, (byte) 0xa3, 'a', (byte) 0xc3,
+                                 (byte) 0xa9, 5, (byte) 0xce, 0, 0, 1, 44},
+                      toArray(buffer.flip()));
+  }
+
+  @Test
+  public void testBinaryLengthIsFilledInAtItsEnd() {
+    final MessagePackBuffer buffer = new MessagePackBuffer(8);
+    final int start = buffer.startBinary();
+    buffer.packString(Strings.repeat("x", 40));
+    buffer.endBinary(start);
+    final ByteBuffer encoded = buffer.flip();
+    assertEquals((byte) 0xc6, encoded.get());
+    assertEquals(42, encoded.getInt());
+    assertEquals((byte) 0xd9, encoded.get());
+    assertEquals(40, encoded.get());
+  }
+
+  @Test
+  public void testEventTimeCarriesSecondsAndNanos() {
+    final MessagePackBuffer buffer = new MessagePackBuffer(16);
+    buffer.packEventTime(1428345504002L);
+    final ByteBuffer encoded = buffer.flip();
+    assertEquals((byte) 0xd7, encoded.get());
+    assertEquals(0, encoded.get());
+    assertEquals(1428345504, encoded.getInt());
+    assertEquals(2000000, encoded.getInt());
+  }
+
+  @Test
+  public void testStringMapIsOnlyReadOnceComplete() {
+    final MessagePackBuffer buffer = new MessagePackBuffer(16);
+    buffer.packMapHeader(1).packString("ack").packString("chunk-id");
+    final ByteBuffer encoded = buffer.flip();
+    final ByteBuffer partial = encoded.duplicate();
+    partial.limit(partial.limit() - 1);
+    assertNull(MessagePackBuffer.readStringMap(partial));
+    assertEquals(ImmutableMap.of("ack", "chunk-id"), MessagePackBuffer.readStringMap(encoded));
+    assertEquals(0, encoded.position());
+  }
+
+  private static byte[] toArray(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,55 @@
+package io.imaravic.log4j.logging.util;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Utf8Test {
+  private static final String MIXED = "a\u00e9\u20ac\ud83d\ude00b";
+
+  @Test
+  public void testEncodedLengthMatchesTheEncoder() {
+    assertEquals(MIXED.getBytes(Charsets.UTF_8).length, Utf8.encodedLength(MIXED));
+    assertEquals(1, Utf8.encodedLength("\ud83d"));
+  }
+
+  @Test
+  public void testPrefixEndStopsAtTheLastWholeChar() {
+    // a=1, e-acute=2, euro=3, emoji=4, b=1 bytes
+    assertEquals(0, Utf8.prefixEnd(MIXED, 0, 0));
+    assertEquals(1, Utf8.prefixEnd(MIXED, 0, 2));
+    assertEquals(2, Utf8.prefixEnd(MIXED, 0, 3));
+    assertEquals(3, Utf8.prefixEnd(MIXED, 0, 8));
+    assertEquals(5, Utf8.prefixEnd(MIXED, 0, 10));
+    assertEquals(6, Utf8.prefixEnd(MIXED, 0, 11));
+    assertEquals(6, Utf8.prefixEnd(MIXED, 0, 100));
+  }
+
+  @Test
+  public void testPrefixEndNeverSplitsASurrogatePair() {
+    // The pair starts at 3 and takes 4 bytes, so 3 bytes from there aren't enough for it
+    assertEquals(3, Utf8.prefixEnd(MIXED, 3, 3));
+    assertEquals(5, Utf8.prefixEnd(MIXED, 3, 4));
+  }
+
+  @Test
+  public void testPrefixesCoverTheTextInBoundedChunks() {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      text.append(MIXED);
+    }
+    int start = 0;
+    int totalBytes = 0;
+    while (start < text.length()) {
+      final int end = Utf8.prefixEnd(text, start, 16);
+      final int bytes = text.substring(start, end).getBytes(Charsets.UTF_8).length;
+      assertTrue(bytes <= 16 && (bytes > 12 || end == text.length()));
+      totalBytes += bytes;
+      start = end;
+    }
+    assertEquals(Utf8.encodedLength(text), totalBytes);
+  }
+}